@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.morlunk.mumbleclient.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks the indexed, compiled lookups against the full table scans they replaced, over
+ * 10,000 row tables. Runs on a device, as SQLiteStatement is part of the platform.
+ * The timings vary too much between devices to assert on, so they are only logged.
+ */
+public class PlumbleSQLiteDatabaseTest extends AndroidTestCase {
+
+    private static final int SERVERS = 100;
+    private static final int CHANNELS = 100; // SERVERS * CHANNELS favourites
+    private static final int COMMENTS = 10000;
+    private static final int LOOKUPS = 1000;
+
+    private Context mTestContext;
+    private PlumbleSQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Keep clear of the user's database.
+        mTestContext = new RenamingDelegatingContext(getContext(), "test_");
+        mTestContext.deleteDatabase(PlumbleSQLiteDatabase.DATABASE_NAME);
+        mDatabase = new PlumbleSQLiteDatabase(mTestContext);
+
+        for(int server = 0; server < SERVERS; server++) {
+            List<Integer> channels = new ArrayList<Integer>(CHANNELS);
+            for(int channel = 0; channel < CHANNELS; channel++)
+                channels.add(channel);
+            mDatabase.setPinnedChannels(server, channels);
+        }
+
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for(int i = 0; i < COMMENTS; i++) {
+                db.execSQL("INSERT INTO `" + PlumbleSQLiteDatabase.TABLE_COMMENTS + "` (`"
+                        + PlumbleSQLiteDatabase.COMMENTS_WHO + "`,`" + PlumbleSQLiteDatabase.COMMENTS_COMMENT + "`,`"
+                        + PlumbleSQLiteDatabase.COMMENTS_SEEN + "`) VALUES (?,?,datetime('now'))",
+                        new Object[] { getCommentWho(i), getCommentHash(i) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        mTestContext.deleteDatabase(PlumbleSQLiteDatabase.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private static String getCommentWho(int i) {
+        return "user" + i;
+    }
+
+    private static byte[] getCommentHash(int i) {
+        byte[] hash = new byte[20];
+        for(int x = 0; x < hash.length; x++)
+            hash[x] = (byte) (i >> (x % 4 * 8));
+        return hash;
+    }
+
+    public void testChannelPinned() {
+        assertTrue(mDatabase.isChannelPinned(0, 0));
+        assertTrue(mDatabase.isChannelPinned(SERVERS - 1, CHANNELS - 1));
+        assertFalse(mDatabase.isChannelPinned(SERVERS, 0));
+        assertFalse(mDatabase.isChannelPinned(0, CHANNELS));
+    }
+
+    public void testCommentSeen() {
+        assertTrue(mDatabase.isCommentSeen(getCommentWho(42), getCommentHash(42)));
+        assertFalse(mDatabase.isCommentSeen(getCommentWho(42), getCommentHash(43)));
+        assertFalse(mDatabase.isCommentSeen(getCommentWho(COMMENTS), getCommentHash(COMMENTS)));
+    }
+
+    public void testChannelPinnedBenchmark() {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.execSQL("DROP INDEX IF EXISTS `favourites_server_channel`");
+        long start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++) {
+            // The query isChannelPinned made before it was compiled, which also leaked its cursor.
+            Cursor c = db.query(PlumbleSQLiteDatabase.TABLE_FAVOURITES,
+                    new String[] { PlumbleSQLiteDatabase.FAVOURITES_CHANNEL },
+                    PlumbleSQLiteDatabase.FAVOURITES_SERVER + "=? AND " + PlumbleSQLiteDatabase.FAVOURITES_CHANNEL + "=?",
+                    new String[] { String.valueOf(i % SERVERS), String.valueOf(i % CHANNELS) },
+                    null, null, null);
+            c.moveToFirst();
+            c.close();
+        }
+        long scan = System.nanoTime() - start;
+
+        db.execSQL(PlumbleSQLiteDatabase.INDEX_FAVOURITES_CREATE_SQL);
+        start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++)
+            mDatabase.isChannelPinned(i % SERVERS, i % CHANNELS);
+        long indexed = System.nanoTime() - start;
+
+        report("isChannelPinned", scan, indexed);
+    }
+
+    public void testCommentSeenBenchmark() {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.execSQL("DROP INDEX IF EXISTS `comments_who_comment`");
+        long start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++) {
+            // The query isCommentSeen made before it was compiled.
+            Cursor c = db.query(PlumbleSQLiteDatabase.TABLE_COMMENTS,
+                    new String[] { PlumbleSQLiteDatabase.COMMENTS_WHO, PlumbleSQLiteDatabase.COMMENTS_COMMENT, PlumbleSQLiteDatabase.COMMENTS_SEEN },
+                    PlumbleSQLiteDatabase.COMMENTS_WHO + "=? AND " + PlumbleSQLiteDatabase.COMMENTS_COMMENT + "=?",
+                    new String[] { getCommentWho(i * 7), new String(getCommentHash(i * 7)) },
+                    null, null, null);
+            c.moveToNext();
+            c.close();
+        }
+        long scan = System.nanoTime() - start;
+
+        db.execSQL(PlumbleSQLiteDatabase.INDEX_COMMENTS_CREATE_SQL);
+        start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++)
+            mDatabase.isCommentSeen(getCommentWho(i * 7), getCommentHash(i * 7));
+        long indexed = System.nanoTime() - start;
+
+        report("isCommentSeen", scan, indexed);
+    }
+
+    private static void report(String lookup, long scan, long indexed) {
+        Log.i(Constants.TAG, "BENCH: " + LOOKUPS + " " + lookup + " lookups, full scan " + scan / 1000000
+                + "ms, indexed and compiled " + indexed / 1000000 + "ms");
+    }
+}
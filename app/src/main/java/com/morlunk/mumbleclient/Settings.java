@@ -22,9 +22,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.preference.PreferenceManager;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import com.morlunk.mumbleclient.util.CertificateRepository;
 
 /**
  * Singleton settings class for universal access to the app's preferences.
@@ -175,20 +173,15 @@ public class Settings {
 
     /**
      * Attempts to read the certificate from the path specified in settings.
-     * @return The parsed bytes of the certificate, or null otherwise.
+     * The certificate is cached in memory after the first read; see {@link CertificateRepository}.
+     * @return The bytes of the certificate, or null otherwise.
      */
     public byte[] getCertificate() {
-        try {
-            FileInputStream inputStream = new FileInputStream(preferences.getString(PREF_CERT, ""));
-            byte[] buffer = new byte[inputStream.available()];
-            inputStream.read(buffer);
-            return buffer;
-        } catch (FileNotFoundException e) {
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return CertificateRepository.getInstance().getCertificate(getCertificatePath());
+    }
+
+    public String getCertificatePath() {
+        return preferences.getString(PREF_CERT, "");
     }
 
     public boolean isUsingCertificate() {
@@ -262,6 +255,7 @@ public class Settings {
         Editor editor = preferences.edit();
         editor.putString(PREF_CERT, path);
         editor.commit();
+        CertificateRepository.getInstance().preload(path, getCertificatePassword());
     }
 
     public void setFirstRun(boolean run) {
@@ -19,9 +19,12 @@ package com.morlunk.mumbleclient.app;
 
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -35,6 +38,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.StrictMode;
 import android.preference.PreferenceManager;
 import android.support.v4.app.ActionBarDrawerToggle;
 import android.support.v4.app.Fragment;
@@ -60,24 +64,30 @@ import com.morlunk.jumble.model.Server;
 import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.jumble.util.MumbleURLParser;
 import com.morlunk.jumble.util.ParcelableByteArray;
+import com.morlunk.mumbleclient.BuildConfig;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
 import com.morlunk.mumbleclient.channel.AccessTokenFragment;
 import com.morlunk.mumbleclient.channel.ChannelFragment;
 import com.morlunk.mumbleclient.channel.ServerInfoFragment;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
+import com.morlunk.mumbleclient.db.CachingPlumbleDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
 import com.morlunk.mumbleclient.db.PlumbleDatabase;
-import com.morlunk.mumbleclient.db.PlumbleSQLiteDatabase;
 import com.morlunk.mumbleclient.db.PublicServer;
 import com.morlunk.mumbleclient.preference.PlumbleCertificateGenerateTask;
 import com.morlunk.mumbleclient.preference.Preferences;
+import com.morlunk.mumbleclient.servers.ConnectionPrewarmer;
 import com.morlunk.mumbleclient.servers.PublicServerListFragment;
 import com.morlunk.mumbleclient.servers.ServerEditFragment;
 import com.morlunk.mumbleclient.servers.ServerListFragment;
+import com.morlunk.mumbleclient.service.ConnectionMetrics;
 import com.morlunk.mumbleclient.service.PlumbleService;
+import com.morlunk.mumbleclient.util.CertificateRepository;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
 import com.morlunk.mumbleclient.util.JumbleServiceProvider;
 import com.morlunk.mumbleclient.util.PlumbleTrustStore;
+import com.morlunk.mumbleclient.util.ServerModelMirror;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -93,12 +103,13 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
 
     /** Broadcasted when the activity gains focus. Used to dismiss chat notifications, bit of a hack. */
     public static final String ACTION_PLUMBLE_SHOWN = "com.morlunk.mumbleclient.ACTION_PLUMBLE_SHOWN";
-    public static final int RECONNECT_DELAY = 10000;
 
     private static final String SAVED_FRAGMENT_TAG = "fragment";
 
     private IJumbleService mService;
+    private ServerModelMirror mModelMirror = new ServerModelMirror();
     private PlumbleDatabase mDatabase;
+    private AsyncDatabase mAsyncDatabase;
     private Settings mSettings;
 
     private ActionBarDrawerToggle mDrawerToggle;
@@ -110,6 +121,8 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
     private ProgressDialog mConnectingDialog;
     private AlertDialog mErrorDialog;
     private AlertDialog.Builder mDisconnectPromptBuilder;
+    /** The last connection error, shown alongside reconnect progress. */
+    private String mConnectionError;
 
     /** List of fragments to be notified about service state changes. */
     private List<JumbleServiceFragment> mServiceFragments = new ArrayList<JumbleServiceFragment>();
@@ -119,6 +132,8 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         public void onServiceConnected(ComponentName name, IBinder service) {
             mService = (IJumbleService) service;
             try {
+                mModelMirror.seed(mService); // Seed before fragments bind, so they can read from it.
+                mService.registerObserver(mModelMirror);
                 mService.registerObserver(mObserver);
             } catch (RemoteException e) {
                 e.printStackTrace();
@@ -146,6 +161,26 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         }
     };
 
+    private BroadcastReceiver mReconnectReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(mErrorDialog != null) mErrorDialog.dismiss();
+            long delay = intent.getLongExtra(PlumbleService.EXTRA_RECONNECT_DELAY, -1);
+            String reconnectMessage = PlumbleService.getReconnectMessage(PlumbleActivity.this, delay);
+
+            AlertDialog.Builder ab = new AlertDialog.Builder(PlumbleActivity.this);
+            ab.setTitle(R.string.connectionRefused);
+            ab.setMessage(mConnectionError != null ? mConnectionError+"\n"+reconnectMessage : reconnectMessage);
+            ab.setPositiveButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    sendBroadcast(new Intent(PlumbleService.BROADCAST_CANCEL_RECONNECT));
+                }
+            });
+            mErrorDialog = ab.show();
+        }
+    };
+
     private JumbleObserver mObserver = new JumbleObserver() {
         @Override
         public void onConnected() throws RemoteException {
@@ -174,27 +209,12 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
             if(mErrorDialog != null) mErrorDialog.dismiss();
             mConnectingDialog.dismiss();
 
+            // PlumbleService handles reconnecting, and replaces this dialog if it schedules an attempt.
+            mConnectionError = message;
             AlertDialog.Builder ab = new AlertDialog.Builder(PlumbleActivity.this);
             ab.setTitle(R.string.connectionRefused);
-            if(!reconnecting) {
-                ab.setMessage(message);
-                ab.setPositiveButton(android.R.string.ok, null);
-            } else {
-                ab.setTitle(R.string.connectionRefused);
-                ab.setMessage(message+"\n"+getString(R.string.reconnecting, RECONNECT_DELAY/1000));
-                ab.setPositiveButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        if(getService() != null) {
-                            try {
-                                getService().cancelReconnect();
-                            } catch (RemoteException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                });
-            }
+            ab.setMessage(message);
+            ab.setPositiveButton(android.R.string.ok, null);
             mErrorDialog = ab.show();
         }
 
@@ -253,6 +273,15 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        if(BuildConfig.DEBUG) {
+            // Flag any disk access on the main thread. Database access belongs on AsyncDatabase.
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+        }
+
         mSettings = Settings.getInstance(this);
         setTheme(mSettings.getTheme()); // Set custom theme
 
@@ -262,7 +291,12 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.registerOnSharedPreferenceChangeListener(this);
 
-        mDatabase = new PlumbleSQLiteDatabase(this); // TODO add support for cloud storage
+        // Read and check the client certificate now, so connecting doesn't have to.
+        if(mSettings.isUsingCertificate())
+            CertificateRepository.getInstance().preload(mSettings.getCertificatePath(), mSettings.getCertificatePassword());
+
+        mDatabase = CachingPlumbleDatabase.getInstance(this); // TODO add support for cloud storage
+        mAsyncDatabase = new AsyncDatabase(mDatabase);
 
         mDrawerLayout = (DrawerLayout) findViewById(R.id.drawer_layout);
         mDrawerList = (ListView) findViewById(R.id.left_drawer);
@@ -360,6 +394,8 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         Intent connectIntent = new Intent(this, PlumbleService.class);
         bindService(connectIntent, mConnection, BIND_AUTO_CREATE);
 
+        registerReceiver(mReconnectReceiver, new IntentFilter(PlumbleService.BROADCAST_RECONNECT_SCHEDULED));
+
         Intent resumeIntent = new Intent(ACTION_PLUMBLE_SHOWN);
         sendBroadcast(resumeIntent);
     }
@@ -370,10 +406,12 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         if(mService != null)
             try {
                 mService.unregisterObserver(mObserver);
+                mService.unregisterObserver(mModelMirror);
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
         unbindService(mConnection);
+        unregisterReceiver(mReconnectReceiver);
     }
 
     @Override
@@ -554,7 +592,6 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
                 fragmentClass = AccessTokenFragment.class;
                 try {
                     args.putLong("server", mService.getConnectedServer().getId());
-                    args.putStringArrayList("access_tokens", (ArrayList<String>) mDatabase.getAccessTokens(mService.getConnectedServer().getId()));
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
@@ -618,6 +655,44 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         mConnectingDialog.setMessage(getString(R.string.connecting_to_server, server.getHost(), server.getPort()));
         mConnectingDialog.show();
 
+        // Resolve the host while the tokens are read, if the server list hasn't already.
+        ConnectionPrewarmer prewarmer = ConnectionPrewarmer.getInstance();
+        ConnectionMetrics.getInstance().onConnectStarted(server, prewarmer.isWarm(server));
+        prewarmer.prewarm(server);
+
+        // Read the server's tokens and the certificate off the main thread. Its pinned channels
+        // are loaded alongside, so that the channel list can read them from the database cache
+        // once connected.
+        mAsyncDatabase.query(new AsyncDatabase.Query<ConnectCredentials>() {
+            @Override
+            public ConnectCredentials run(PlumbleDatabase database) {
+                database.getPinnedChannels(server.getId());
+                ConnectCredentials credentials = new ConnectCredentials();
+                credentials.accessTokens = new ArrayList<String>(database.getAccessTokens(server.getId()));
+                credentials.certificate = mSettings.getCertificate();
+                return credentials;
+            }
+        }, new AsyncDatabase.Callback<ConnectCredentials>() {
+            @Override
+            public void onResult(ConnectCredentials credentials) {
+                startConnectService(server, credentials.accessTokens, credentials.certificate);
+            }
+        });
+    }
+
+    /**
+     * The parts of a connection read off the main thread.
+     */
+    private static class ConnectCredentials {
+        ArrayList<String> accessTokens;
+        byte[] certificate;
+    }
+
+    /**
+     * Starts the service, connecting to the given server.
+     */
+    private void startConnectService(Server server, ArrayList<String> accessTokens, byte[] certificate) {
+
         /* Convert input method defined in settings to an integer format used by Jumble. */
         int inputMethod = 0;
         String prefInputMethod = mSettings.getInputMethod();
@@ -647,16 +722,15 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         connectIntent.putExtra(JumbleService.EXTRAS_TRANSMIT_MODE, inputMethod);
         connectIntent.putExtra(JumbleService.EXTRAS_DETECTION_THRESHOLD, mSettings.getDetectionThreshold());
         connectIntent.putExtra(JumbleService.EXTRAS_AMPLITUDE_BOOST, mSettings.getAmplitudeBoostMultiplier());
-        connectIntent.putExtra(JumbleService.EXTRAS_CERTIFICATE, mSettings.getCertificate());
+        connectIntent.putExtra(JumbleService.EXTRAS_CERTIFICATE, certificate);
         connectIntent.putExtra(JumbleService.EXTRAS_CERTIFICATE_PASSWORD, mSettings.getCertificatePassword());
-        connectIntent.putExtra(JumbleService.EXTRAS_AUTO_RECONNECT, mSettings.isAutoReconnectEnabled());
-        connectIntent.putExtra(JumbleService.EXTRAS_AUTO_RECONNECT_DELAY, RECONNECT_DELAY);
+        connectIntent.putExtra(JumbleService.EXTRAS_AUTO_RECONNECT, false); // PlumbleService reconnects with backoff.
         connectIntent.putExtra(JumbleService.EXTRAS_USE_OPUS, !mSettings.isOpusDisabled());
         connectIntent.putExtra(JumbleService.EXTRAS_INPUT_RATE, mSettings.getInputSampleRate());
         connectIntent.putExtra(JumbleService.EXTRAS_INPUT_QUALITY, mSettings.getInputQuality());
         connectIntent.putExtra(JumbleService.EXTRAS_FORCE_TCP, mSettings.isTcpForced());
         connectIntent.putExtra(JumbleService.EXTRAS_USE_TOR, mSettings.isTorEnabled());
-        connectIntent.putStringArrayListExtra(JumbleService.EXTRAS_ACCESS_TOKENS, (ArrayList<String>) mDatabase.getAccessTokens(server.getId()));
+        connectIntent.putStringArrayListExtra(JumbleService.EXTRAS_ACCESS_TOKENS, accessTokens);
         connectIntent.putExtra(JumbleService.EXTRAS_AUDIO_SOURCE, audioSource);
         connectIntent.putExtra(JumbleService.EXTRAS_AUDIO_STREAM, audioStream);
         connectIntent.putExtra(JumbleService.EXTRAS_FRAMES_PER_PACKET, mSettings.getFramesPerPacket());
@@ -708,11 +782,21 @@ public class PlumbleActivity extends ActionBarActivity implements ListView.OnIte
         return mService;
     }
 
+    @Override
+    public ServerModelMirror getModelMirror() {
+        return mModelMirror;
+    }
+
     @Override
     public PlumbleDatabase getDatabase() {
         return mDatabase;
     }
 
+    @Override
+    public AsyncDatabase getAsyncDatabase() {
+        return mAsyncDatabase;
+    }
+
     @Override
     public void addServiceFragment(JumbleServiceFragment fragment) {
         mServiceFragments.add(fragment);
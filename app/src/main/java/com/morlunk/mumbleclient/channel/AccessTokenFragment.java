@@ -37,7 +37,9 @@ import android.widget.TextView.OnEditorActionListener;
 
 import com.morlunk.mumbleclient.Constants;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.db.PlumbleDatabase;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
 
 import java.util.ArrayList;
@@ -62,7 +64,7 @@ public class AccessTokenFragment extends JumbleServiceFragment {
 	public void onAttach(Activity activity) {
 		super.onAttach(activity);
 
-        mTokens = new ArrayList<String>(getAccessTokens());
+        mTokens = new ArrayList<String>();
         mTokenAdapter = new TokenAdapter(activity, mTokens);
 
         try {
@@ -70,6 +72,20 @@ public class AccessTokenFragment extends JumbleServiceFragment {
         } catch (ClassCastException e) {
             throw new ClassCastException(activity.toString() + " must implement DatabaseProvider");
         }
+
+        final long serverId = getServerId();
+        mProvider.getAsyncDatabase().query(new AsyncDatabase.Query<List<String>>() {
+            @Override
+            public List<String> run(PlumbleDatabase database) {
+                return database.getAccessTokens(serverId);
+            }
+        }, new AsyncDatabase.Callback<List<String>>() {
+            @Override
+            public void onResult(List<String> result) {
+                mTokens.addAll(0, result); // Keep any tokens added while loading after the stored ones
+                mTokenAdapter.notifyDataSetChanged();
+            }
+        });
 	}
 	
 	@Override
@@ -119,7 +135,7 @@ public class AccessTokenFragment extends JumbleServiceFragment {
 		mTokenAdapter.notifyDataSetChanged();
 
 		mTokenList.smoothScrollToPosition(mTokens.size() - 1);
-        mProvider.getDatabase().addAccessToken(getServerId(), tokenText);
+        addAccessToken(getServerId(), tokenText);
         try {
             getService().sendAccessTokens(mTokens);
         } catch (RemoteException e) {
@@ -131,8 +147,22 @@ public class AccessTokenFragment extends JumbleServiceFragment {
         return getArguments().getLong("server");
     }
 
-    private List<String> getAccessTokens() {
-        return getArguments().getStringArrayList("access_tokens");
+    private void addAccessToken(final long serverId, final String token) {
+        mProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+            @Override
+            public void run(PlumbleDatabase database) {
+                database.addAccessToken(serverId, token);
+            }
+        });
+    }
+
+    private void removeAccessToken(final long serverId, final String token) {
+        mProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+            @Override
+            public void run(PlumbleDatabase database) {
+                database.removeAccessToken(serverId, token);
+            }
+        });
     }
 	
 	private class TokenAdapter extends ArrayAdapter<String> {
@@ -161,7 +191,7 @@ public class AccessTokenFragment extends JumbleServiceFragment {
 				public void onClick(View v) {
                     mTokens.remove(position);
 					notifyDataSetChanged();
-                    mProvider.getDatabase().removeAccessToken(getServerId(), token);
+                    removeAccessToken(getServerId(), token);
                     try {
                         getService().sendAccessTokens(mTokens);
                     } catch (RemoteException e) {
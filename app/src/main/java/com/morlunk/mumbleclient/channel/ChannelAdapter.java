@@ -18,7 +18,6 @@
 package com.morlunk.mumbleclient.channel;
 
 import android.content.Context;
-import android.os.RemoteException;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -26,10 +25,10 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.morlunk.jumble.IJumbleService;
 import com.morlunk.jumble.model.Channel;
 import com.morlunk.jumble.model.User;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.util.ServerModelMirror;
 
 /**
  * Simple adapter to display the users in a single channel.
@@ -38,33 +37,36 @@ import com.morlunk.mumbleclient.R;
 public class ChannelAdapter extends BaseAdapter {
 
     private Context mContext;
-    private IJumbleService mService;
+    private ServerModelMirror mModelMirror;
     private Channel mChannel;
 
-    public ChannelAdapter(Context context, IJumbleService service, Channel channel) {
+    public ChannelAdapter(Context context, ServerModelMirror modelMirror, Channel channel) {
         mContext = context;
-        mService = service;
+        mModelMirror = modelMirror;
         mChannel = channel;
     }
 
+    /**
+     * @return The mirror's latest copy of the channel, or the last one set if it's no longer mirrored.
+     */
+    private Channel getCurrentChannel() {
+        Channel channel = mModelMirror.getChannel(mChannel.getId());
+        return channel != null ? channel : mChannel;
+    }
+
     @Override
     public int getCount() {
-        return mChannel.getUsers().size();
+        return getCurrentChannel().getUsers().size();
     }
 
     @Override
     public Object getItem(int position) {
-        try {
-            return mService.getUser(mChannel.getUsers().get(position));
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return mModelMirror.getUser(getCurrentChannel().getUsers().get(position));
     }
 
     @Override
     public long getItemId(int position) {
-        return mChannel.getUsers().get(position);
+        return getCurrentChannel().getUsers().get(position);
     }
 
     @Override
@@ -75,6 +77,14 @@ public class ChannelAdapter extends BaseAdapter {
             v = layoutInflater.inflate(R.layout.overlay_user_row, parent, false);
         }
         User user = (User) getItem(position);
+        refreshUserView(v, user);
+        return v;
+    }
+
+    /**
+     * Binds the user's name and state to an existing row view.
+     */
+    public void refreshUserView(View v, User user) {
         TextView titleView = (TextView) v.findViewById(R.id.userRowName);
         titleView.setText(user.getName());
 
@@ -94,8 +104,6 @@ public class ChannelAdapter extends BaseAdapter {
             state.setImageResource(R.drawable.ic_talking_on);
         else
             state.setImageResource(R.drawable.ic_talking_off);
-
-        return v;
     }
 
     public void setChannel(Channel channel) {
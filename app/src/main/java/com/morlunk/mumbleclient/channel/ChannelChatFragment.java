@@ -18,12 +18,17 @@
 package com.morlunk.mumbleclient.channel;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.widget.SearchView;
 import android.text.Editable;
 import android.text.Html;
 import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.text.method.LinkMovementMethod;
 import android.view.Gravity;
 import android.view.KeyEvent;
@@ -34,6 +39,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -41,25 +47,36 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
+import android.widget.Toast;
 
 import com.morlunk.jumble.IJumbleObserver;
 import com.morlunk.jumble.IJumbleService;
-import com.morlunk.jumble.model.Channel;
 import com.morlunk.jumble.model.Message;
-import com.morlunk.jumble.model.User;
+import com.morlunk.jumble.model.Server;
 import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
+import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.db.PlumbleChatArchive;
+import com.morlunk.mumbleclient.db.PlumbleDatabase;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
 import com.morlunk.mumbleclient.util.MumbleImageGetter;
+import com.morlunk.mumbleclient.util.ServerModelMirror;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ChannelChatFragment extends JumbleServiceFragment implements ChatTargetProvider.OnChatTargetSelectedListener {
     private static final Pattern LINK_PATTERN = Pattern.compile("(https?://\\S+)");
-    private static final String CHAT_DATE_FORMAT = "%I:%M %p";
+    /** The number of messages to keep in memory before moving the oldest to the scrollback. */
+    private static final int MAX_MESSAGES = 200;
+    /** The number of messages to load from the scrollback at a time. */
+    private static final int SCROLLBACK_PAGE_SIZE = 50;
+    /** The maximum number of archived messages to show for a search. */
+    private static final int MAX_SEARCH_RESULTS = 100;
 
 	private IJumbleObserver mServiceObserver = new JumbleObserver() {
 
@@ -74,6 +91,10 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
 	private EditText mChatTextEdit;
 	private ImageButton mSendButton;
     private ChatTargetProvider mTargetProvider;
+    private DatabaseProvider mDatabaseProvider;
+    /** The number of messages in the scrollback, as of the last queued read or write. */
+    private int mScrollbackCount;
+    private boolean mLoadingScrollback;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -89,6 +110,11 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         } catch (ClassCastException e) {
             throw new ClassCastException(getParentFragment().toString()+" must implement ChatTargetProvider");
         }
+        try {
+            mDatabaseProvider = (DatabaseProvider) activity;
+        } catch (ClassCastException e) {
+            throw new ClassCastException(activity.toString()+" must implement DatabaseProvider");
+        }
     }
 
     @Override
@@ -108,6 +134,16 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
 			Bundle savedInstanceState) {
 		View view = inflater.inflate(R.layout.fragment_chat, container, false);
         mChatList = (ListView) view.findViewById(R.id.chat_list);
+        mChatList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if(firstVisibleItem == 0 && totalItemCount > 0) loadScrollback();
+            }
+        });
 		mChatTextEdit = (EditText) view.findViewById(R.id.chatTextEdit);
 		
 		mSendButton = (ImageButton) view.findViewById(R.id.chatTextSend);
@@ -164,6 +200,23 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.fragment_chat, menu);
+
+        final MenuItem searchItem = menu.findItem(R.id.menu_search_chat);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.chat_search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                MenuItemCompat.collapseActionView(searchItem);
+                searchArchive(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
     }
 
     @Override
@@ -181,21 +234,95 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
      * @param message The message to add.
      * @param scroll Whether to scroll to the bottom after adding the message.
      */
-    public void addChatMessage(Message message, boolean scroll) {
+    public void addChatMessage(final Message message, final boolean scroll) {
 		if(mChatAdapter == null) return;
 
-        mChatAdapter.add(message);
-
-        if(scroll) {
-            mChatList.post(new Runnable() {
+        // Parse the message off the main thread before the list binds it.
+        final ChannelChatAdapter adapter = mChatAdapter;
+        adapter.getRenderer().prerender(message, new Runnable() {
+            @Override
+            public void run() {
+                if(adapter != mChatAdapter) return; // Rebound since the message was logged
+                adapter.add(message);
+                trimMessages();
+                if(scroll) scrollToBottom();
+            }
+        });
+	}
 
-                @Override
-                public void run() {
-                    mChatList.smoothScrollToPosition(mChatAdapter.getCount() - 1);
-                }
-            });
+    /**
+     * Moves the oldest messages to the scrollback once there are more than {@link #MAX_MESSAGES}
+     * in memory. Nothing is moved while the user is reading the messages that would be moved.
+     */
+    private void trimMessages() {
+        int excess = mChatAdapter.getCount() - MAX_MESSAGES;
+        int firstPosition = mChatList.getFirstVisiblePosition();
+        if(excess <= 0 || firstPosition < excess) return;
+
+        View firstView = mChatList.getChildAt(0);
+        int offset = firstView != null ? firstView.getTop() : 0;
+        final List<Message> trimmed = new ArrayList<Message>(excess);
+        mChatAdapter.setNotifyOnChange(false);
+        for(int x=0;x<excess;x++) {
+            Message message = mChatAdapter.getItem(0);
+            trimmed.add(message);
+            mChatAdapter.remove(message);
         }
-	}
+        mChatAdapter.notifyDataSetChanged();
+        mChatList.setSelectionFromTop(firstPosition - excess, offset);
+
+        mScrollbackCount += trimmed.size();
+        mDatabaseProvider.getAsyncDatabase().updateWithoutNotifying(new AsyncDatabase.Update() {
+            @Override
+            public void run(PlumbleDatabase database) {
+                database.pushChatScrollback(trimmed);
+            }
+        });
+    }
+
+    /**
+     * Loads the most recent page of the scrollback above the messages in memory.
+     */
+    private void loadScrollback() {
+        if(mChatAdapter == null || mLoadingScrollback || mScrollbackCount == 0) return;
+        mLoadingScrollback = true;
+
+        final ChannelChatAdapter adapter = mChatAdapter;
+        // Popping removes the page from the scrollback, but no listener shows it, so this is
+        // run as a query.
+        mDatabaseProvider.getAsyncDatabase().query(new AsyncDatabase.Query<List<Message>>() {
+            @Override
+            public List<Message> run(PlumbleDatabase database) {
+                return database.popChatScrollback(SCROLLBACK_PAGE_SIZE);
+            }
+        }, new AsyncDatabase.Callback<List<Message>>() {
+            @Override
+            public void onResult(List<Message> page) {
+                mLoadingScrollback = false;
+                if(adapter != mChatAdapter) return; // Rebound, which resets the scrollback
+                mScrollbackCount = page.isEmpty() ? 0 : Math.max(0, mScrollbackCount - page.size());
+
+                int firstPosition = mChatList.getFirstVisiblePosition();
+                View firstView = mChatList.getChildAt(0);
+                int offset = firstView != null ? firstView.getTop() : 0;
+                adapter.setNotifyOnChange(false);
+                for(int x=0;x<page.size();x++)
+                    adapter.insert(page.get(x), x);
+                adapter.notifyDataSetChanged();
+                mChatList.setSelectionFromTop(firstPosition + page.size(), offset);
+            }
+        });
+    }
+
+    private void scrollToBottom() {
+        mChatList.post(new Runnable() {
+
+            @Override
+            public void run() {
+                mChatList.smoothScrollToPosition(mChatAdapter.getCount() - 1);
+            }
+        });
+    }
 
 	private void sendMessage(String message) throws RemoteException {
         String formattedMessage = linkifyOutgoingMessage(message);
@@ -219,6 +346,7 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
 	
 	public void clear() {
         mChatAdapter.clear();
+        resetScrollback(Collections.<Message>emptyList());
         try {
             getService().clearMessageLog();
         } catch (RemoteException e) {
@@ -241,7 +369,11 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
     @Override
     public void onServiceBound(IJumbleService service) {
         try {
-            mChatAdapter = new ChannelChatAdapter(getActivity(), service, service.getMessageLog());
+            // Keep only the most recent messages in memory, and start a fresh scrollback with the rest.
+            List<Message> messageLog = service.getMessageLog();
+            int splitIndex = Math.max(0, messageLog.size() - MAX_MESSAGES);
+            resetScrollback(new ArrayList<Message>(messageLog.subList(0, splitIndex)));
+            mChatAdapter = new ChannelChatAdapter(getActivity(), getModelMirror(), messageLog.subList(splitIndex, messageLog.size()));
             mChatList.setAdapter(mChatAdapter);
             mChatList.post(new Runnable() {
                 @Override
@@ -254,6 +386,38 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         }
     }
 
+    /**
+     * Searches the connected server's chat archive, showing the results in a dialog.
+     */
+    private void searchArchive(String query) {
+        if(getService() == null) return;
+        try {
+            Server server = getService().getConnectedServer();
+            if(server == null || server.getId() == -1) {
+                // Public servers are never archived.
+                Toast.makeText(getActivity(), R.string.chat_search_no_results, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            new ChatSearchTask(server.getId()).execute(query);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces the contents of the scrollback with the given messages.
+     */
+    private void resetScrollback(final List<Message> messages) {
+        mScrollbackCount = messages.size();
+        mDatabaseProvider.getAsyncDatabase().updateWithoutNotifying(new AsyncDatabase.Update() {
+            @Override
+            public void run(PlumbleDatabase database) {
+                database.clearChatScrollback();
+                if(!messages.isEmpty()) database.pushChatScrollback(messages);
+            }
+        });
+    }
+
     @Override
     public IJumbleObserver getServiceObserver() {
         return mServiceObserver;
@@ -268,15 +432,66 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
         }
     }
 
+    private class ChatSearchTask extends AsyncTask<String, Void, List<PlumbleChatArchive.ArchivedMessage>> {
+        private final PlumbleChatArchive mArchive = PlumbleChatArchive.getInstance(getActivity());
+        private final long mServerId;
+        private String mQuery;
+
+        public ChatSearchTask(long serverId) {
+            mServerId = serverId;
+        }
+
+        @Override
+        protected List<PlumbleChatArchive.ArchivedMessage> doInBackground(String... params) {
+            mQuery = params[0];
+            return mArchive.search(mServerId, mQuery, MAX_SEARCH_RESULTS);
+        }
+
+        @Override
+        protected void onPostExecute(List<PlumbleChatArchive.ArchivedMessage> messages) {
+            if(!isAdded()) return;
+            if(messages.isEmpty()) {
+                Toast.makeText(getActivity(), R.string.chat_search_no_results, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            CharSequence[] items = new CharSequence[messages.size()];
+            for(int x=0;x<messages.size();x++) {
+                PlumbleChatArchive.ArchivedMessage message = messages.get(x);
+                String time = DateUtils.formatDateTime(getActivity(), message.getReceivedTime(),
+                        DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL);
+                items[x] = time + " - " + message.getActorName() + ": " + Html.fromHtml(message.getBody()).toString();
+            }
+
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle(getString(R.string.chat_search_results, mQuery));
+            builder.setItems(items, null);
+            builder.setPositiveButton(android.R.string.ok, null);
+            builder.show();
+        }
+    }
+
     private static class ChannelChatAdapter extends ArrayAdapter<Message> {
 
         private MumbleImageGetter mImageGetter;
-        private IJumbleService mService;
+        private ChatMessageRenderer mRenderer;
+        private ServerModelMirror mModelMirror;
 
-        public ChannelChatAdapter(Context context, IJumbleService service, List<Message> messages) {
+        public ChannelChatAdapter(Context context, ServerModelMirror modelMirror, List<Message> messages) {
             super(context, 0, new ArrayList<Message>(messages));
-            mService = service;
+            mModelMirror = modelMirror;
             mImageGetter = new MumbleImageGetter(context);
+            mRenderer = new ChatMessageRenderer(context, mImageGetter);
+        }
+
+        public ChatMessageRenderer getRenderer() {
+            return mRenderer;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            mRenderer.clear();
         }
 
         @Override
@@ -284,6 +499,8 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
             View v = convertView;
             if(v == null) {
                 v = LayoutInflater.from(getContext()).inflate(R.layout.list_chat_item, parent, false);
+                TextView messageText = (TextView) v.findViewById(R.id.list_chat_item_text);
+                messageText.setMovementMethod(LinkMovementMethod.getInstance());
             }
 
             LinearLayout chatBox = (LinearLayout) v.findViewById(R.id.list_chat_item_box);
@@ -292,33 +509,17 @@ public class ChannelChatFragment extends JumbleServiceFragment implements ChatTa
             TextView timeText = (TextView) v.findViewById(R.id.list_chat_item_time);
 
             Message message = getItem(position);
-            String targetMessage = null;
-            boolean selfAuthored = false;
-            try {
-                selfAuthored = message.getActor() == mService.getSession();
-
-                if((message.getChannels() != null && !message.getChannels().isEmpty()) || (message.getTrees() != null && !message.getTrees().isEmpty())) {
-                    Channel currentChannel = message.getChannels().get(0);
-                    targetMessage = getContext().getString(R.string.chat_message_to, message.getActorName(), currentChannel.getName());
-                } else if(message.getUsers() != null && !message.getUsers().isEmpty()) {
-                    User user = message.getUsers().get(0);
-                    targetMessage = getContext().getString(R.string.chat_message_to, message.getActorName(), user.getName());
-                } else {
-                    targetMessage = message.getActorName();
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+            ChatMessageRenderer.RenderedMessage rendered = mRenderer.get(message);
+            boolean selfAuthored = message.getActor() == mModelMirror.getSession();
 
             int gravity = selfAuthored ? Gravity.RIGHT : Gravity.LEFT;
 
             chatBox.setGravity(gravity);
             targetText.setVisibility(message.getType() == Message.Type.TEXT_MESSAGE ? View.VISIBLE : View.GONE);
-            targetText.setText(targetMessage);
-            messageText.setText(Html.fromHtml(message.getMessage(), mImageGetter, null));
-            messageText.setMovementMethod(LinkMovementMethod.getInstance());
+            targetText.setText(rendered.getHeader());
+            mImageGetter.setText(messageText, rendered.getBody());
             messageText.setGravity(gravity);
-            timeText.setText(message.getReceivedTime().format(CHAT_DATE_FORMAT));
+            timeText.setText(rendered.getTime());
 
             return v;
         }
@@ -23,6 +23,7 @@ import android.graphics.Typeface;
 import android.os.RemoteException;
 import android.util.DisplayMetrics;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,11 +31,15 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.google.common.base.Charsets;
 import com.morlunk.jumble.IJumbleService;
 import com.morlunk.jumble.model.Channel;
+import com.morlunk.jumble.model.Server;
 import com.morlunk.jumble.model.User;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
 import com.morlunk.mumbleclient.db.PlumbleDatabase;
+import com.morlunk.mumbleclient.util.ServerModelMirror;
 import com.morlunk.mumbleclient.view.PlumbleNestedAdapter;
 import com.morlunk.mumbleclient.view.PlumbleNestedListView;
 
@@ -54,71 +59,289 @@ public class ChannelListAdapter extends PlumbleNestedAdapter<Channel, User> {
     }
 
     private IJumbleService mService;
+    private ServerModelMirror mModelMirror;
     private PlumbleNestedListView mListView;
     private ChannelMenuListener mMenuListener;
-    private PlumbleDatabase mDatabase;
+    private AsyncDatabase mDatabase;
+    /** Incremented for each pinned channel query, so that only the latest result is applied. */
+    private int mPinnedQueryGeneration;
 
     private SparseArray<Channel> mChannels = new SparseArray<Channel>();
     private SparseArray<User> mUsers = new SparseArray<User>();
     private List<Integer> mRootChannels = new ArrayList<Integer>();
+    /** Whether each user's current comment has been seen, by session. Filled in asynchronously. */
+    private SparseBooleanArray mCommentsSeen = new SparseBooleanArray();
+    /** Public servers aren't saved, so comments seen on them aren't tracked. */
+    private boolean mTrackComments;
 
     private boolean mShowPinnedOnly;
 
-    public ChannelListAdapter(Context context, PlumbleNestedListView listView, IJumbleService service, PlumbleDatabase database, boolean showPinnedOnly) {
+    public ChannelListAdapter(Context context, PlumbleNestedListView listView, IJumbleService service, ServerModelMirror modelMirror, AsyncDatabase database, boolean showPinnedOnly) {
         super(context);
         mService = service;
+        mModelMirror = modelMirror;
         mDatabase = database;
         mListView = listView;
         mShowPinnedOnly = showPinnedOnly;
     }
 
     /**
-     * Fetches a new list of channels from the service.
+     * Fetches a new list of channels from the model mirror, or the service if the mirror isn't ready.
+     * When showing pinned channels, the pins are read from the database in the background and the
+     * list refreshes again once they arrive.
      */
     public void updateChannelList() throws RemoteException {
         if(!mService.isConnected()) return;
 
         mChannels.clear();
         mUsers.clear();
+        mCommentsSeen.clear();
+        Server server = mService.getConnectedServer();
+        mTrackComments = server != null && server.getId() != -1;
 
-        List<Channel> channels = mService.getChannelList();
-        List<User> users = mService.getUserList();
-        mRootChannels = new ArrayList<Integer>();
-
+        boolean mirrored = mModelMirror.isSeeded();
+        List<Channel> channels = mirrored ? mModelMirror.getChannelList() : mService.getChannelList();
+        List<User> users = mirrored ? mModelMirror.getUserList() : mService.getUserList();
         if(mShowPinnedOnly) {
-            mRootChannels = mDatabase.getPinnedChannels(mService.getConnectedServer().getId());
+            final long serverId = server.getId();
+            final int generation = ++mPinnedQueryGeneration;
+            mDatabase.query(new AsyncDatabase.Query<List<Integer>>() {
+                @Override
+                public List<Integer> run(PlumbleDatabase database) {
+                    return database.getPinnedChannels(serverId);
+                }
+            }, new AsyncDatabase.Callback<List<Integer>>() {
+                @Override
+                public void onResult(List<Integer> result) {
+                    if(generation != mPinnedQueryGeneration) return;
+                    mRootChannels = result;
+                    notifyDataSetChanged();
+                }
+            });
         } else {
+            mRootChannels = new ArrayList<Integer>();
             mRootChannels.add(0);
         }
 
         for(Channel channel : channels)
             mChannels.put(channel.getId(), channel);
-        for(User user : users)
+        for(User user : users) {
             mUsers.put(user.getSession(), user);
+            queryCommentSeen(user);
+        }
+    }
+
+    /**
+     * Adds a newly connected user to the hierarchy without refetching the channel list.
+     */
+    public void addUser(User user) throws RemoteException {
+        Channel channel = getChannel(user.getChannelId());
+        if(channel == null) return;
+        mUsers.put(user.getSession(), user);
+        mChannels.put(channel.getId(), channel);
+        refreshParentChannels(channel.getId());
+        queryCommentSeen(user);
+
+        int position = channel.getUsers().indexOf(user.getSession());
+        if(position >= 0)
+            notifyChildMoved(user.getSession(), channel.getId(), position);
+    }
+
+    /**
+     * Moves a user between channels without refetching the channel list.
+     * Only the two channels involved and their parents are updated.
+     */
+    public void moveUser(User user, Channel newChannel, Channel oldChannel) throws RemoteException {
+        mUsers.put(user.getSession(), user);
+        mChannels.put(newChannel.getId(), newChannel);
+        refreshParentChannels(newChannel.getId());
+        if(oldChannel != null) {
+            mChannels.put(oldChannel.getId(), oldChannel);
+            refreshParentChannels(oldChannel.getId());
+        }
+
+        int position = newChannel.getUsers().indexOf(user.getSession());
+        if(position >= 0)
+            notifyChildMoved(user.getSession(), newChannel.getId(), position);
+        else
+            notifyChildRemoved(user.getSession());
+    }
+
+    /**
+     * Removes a disconnected user from the hierarchy without refetching the channel list.
+     */
+    public void removeUser(User user) throws RemoteException {
+        Channel channel = getChannel(user.getChannelId());
+        if(channel != null) {
+            mChannels.put(channel.getId(), channel);
+            refreshParentChannels(channel.getId());
+        }
+        notifyChildRemoved(user.getSession());
+        mUsers.remove(user.getSession());
+        mCommentsSeen.delete(user.getSession());
+    }
+
+    /**
+     * Adds a newly created channel to the hierarchy without refetching the channel list.
+     */
+    public void addChannel(Channel channel) throws RemoteException {
+        mChannels.put(channel.getId(), channel);
+        if(mShowPinnedOnly) return; // New channels can't be pinned yet
+
+        Channel parent = getChannel(channel.getParent());
+        if(parent == null) return;
+        mChannels.put(parent.getId(), parent);
+
+        int position = parent.getSubchannels().indexOf(channel.getId());
+        if(position >= 0 && getFlatGroupPosition(channel.getId()) < 0)
+            notifyGroupInserted(parent.getId(), position);
+    }
+
+    /**
+     * Removes a channel and its contents from the hierarchy without refetching the channel list.
+     */
+    public void removeChannel(Channel channel) throws RemoteException {
+        int parentId = getParentGroupId(channel.getId());
+        if(parentId >= 0) {
+            Channel parent = getChannel(parentId);
+            if(parent != null) mChannels.put(parentId, parent);
+        }
+        mRootChannels.remove(Integer.valueOf(channel.getId()));
+        notifyGroupRemoved(channel.getId());
+        mChannels.remove(channel.getId());
+    }
+
+    /**
+     * Updates a channel's state, only restructuring the hierarchy if the channel has been moved.
+     */
+    public void updateChannel(Channel channel) throws RemoteException {
+        int oldParentId = getParentGroupId(channel.getId());
+        Channel oldParent = oldParentId >= 0 ? mChannels.get(oldParentId) : null;
+        int oldPosition = oldParent != null ? oldParent.getSubchannels().indexOf(channel.getId()) : -1;
+        mChannels.put(channel.getId(), channel);
+
+        if(!mShowPinnedOnly && oldParent != null && channel.getParent() >= 0) {
+            Channel parent = getChannel(channel.getParent());
+            if(parent == null) return;
+            mChannels.put(parent.getId(), parent);
+
+            int position = parent.getSubchannels().indexOf(channel.getId());
+            if(parent.getId() != oldParentId || position != oldPosition) {
+                if(parent.getId() != oldParentId) {
+                    Channel refreshedOldParent = getChannel(oldParentId);
+                    if(refreshedOldParent != null) mChannels.put(oldParentId, refreshedOldParent);
+                    refreshParentChannels(oldParentId);
+                }
+                notifyGroupRemoved(channel.getId());
+                notifyGroupInserted(parent.getId(), position);
+                refreshParentChannels(channel.getId());
+                return;
+            }
+        }
+        notifyContentChanged();
+    }
+
+    /**
+     * Refetches the parents of the given channel, whose subchannel user counts may have changed.
+     * Without a seeded model mirror, this costs one remote call per level of depth.
+     */
+    private void refreshParentChannels(int channelId) throws RemoteException {
+        for(int parentId = getParentGroupId(channelId); parentId >= 0; parentId = getParentGroupId(parentId)) {
+            Channel parent = getChannel(parentId);
+            if(parent != null) mChannels.put(parentId, parent);
+        }
+    }
+
+    /**
+     * Reads a channel from the model mirror, falling back to the service until it is seeded.
+     */
+    private Channel getChannel(int channelId) throws RemoteException {
+        return mModelMirror.isSeeded() ? mModelMirror.getChannel(channelId) : mService.getChannel(channelId);
     }
 
     public void refreshUser(User user) throws RemoteException {
+        // The comment may have changed.
+        queryCommentSeen(user);
+        rebindUser(user);
+    }
+
+    private void rebindUser(User user) {
         int position = getVisibleFlatChildPosition(user.getSession());
         if(position < 0)
             return;
 
         View userView = mListView.getChildAt(position - mListView.getFirstVisiblePosition());
 
-        // Update comment state TODO reimplement
-//        if (user.getComment() != null
-//                || user.getCommentHash() != null
-//                && !service.isConnectedServerPublic()) {
-//            commentsSeen.put(user, database.isCommentSeen(
-//                    user.name,
-//                    user.commentHash != null ? user.commentHash
-//                            .toStringUtf8() : user.comment));
-//        }
-
         if (userView != null && userView.isShown() && userView.getTag() != null && userView.getTag().equals(user))
             refreshElements(userView, user);
     }
 
+    /**
+     * Looks up whether the user's current comment has been seen, then rebinds their row.
+     * Comments are shown as unseen until the result arrives.
+     */
+    private void queryCommentSeen(User user) {
+        final int session = user.getSession();
+        final String hash = user.getHash();
+        final byte[] comment = getCommentKey(user);
+        if(!mTrackComments || comment == null || hash == null || hash.isEmpty()) {
+            mCommentsSeen.delete(session);
+            return;
+        }
+        mDatabase.query(new AsyncDatabase.Query<Boolean>() {
+            @Override
+            public Boolean run(PlumbleDatabase database) {
+                return database.isCommentSeen(hash, comment);
+            }
+        }, new AsyncDatabase.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean seen) {
+                User user = mUsers.get(session);
+                if(user == null) return; // Disconnected or list refetched
+                mCommentsSeen.put(session, seen);
+                rebindUser(user);
+            }
+        });
+    }
+
+    /**
+     * Marks the user's current comment as seen, and updates their row.
+     */
+    public void markCommentSeen(User user) {
+        final String hash = user.getHash();
+        final byte[] comment = getCommentKey(user);
+        if(!mTrackComments || comment == null || hash == null || hash.isEmpty()) return;
+        mCommentsSeen.put(user.getSession(), true);
+        rebindUser(user);
+        mDatabase.update(new AsyncDatabase.Update() {
+            @Override
+            public void run(PlumbleDatabase database) {
+                database.markCommentSeen(hash, comment);
+            }
+        });
+    }
+
+    private static boolean hasComment(User user) {
+        return (user.getCommentHash() != null && !user.getCommentHash().isEmpty())
+                || (user.getComment() != null && !user.getComment().isEmpty());
+    }
+
+    /**
+     * @return The key the user's comment is stored as seen under: its hash if the server sent one,
+     * otherwise its text. Null if the user has no comment.
+     */
+    private static byte[] getCommentKey(User user) {
+        if(user.getCommentHash() != null && !user.getCommentHash().isEmpty())
+            return user.getCommentHash().toByteArray();
+        if(user.getComment() != null && !user.getComment().isEmpty())
+            return user.getComment().getBytes(Charsets.UTF_8);
+        return null;
+    }
+
     public void refreshTalkingState(User user) {
+        if(mUsers.get(user.getSession()) != null)
+            mUsers.put(user.getSession(), user); // Keep rebinds from reverting to a stale state
+
         int position = getVisibleFlatChildPosition(user.getSession());
         if(position < 0)
             return;
@@ -134,11 +357,11 @@ public class ChannelListAdapter extends PlumbleNestedAdapter<Channel, User> {
         TextView name = (TextView) view.findViewById(R.id.userRowName);
 
         name.setText(user.getName());
-        try {
-            name.setTypeface(null, user.getSession() == mService.getSession() ? Typeface.BOLD : Typeface.NORMAL);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+        name.setTypeface(null, user.getSession() == mModelMirror.getSession() ? Typeface.BOLD : Typeface.NORMAL);
+
+        ImageView comment = (ImageView) view.findViewById(R.id.userRowComment);
+        comment.setVisibility(hasComment(user) ? View.VISIBLE : View.GONE);
+        comment.setImageResource(mCommentsSeen.get(user.getSession()) ? R.drawable.ic_comment_seen : R.drawable.ic_comment);
 
         refreshTalkingState(view, user);
     }
@@ -34,6 +34,7 @@ import android.support.v4.app.Fragment;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.PopupMenu;
 import android.support.v7.widget.SearchView;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -50,15 +51,19 @@ import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.jumble.net.Permissions;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.channel.comment.ChannelDescriptionFragment;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.db.PlumbleDatabase;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
+import com.morlunk.mumbleclient.util.TalkStateAggregator;
 import com.morlunk.mumbleclient.view.PlumbleNestedListView;
 import com.morlunk.mumbleclient.view.PlumbleNestedListView.OnNestedChildClickListener;
 import com.morlunk.mumbleclient.view.PlumbleNestedListView.OnNestedGroupClickListener;
 
 public class ChannelListFragment extends JumbleServiceFragment implements OnNestedChildClickListener, OnNestedGroupClickListener, ChannelListAdapter.ChannelMenuListener {
 
-	private IJumbleObserver mServiceObserver = new JumbleObserver() {
+    /** Registered with the model mirror, so the adapter can read the mirror's updated state. */
+	private IJumbleObserver mModelObserver = new JumbleObserver() {
         @Override
         public void onDisconnected() throws RemoteException {
             mChannelView.setAdapter(null);
@@ -66,7 +71,7 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
 
         @Override
         public void onUserJoinedChannel(User user, Channel newChannel, Channel oldChannel) throws RemoteException {
-            updateChannelList();
+            mChannelListAdapter.moveUser(user, newChannel, oldChannel);
             if(getService().getSession() == user.getSession()) {
                 scrollToChannel(newChannel.getId());
             }
@@ -74,12 +79,12 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
 
         @Override
 		public void onChannelAdded(Channel channel) throws RemoteException {
-			updateChannelList();
+			mChannelListAdapter.addChannel(channel);
 		}
 
 		@Override
 		public void onChannelRemoved(Channel channel) throws RemoteException {
-			updateChannelList();
+			mChannelListAdapter.removeChannel(channel);
 		}
 
         @Override
@@ -89,7 +94,7 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
 
         @Override
         public void onUserConnected(User user) throws RemoteException {
-            updateChannelList();
+            mChannelListAdapter.addUser(user);
         }
 
         @Override
@@ -104,10 +109,19 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
 
         @Override
         public void onUserTalkStateUpdated(User user) throws RemoteException {
-            updateUserTalking(user);
+            mTalkStateAggregator.post(user);
         }
 	};
 
+    private TalkStateAggregator mTalkStateAggregator = new TalkStateAggregator(new TalkStateAggregator.TalkStateListener() {
+        @Override
+        public void onTalkStatesUpdated(SparseArray<User> users) {
+            if(mChannelListAdapter == null) return;
+            for(int x=0;x<users.size();x++)
+                updateUserTalking(users.valueAt(x));
+        }
+    });
+
     private BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -121,6 +135,21 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
     private ChatTargetProvider mTargetProvider;
     private DatabaseProvider mDatabaseProvider;
 
+    /**
+     * Refreshes the pinned channel list when pins change.
+     */
+    private AsyncDatabase.OnDatabaseChangedListener mDatabaseListener = new AsyncDatabase.OnDatabaseChangedListener() {
+        @Override
+        public void onDatabaseChanged() {
+            if(mChannelListAdapter == null || !isShowingPinnedChannels() || getService() == null) return;
+            try {
+                updateChannelList();
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -160,17 +189,20 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
         super.onActivityCreated(savedInstanceState);
         registerForContextMenu(mChannelView);
         getActivity().registerReceiver(mBluetoothReceiver, new IntentFilter(AudioManager.ACTION_SCO_AUDIO_STATE_CHANGED));
+        mDatabaseProvider.getAsyncDatabase().registerListener(mDatabaseListener);
     }
 
     @Override
     public void onDetach() {
+        mDatabaseProvider.getAsyncDatabase().unregisterListener(mDatabaseListener);
+        mTalkStateAggregator.cancel();
         getActivity().unregisterReceiver(mBluetoothReceiver);
         super.onDetach();
     }
 
     @Override
-    public IJumbleObserver getServiceObserver() {
-        return mServiceObserver;
+    public IJumbleObserver getModelObserver() {
+        return mModelObserver;
     }
 
     @Override
@@ -309,7 +341,7 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
     }
 
     private void setupChannelList() throws RemoteException {
-        mChannelListAdapter = new ChannelListAdapter(getActivity(), mChannelView, getService(), mDatabaseProvider.getDatabase(), isShowingPinnedChannels());
+        mChannelListAdapter = new ChannelListAdapter(getActivity(), mChannelView, getService(), getModelMirror(), mDatabaseProvider.getAsyncDatabase(), isShowingPinnedChannels());
         mChannelListAdapter.setChannelMenuListener(this);
         mChannelView.setAdapter(mChannelListAdapter);
 		updateChannelList();
@@ -325,13 +357,7 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
 	}
 
 	public void updateChannel(Channel channel) throws RemoteException {
-		if(channel.getDescription() != null || channel.getDescriptionHash() != null) {
-//          TODO reimplement comment caching
-//			mChannelListAdapter.commentsSeen.put(channel, mChannelListAdapter.database.isCommentSeen(
-//				channel.getName(),
-//				channel.getDescriptionHash() != null ? new String(channel.getDescriptionHash()) : channel.getDescription()));
-		}
-		updateChannelList();
+		mChannelListAdapter.updateChannel(channel);
 	}
 
 	public void updateUserTalking(User user) {
@@ -343,8 +369,8 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
 	 *
 	 * @param user
 	 */
-	public void removeUser(User user) {
-        mChannelListAdapter.notifyDataSetChanged();
+	public void removeUser(User user) throws RemoteException {
+        mChannelListAdapter.removeUser(user);
 	}
 
 	/**
@@ -390,8 +416,8 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
     }
 
     @Override
-    public void showChannelMenu(Channel channel, View anchor) {
-        PopupMenu menu = new PopupMenu(getActivity(), anchor);
+    public void showChannelMenu(final Channel channel, final View anchor) {
+        final PopupMenu menu = new PopupMenu(getActivity(), anchor);
         menu.inflate(R.menu.channel_modify_menu);
         // TODO detect permissions
         ChannelPopupMenuListener menuListener = new ChannelPopupMenuListener(channel);
@@ -401,14 +427,6 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
                 mTargetProvider.getChatTarget().getChannel().getId() == channel.getId();
         menu.getMenu().findItem(R.id.menu_channel_send_message).setChecked(targeted);
 
-        try {
-            long serverId = getService().getConnectedServer().getId();
-            boolean pinned = mDatabaseProvider.getDatabase().isChannelPinned(serverId, channel.getId());
-            menu.getMenu().findItem(R.id.menu_channel_pin).setChecked(pinned);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
-
         int permissions = channel.getPermissions();
 
         // This breaks uMurmur ACL. Put in a fix based on server version perhaps?
@@ -417,7 +435,27 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
         menu.getMenu().findItem(R.id.menu_channel_remove).setVisible((permissions & Permissions.Write) > 0);
         menu.getMenu().findItem(R.id.menu_channel_view_description).setVisible(channel.getDescription() != null || channel.getDescriptionHash() != null);
 
-        menu.show();
+        // Show the menu once we know whether the channel is pinned, without reading on this thread.
+        final long serverId;
+        try {
+            serverId = getService().getConnectedServer().getId();
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return;
+        }
+        mDatabaseProvider.getAsyncDatabase().query(new AsyncDatabase.Query<Boolean>() {
+            @Override
+            public Boolean run(PlumbleDatabase database) {
+                return database.isChannelPinned(serverId, channel.getId());
+            }
+        }, new AsyncDatabase.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean pinned) {
+                if(!isAdded() || anchor.getWindowToken() == null) return;
+                menu.getMenu().findItem(R.id.menu_channel_pin).setChecked(pinned);
+                menu.show();
+            }
+        });
     }
 
     /**
@@ -426,6 +464,12 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
     public void showUserMenu(final View view, final User user) {
         try {
             ChannelUserWindow userWindow = ChannelUserWindow.instantiate(getActivity(), getService(), getChildFragmentManager(), user, mTargetProvider);
+            userWindow.setOnCommentViewedListener(new ChannelUserWindow.OnCommentViewedListener() {
+                @Override
+                public void onCommentViewed(User user) {
+                    if(mChannelListAdapter != null) mChannelListAdapter.markCommentSeen(user);
+                }
+            });
             userWindow.showAsDropDown(view);
         } catch (RemoteException e) {
             e.printStackTrace();
@@ -494,10 +538,16 @@ public class ChannelListFragment extends JumbleServiceFragment implements OnNest
                     return true;
                 case R.id.menu_channel_pin:
                     try {
-                        long serverId = getService().getConnectedServer().getId();
-                        boolean pinned = mDatabaseProvider.getDatabase().isChannelPinned(serverId, mChannel.getId());
-                        if(!pinned) mDatabaseProvider.getDatabase().addPinnedChannel(serverId, mChannel.getId());
-                        else mDatabaseProvider.getDatabase().removePinnedChannel(serverId, mChannel.getId());
+                        final long serverId = getService().getConnectedServer().getId();
+                        final int channelId = mChannel.getId();
+                        mDatabaseProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+                            @Override
+                            public void run(PlumbleDatabase database) {
+                                boolean pinned = database.isChannelPinned(serverId, channelId);
+                                if(!pinned) database.addPinnedChannel(serverId, channelId);
+                                else database.removePinnedChannel(serverId, channelId);
+                            }
+                        });
                     } catch (RemoteException e) {
                         e.printStackTrace();
                     }
@@ -60,6 +60,13 @@ import java.util.List;
  * Created by andrew on 27/02/14.
  */
 public class ChannelUserWindow extends PopupWindow implements GridView.OnItemClickListener {
+    public interface OnCommentViewedListener {
+        /**
+         * Called when the user's comment is opened for reading.
+         */
+        public void onCommentViewed(User user);
+    }
+
     public static final int KICK_ID = 0,
             BAN_ID = 1,
             MUTE_ID = 2,
@@ -84,6 +91,7 @@ public class ChannelUserWindow extends PopupWindow implements GridView.OnItemCli
 
     private Animation mSlideInAnimation;
     private Animation mSlideOutAnimation;
+    private OnCommentViewedListener mCommentViewedListener;
 
     // Update menu grid when we receive updated permissions.
     private JumbleObserver mPermissionObserver = new JumbleObserver() {
@@ -344,6 +352,7 @@ public class ChannelUserWindow extends PopupWindow implements GridView.OnItemCli
                     break;
                 case VIEW_COMMENT_ID:
                     showUserComment(false);
+                    if(mCommentViewedListener != null) mCommentViewedListener.onCommentViewed(mUser);
                     break;
                 case RESET_COMMENT_ID:
                     new AlertDialog.Builder(mContext)
@@ -384,6 +393,10 @@ public class ChannelUserWindow extends PopupWindow implements GridView.OnItemCli
         dismiss();
     }
 
+    public void setOnCommentViewedListener(OnCommentViewedListener listener) {
+        mCommentViewedListener = listener;
+    }
+
     private void showUserComment(final boolean edit) {
         Bundle args = new Bundle();
         args.putInt("session", mUser.getSession());
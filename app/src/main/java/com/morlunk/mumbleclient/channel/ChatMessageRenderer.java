@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.channel;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.text.Html;
+import android.text.Spanned;
+
+import com.morlunk.jumble.model.Channel;
+import com.morlunk.jumble.model.Message;
+import com.morlunk.jumble.model.User;
+import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.util.MumbleImageGetter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Parses and formats chat messages for display, caching the result so that rebinding a row
+ * doesn't parse its HTML again. Newly logged messages can be rendered on a background thread
+ * before they are added to the chat list.
+ */
+public class ChatMessageRenderer {
+    /** The maximum number of rendered messages to keep. */
+    private static final int MAX_RENDERED_MESSAGES = 200;
+    private static final String CHAT_DATE_FORMAT = "%I:%M %p";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final MumbleImageGetter mImageGetter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Message, RenderedMessage> mCache = new LruCache<Message, RenderedMessage>(MAX_RENDERED_MESSAGES);
+
+    public ChatMessageRenderer(Context context, MumbleImageGetter imageGetter) {
+        mContext = context;
+        mImageGetter = imageGetter;
+    }
+
+    /**
+     * Renders the message on a background thread, then calls back on the main thread.
+     * Messages are rendered in the order they are passed in.
+     * @param message The message to render.
+     * @param callback Called on the main thread once the message has been rendered.
+     */
+    public void prerender(final Message message, final Runnable callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.put(message, render(message));
+                mHandler.post(callback);
+            }
+        });
+    }
+
+    /**
+     * @return The cached rendering of the message, rendering it on this thread if there isn't one.
+     */
+    public RenderedMessage get(Message message) {
+        RenderedMessage rendered = mCache.get(message);
+        if(rendered == null) {
+            rendered = render(message);
+            mCache.put(message, rendered);
+        }
+        return rendered;
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    private RenderedMessage render(Message message) {
+        String header;
+        if((message.getChannels() != null && !message.getChannels().isEmpty()) || (message.getTrees() != null && !message.getTrees().isEmpty())) {
+            Channel currentChannel = message.getChannels().get(0);
+            header = mContext.getString(R.string.chat_message_to, message.getActorName(), currentChannel.getName());
+        } else if(message.getUsers() != null && !message.getUsers().isEmpty()) {
+            User user = message.getUsers().get(0);
+            header = mContext.getString(R.string.chat_message_to, message.getActorName(), user.getName());
+        } else {
+            header = message.getActorName();
+        }
+
+        Spanned body = Html.fromHtml(message.getMessage(), mImageGetter, null);
+        String time = message.getReceivedTime().format(CHAT_DATE_FORMAT);
+        return new RenderedMessage(header, body, time);
+    }
+
+    public static class RenderedMessage {
+        private final String mHeader;
+        private final Spanned mBody;
+        private final String mTime;
+
+        public RenderedMessage(String header, Spanned body, String time) {
+            mHeader = header;
+            mBody = body;
+            mTime = time;
+        }
+
+        public String getHeader() {
+            return mHeader;
+        }
+
+        public Spanned getBody() {
+            return mBody;
+        }
+
+        public String getTime() {
+            return mTime;
+        }
+    }
+}
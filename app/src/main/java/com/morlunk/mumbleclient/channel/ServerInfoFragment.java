@@ -27,8 +27,12 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.morlunk.jumble.IJumbleService;
+import com.morlunk.jumble.model.Server;
 import com.morlunk.jumble.net.JumbleUDPMessageType;
 import com.morlunk.mumbleclient.R;
+import com.morlunk.mumbleclient.servers.LatencyStats;
+import com.morlunk.mumbleclient.servers.ServerProbe;
+import com.morlunk.mumbleclient.service.ConnectionMetrics;
 import com.morlunk.mumbleclient.util.JumbleServiceFragment;
 
 import java.util.concurrent.Executors;
@@ -42,6 +46,8 @@ import java.util.concurrent.TimeUnit;
 public class ServerInfoFragment extends JumbleServiceFragment {
 
     private static final int POLL_RATE = 1000;
+    /** The delay between probes of the server's UDP ping latency, in milliseconds. */
+    private static final int PROBE_RATE = 10000;
 
     private ScheduledExecutorService mExecutorService = Executors.newSingleThreadScheduledExecutor();
     private Handler mHandler = new Handler(Looper.getMainLooper());
@@ -50,11 +56,26 @@ public class ServerInfoFragment extends JumbleServiceFragment {
     private TextView mOSVersionView;
     private TextView mTCPLatencyView;
     private TextView mUDPLatencyView;
+    private TextView mProbeView;
     private TextView mHostView;
+    private TextView mConnectTimeView;
     private TextView mCodecView;
     private TextView mMaxBandwidthView;
     private TextView mCurrentBandwidthView;
 
+    private Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if(getService() != null && getService().isConnected())
+                    ServerProbe.getInstance().probe(getService().getConnectedServer());
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+            mHandler.postDelayed(this, PROBE_RATE);
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_server_info, container, false);
@@ -62,7 +83,9 @@ public class ServerInfoFragment extends JumbleServiceFragment {
         mOSVersionView = (TextView) view.findViewById(R.id.server_info_os_version);
         mTCPLatencyView = (TextView) view.findViewById(R.id.server_info_tcp_latency);
         mUDPLatencyView = (TextView) view.findViewById(R.id.server_info_udp_latency);
+        mProbeView = (TextView) view.findViewById(R.id.server_info_probe);
         mHostView = (TextView) view.findViewById(R.id.server_info_host);
+        mConnectTimeView = (TextView) view.findViewById(R.id.server_info_connect_time);
         mMaxBandwidthView = (TextView) view.findViewById(R.id.server_info_max_bandwidth);
         mCurrentBandwidthView = (TextView) view.findViewById(R.id.server_info_current_bandwidth);
         mCodecView = (TextView) view.findViewById(R.id.server_info_codec);
@@ -80,7 +103,22 @@ public class ServerInfoFragment extends JumbleServiceFragment {
         mOSVersionView.setText(getString(R.string.server_info_version, getService().getServerOSName(), getService().getServerOSVersion()));
         mTCPLatencyView.setText(getString(R.string.server_info_latency, (float)getService().getTCPLatency()*Math.pow(10, -3)));
         mUDPLatencyView.setText(getString(R.string.server_info_latency, (float)getService().getUDPLatency()*Math.pow(10, -3)));
-        mHostView.setText(getString(R.string.server_info_host, getService().getConnectedServer().getHost(), getService().getConnectedServer().getPort()));
+        Server server = getService().getConnectedServer();
+        mHostView.setText(getString(R.string.server_info_host, server.getHost(), server.getPort()));
+
+        ConnectionMetrics.Sample connectSample = ConnectionMetrics.getInstance().getLastSample(server.getHost(), server.getPort());
+        mConnectTimeView.setVisibility(connectSample != null ? View.VISIBLE : View.GONE);
+        if(connectSample != null)
+            mConnectTimeView.setText(getString(R.string.server_info_connect_time, connectSample.getTimeToSynchronized()));
+
+        LatencyStats stats = ServerProbe.getInstance().getLatestStats(server.getHost(), server.getPort());
+        if(stats == null)
+            mProbeView.setText(R.string.server_info_probe_pending);
+        else if(stats.isUnreachable())
+            mProbeView.setText(R.string.server_info_probe_unreachable);
+        else
+            mProbeView.setText(getString(R.string.server_info_probe, stats.getMedian(), stats.getMin(),
+                    stats.getPercentile95(), stats.getJitter(), (int) (stats.getLoss() * 100)));
 
         String codecName;
         JumbleUDPMessageType codecType = JumbleUDPMessageType.values()[getService().getCodec()];
@@ -124,11 +162,14 @@ public class ServerInfoFragment extends JumbleServiceFragment {
                 });
             }
         }, 0, POLL_RATE, TimeUnit.MILLISECONDS);
+        mHandler.removeCallbacks(mProbeRunnable);
+        mHandler.post(mProbeRunnable);
     }
 
     @Override
     public void onDestroy() {
         mExecutorService.shutdownNow();
+        mHandler.removeCallbacks(mProbeRunnable);
         super.onDestroy();
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.db;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs queries and updates against a {@link PlumbleDatabase} on a dedicated thread, so that the
+ * main thread never touches the disk. Results are delivered on the main thread, and listeners are
+ * told whenever an update completes so that they can refresh.
+ * Queries and updates run one at a time, in the order they were submitted.
+ */
+public class AsyncDatabase {
+
+    public interface Query<T> {
+        /**
+         * Reads from the database. Called on the database thread.
+         */
+        public T run(PlumbleDatabase database);
+    }
+
+    public interface Update {
+        /**
+         * Writes to the database. Called on the database thread.
+         */
+        public void run(PlumbleDatabase database);
+    }
+
+    public interface Callback<T> {
+        /**
+         * Called on the main thread with the result of a query.
+         */
+        public void onResult(T result);
+    }
+
+    public interface OnDatabaseChangedListener {
+        /**
+         * Called on the main thread after an update completes.
+         */
+        public void onDatabaseChanged();
+    }
+
+    private final PlumbleDatabase mDatabase;
+    /** Shared by all instances, so that operations from each run in submission order. */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<OnDatabaseChangedListener> mListeners = new ArrayList<OnDatabaseChangedListener>();
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for(OnDatabaseChangedListener listener : new ArrayList<OnDatabaseChangedListener>(mListeners))
+                listener.onDatabaseChanged();
+        }
+    };
+
+    public AsyncDatabase(PlumbleDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Runs the query on the database thread.
+     * @param callback Called on the main thread with the result, or null to only return a future.
+     * @return A future for the result, which may be waited on from any thread but the main thread.
+     */
+    public <T> Future<T> query(final Query<T> query, final Callback<T> callback) {
+        return sExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final T result = query.run(mDatabase);
+                if(callback != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Runs the update on the database thread, then notifies listeners on the main thread.
+     */
+    public Future<?> update(final Update update) {
+        return sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                update.run(mDatabase);
+                mHandler.post(mNotifyRunnable);
+            }
+        });
+    }
+
+    /**
+     * Runs an update that produces a result on the database thread, such as a count of the rows
+     * it wrote. The callback gets the result on the main thread, then listeners are notified.
+     * @param callback Called on the main thread with the result, or null to only return a future.
+     */
+    public <T> Future<T> update(final Query<T> update, final Callback<T> callback) {
+        return sExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final T result = update.run(mDatabase);
+                if(callback != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                }
+                mHandler.post(mNotifyRunnable);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Runs the update on the database thread without notifying listeners. For data that no
+     * listener shows, such as the chat scrollback, which changes with every trimmed message.
+     */
+    public Future<?> updateWithoutNotifying(final Update update) {
+        return sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                update.run(mDatabase);
+            }
+        });
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    public void registerListener(OnDatabaseChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    public void unregisterListener(OnDatabaseChangedListener listener) {
+        mListeners.remove(listener);
+    }
+}
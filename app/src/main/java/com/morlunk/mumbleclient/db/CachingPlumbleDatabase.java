@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.db;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.util.Pair;
+import android.util.SparseArray;
+
+import com.morlunk.jumble.model.Message;
+import com.morlunk.jumble.model.Server;
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.BaseEncoding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A write-behind cache in front of another {@link PlumbleDatabase}.
+ * Servers, pinned channels and access tokens are read from the backing database once per process
+ * and served from memory afterwards. That first read happens on the calling thread rather than the
+ * writer thread, so a query made through {@link AsyncDatabase} only changes threads once.
+ * Writes update memory immediately and are applied to the backing database on a single writer
+ * thread, in the order they were made, so a crash can only lose the most recent writes and never
+ * apply them out of order.
+ *
+ * Adding servers waits for the write, as the server IDs are generated by the backing database.
+ * The cache isn't locked while waiting, so other readers aren't held up.
+ *
+ * Seen comments are fronted by a Bloom filter, built from the backing database on the writer
+ * thread at startup, so that lookups for unseen comments don't touch the disk. Until it is built,
+ * comments are reported as unseen rather than waiting. The filter is rebuilt once more comments
+ * have been added than it was sized for, to hold its false positive rate. Recent lookups are kept
+ * in a small LRU cache. Lookups that do need the disk run on the writer thread, after any queued
+ * writes.
+ * The chat scrollback isn't cached, and goes straight to the backing database.
+ */
+public class CachingPlumbleDatabase implements PlumbleDatabase {
+
+    /** The number of seen comments the filter is sized for. */
+    private static final int MAX_SEEN_COMMENTS = 5000;
+    /**
+     * The number of seen comments kept when the filter is built. The least recently seen are
+     * pruned, leaving room for new comments before the filter fills up and needs rebuilding.
+     */
+    private static final int PRUNED_SEEN_COMMENTS = 4000;
+    private static final double COMMENT_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int RECENT_COMMENTS_SIZE = 64;
+
+    private static CachingPlumbleDatabase sInstance;
+
+    private final PlumbleDatabase mDatabase;
+    private final ExecutorService mWriteExecutor = Executors.newSingleThreadExecutor();
+
+    /** All servers, or null if not yet loaded. */
+    private List<Server> mServers;
+    /** Pinned channels and access tokens, keyed by server ID. Loaded for each server on first use. */
+    private final SparseArray<List<Integer>> mPinnedChannels = new SparseArray<List<Integer>>();
+    private final SparseArray<List<String>> mAccessTokens = new SparseArray<List<String>>();
+    /** Contains every seen comment, or null until built. */
+    private BloomFilter<CharSequence> mSeenCommentFilter;
+    /** The number of comments added to the filter. */
+    private int mSeenCommentFilterCount;
+    /**
+     * Comments marked seen while the filter is being built, or null if no build is queued.
+     * Their writes are queued after the build.
+     */
+    private List<String> mPendingSeenComments = new ArrayList<String>();
+    private final LruCache<String, Boolean> mRecentComments = new LruCache<String, Boolean>(RECENT_COMMENTS_SIZE);
+
+    /**
+     * Returns the process-wide cache. There must only be one, or writes queued by one instance
+     * could be missed by reads from another.
+     */
+    public static synchronized CachingPlumbleDatabase getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new CachingPlumbleDatabase(new PlumbleSQLiteDatabase(context.getApplicationContext()));
+        return sInstance;
+    }
+
+    private CachingPlumbleDatabase(PlumbleDatabase database) {
+        mDatabase = database;
+        enqueueWrite(mBuildSeenCommentFilter);
+    }
+
+    /**
+     * Prunes the seen comments table, then builds a filter of what remains.
+     * Run on the writer thread, so no comment writes can be missed while building. Any existing
+     * filter stays in use until the new one is ready.
+     */
+    private final Runnable mBuildSeenCommentFilter = new Runnable() {
+        @Override
+        public void run() {
+            mDatabase.pruneSeenComments(PRUNED_SEEN_COMMENTS);
+            BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8),
+                    MAX_SEEN_COMMENTS, COMMENT_FILTER_FALSE_POSITIVE_RATE);
+            int count = 0;
+            for(Pair<String, byte[]> comment : mDatabase.getSeenComments()) {
+                filter.put(getCommentKey(comment.first, comment.second));
+                count++;
+            }
+            synchronized (CachingPlumbleDatabase.this) {
+                for(String key : mPendingSeenComments)
+                    filter.put(key);
+                mSeenCommentFilterCount = count + mPendingSeenComments.size();
+                mPendingSeenComments = null;
+                mSeenCommentFilter = filter;
+            }
+        }
+    };
+
+    private static String getCommentKey(String hash, byte[] commentHash) {
+        return hash + ":" + BaseEncoding.base16().encode(commentHash);
+    }
+
+    /**
+     * Applies a write to the backing database after all previously queued writes.
+     */
+    private Future<?> enqueueWrite(Runnable write) {
+        return mWriteExecutor.submit(write);
+    }
+
+    private static void waitForWrite(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs a read on the writer thread, after all queued writes, and waits for its result.
+     */
+    private <T> T waitForRead(Callable<T> read) {
+        try {
+            return mWriteExecutor.submit(read).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Server IDs are SQLite row IDs, which are read back as ints elsewhere (see getServers()).
+     */
+    private static int getServerKey(long serverId) {
+        return (int) serverId;
+    }
+
+    private List<Server> getCachedServers() {
+        if(mServers == null)
+            mServers = new ArrayList<Server>(mDatabase.getServers());
+        return mServers;
+    }
+
+    private List<Integer> getCachedPinnedChannels(long serverId) {
+        List<Integer> channels = mPinnedChannels.get(getServerKey(serverId));
+        if(channels == null) {
+            channels = new ArrayList<Integer>(mDatabase.getPinnedChannels(serverId));
+            mPinnedChannels.put(getServerKey(serverId), channels);
+        }
+        return channels;
+    }
+
+    private List<String> getCachedAccessTokens(long serverId) {
+        List<String> tokens = mAccessTokens.get(getServerKey(serverId));
+        if(tokens == null) {
+            tokens = new ArrayList<String>(mDatabase.getAccessTokens(serverId));
+            mAccessTokens.put(getServerKey(serverId), tokens);
+        }
+        return tokens;
+    }
+
+    @Override
+    public synchronized List<Server> getServers() {
+        return new ArrayList<Server>(getCachedServers());
+    }
+
+    @Override
+    public void addServer(final Server server) {
+        Future<?> write;
+        synchronized (this) {
+            getCachedServers(); // Load first, so the cache can't pick up the row and add it twice.
+            write = enqueueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    mDatabase.addServer(server);
+                }
+            });
+        }
+        // Wait for the ID without holding the lock, so readers aren't stuck behind the disk.
+        waitForWrite(write);
+        synchronized (this) {
+            getCachedServers().add(server);
+        }
+    }
+
+    @Override
+    public void addServers(final List<Server> servers) {
+        Future<?> write;
+        synchronized (this) {
+            getCachedServers();
+            write = enqueueWrite(new Runnable() {
+                @Override
+                public void run() {
+                    mDatabase.addServers(servers);
+                }
+            });
+        }
+        waitForWrite(write);
+        synchronized (this) {
+            getCachedServers().addAll(servers);
+        }
+    }
+
+    @Override
+    public synchronized void updateServer(final Server server) {
+        List<Server> servers = getCachedServers();
+        for(int x=0;x<servers.size();x++) {
+            if(servers.get(x).getId() == server.getId()) {
+                servers.set(x, server);
+                break;
+            }
+        }
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.updateServer(server);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void removeServer(final Server server) {
+        List<Server> servers = getCachedServers();
+        for(int x=0;x<servers.size();x++) {
+            if(servers.get(x).getId() == server.getId()) {
+                servers.remove(x);
+                break;
+            }
+        }
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.removeServer(server);
+            }
+        });
+    }
+
+    @Override
+    public boolean isCommentSeen(final String hash, final byte[] commentHash) {
+        String key = getCommentKey(hash, commentHash);
+        synchronized (this) {
+            Boolean seen = mRecentComments.get(key);
+            if(seen != null) return seen;
+            // Not built yet. Don't wait behind the startup prune and scan; report it as unseen.
+            if(mSeenCommentFilter == null) return false;
+            if(!mSeenCommentFilter.mightContain(key)) {
+                mRecentComments.put(key, false);
+                return false;
+            }
+        }
+
+        // The filter gave a possible false positive. Check the disk, after any queued writes.
+        // The lock isn't held while waiting, as the writer may need it.
+        Boolean seen = waitForRead(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return mDatabase.isCommentSeen(hash, commentHash);
+            }
+        });
+        if(seen == null) return false; // Interrupted
+        synchronized (this) {
+            mRecentComments.put(key, seen);
+        }
+        return seen;
+    }
+
+    @Override
+    public synchronized void markCommentSeen(final String hash, final byte[] commentHash) {
+        addSeenComment(hash, commentHash);
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.markCommentSeen(hash, commentHash);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void markCommentsSeen(Map<String, byte[]> comments) {
+        final Map<String, byte[]> pending = new HashMap<String, byte[]>(comments);
+        for(Map.Entry<String, byte[]> comment : pending.entrySet())
+            addSeenComment(comment.getKey(), comment.getValue());
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.markCommentsSeen(pending);
+            }
+        });
+    }
+
+    private void addSeenComment(String hash, byte[] commentHash) {
+        String key = getCommentKey(hash, commentHash);
+        mRecentComments.put(key, true);
+        if(mSeenCommentFilter != null && mSeenCommentFilter.put(key))
+            mSeenCommentFilterCount++;
+        if(mPendingSeenComments != null) {
+            mPendingSeenComments.add(key);
+        } else if(mSeenCommentFilterCount > MAX_SEEN_COMMENTS) {
+            // Past the size the filter was built for, false positives climb, so rebuild it. The build
+            // is queued ahead of this comment's write, so carry the comment over.
+            mPendingSeenComments = new ArrayList<String>();
+            mPendingSeenComments.add(key);
+            enqueueWrite(mBuildSeenCommentFilter);
+        }
+    }
+
+    @Override
+    public List<Pair<String, byte[]>> getSeenComments() {
+        return waitForRead(new Callable<List<Pair<String, byte[]>>>() {
+            @Override
+            public List<Pair<String, byte[]>> call() throws Exception {
+                return mDatabase.getSeenComments();
+            }
+        });
+    }
+
+    @Override
+    public void pruneSeenComments(final int maxCount) {
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.pruneSeenComments(maxCount);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<Integer> getPinnedChannels(long serverId) {
+        return new ArrayList<Integer>(getCachedPinnedChannels(serverId));
+    }
+
+    @Override
+    public synchronized void addPinnedChannel(final long serverId, final int channelId) {
+        List<Integer> channels = getCachedPinnedChannels(serverId);
+        if(channels.contains(channelId)) return;
+        channels.add(channelId);
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.addPinnedChannel(serverId, channelId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void removePinnedChannel(final long serverId, final int channelId) {
+        getCachedPinnedChannels(serverId).remove(Integer.valueOf(channelId));
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.removePinnedChannel(serverId, channelId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean isChannelPinned(long serverId, int channelId) {
+        return getCachedPinnedChannels(serverId).contains(channelId);
+    }
+
+    @Override
+    public synchronized void setPinnedChannels(final long serverId, List<Integer> channelIds) {
+        final List<Integer> channels = new ArrayList<Integer>(channelIds);
+        mPinnedChannels.put(getServerKey(serverId), new ArrayList<Integer>(channels));
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.setPinnedChannels(serverId, channels);
+            }
+        });
+    }
+
+    @Override
+    public synchronized List<String> getAccessTokens(long serverId) {
+        return new ArrayList<String>(getCachedAccessTokens(serverId));
+    }
+
+    @Override
+    public synchronized void addAccessToken(final long serverId, final String token) {
+        getCachedAccessTokens(serverId).add(token);
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.addAccessToken(serverId, token);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void removeAccessToken(final long serverId, final String token) {
+        getCachedAccessTokens(serverId).remove(token);
+        enqueueWrite(new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.removeAccessToken(serverId, token);
+            }
+        });
+    }
+
+    @Override
+    public void pushChatScrollback(List<Message> messages) {
+        mDatabase.pushChatScrollback(messages);
+    }
+
+    @Override
+    public List<Message> popChatScrollback(int count) {
+        return mDatabase.popChatScrollback(count);
+    }
+
+    @Override
+    public void clearChatScrollback() {
+        mDatabase.clearChatScrollback();
+    }
+}
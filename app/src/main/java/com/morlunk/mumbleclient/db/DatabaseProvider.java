@@ -22,4 +22,9 @@ package com.morlunk.mumbleclient.db;
  */
 public interface DatabaseProvider {
     public PlumbleDatabase getDatabase();
+
+    /**
+     * @return The database wrapped for use off the main thread.
+     */
+    public AsyncDatabase getAsyncDatabase();
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.Html;
+import android.util.Log;
+
+import com.morlunk.jumble.model.Message;
+import com.morlunk.mumbleclient.Constants;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An archive of chat messages for each server, with a full text index for searching.
+ * Kept in its own database file, so that batched archive writes never contend with writes to
+ * the main database.
+ * Messages are written in batches from a background thread; {@link #archive(long, Message)} may be
+ * called from any thread. Only the newest {@link #MAX_MESSAGES_PER_SERVER} messages of each server
+ * are kept, and a server's messages are deleted along with it.
+ */
+public class PlumbleChatArchive extends SQLiteOpenHelper {
+
+    public static final String DATABASE_NAME = "chat_archive.db";
+
+    public static final String TABLE_MESSAGES = "messages";
+    public static final String MESSAGES_ID = "_id";
+    public static final String MESSAGES_SERVER = "server";
+    public static final String MESSAGES_ACTOR = "actor";
+    public static final String MESSAGES_BODY = "body";
+    public static final String MESSAGES_RECEIVED = "received";
+    public static final String TABLE_MESSAGES_CREATE_SQL = "CREATE TABLE IF NOT EXISTS `" + TABLE_MESSAGES + "` ("
+            + "`" + MESSAGES_ID + "` INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "`" + MESSAGES_SERVER + "` INTEGER NOT NULL,"
+            + "`" + MESSAGES_ACTOR + "` TEXT,"
+            + "`" + MESSAGES_BODY + "` TEXT NOT NULL,"
+            + "`" + MESSAGES_RECEIVED + "` INTEGER NOT NULL"
+            + ");";
+    public static final String INDEX_MESSAGES_SERVER_CREATE_SQL = "CREATE INDEX IF NOT EXISTS `messages_server_received` ON `"
+            + TABLE_MESSAGES + "` (`" + MESSAGES_SERVER + "`, `" + MESSAGES_RECEIVED + "`);";
+
+    /** Full text index of each message's plain text, joined to the messages table by docid. */
+    public static final String TABLE_MESSAGES_FTS = "messages_fts";
+    public static final String MESSAGES_FTS_TEXT = "text";
+    public static final String TABLE_MESSAGES_FTS_CREATE_SQL = "CREATE VIRTUAL TABLE IF NOT EXISTS `" + TABLE_MESSAGES_FTS
+            + "` USING fts3(`" + MESSAGES_FTS_TEXT + "`);"; // FTS4 requires API 11
+
+    public static final Integer CURRENT_DB_VERSION = 1;
+
+    /** The number of messages kept for each server. Older ones are deleted as new ones arrive. */
+    public static final int MAX_MESSAGES_PER_SERVER = 10000;
+
+    /** The time to wait after a message is archived before writing the batch it's in. */
+    private static final long FLUSH_DELAY = 2000;
+
+    private static PlumbleChatArchive sInstance;
+
+    private final ScheduledExecutorService mWriteExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final List<PendingMessage> mPendingMessages = new ArrayList<PendingMessage>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<PendingMessage> messages;
+            synchronized (mPendingMessages) {
+                messages = new ArrayList<PendingMessage>(mPendingMessages);
+                mPendingMessages.clear();
+            }
+            if(!messages.isEmpty()) writeMessages(messages);
+        }
+    };
+
+    public static synchronized PlumbleChatArchive getInstance(Context context) {
+        if(sInstance == null)
+            sInstance = new PlumbleChatArchive(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private PlumbleChatArchive(Context context) {
+        super(context, DATABASE_NAME, null, CURRENT_DB_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(TABLE_MESSAGES_CREATE_SQL);
+        db.execSQL(INDEX_MESSAGES_SERVER_CREATE_SQL);
+        db.execSQL(TABLE_MESSAGES_FTS_CREATE_SQL);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.w(Constants.TAG, "Chat archive upgrade from " + oldVersion + " to " + newVersion);
+    }
+
+    /**
+     * Queues a message to be archived under the given server.
+     * The message is written with the rest of its batch shortly after.
+     */
+    public void archive(long serverId, Message message) {
+        PendingMessage pending = new PendingMessage(serverId, message.getActorName(), message.getMessage(),
+                message.getReceivedTime().toMillis(false));
+        synchronized (mPendingMessages) {
+            mPendingMessages.add(pending);
+            if(mPendingMessages.size() == 1)
+                mWriteExecutor.schedule(mFlushRunnable, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes any queued messages without waiting for the batch delay.
+     */
+    public void flush() {
+        mWriteExecutor.execute(mFlushRunnable);
+    }
+
+    /**
+     * Deletes all of the server's archived messages, including any not yet written.
+     * Call when the server is removed.
+     */
+    public void deleteMessages(final long serverId) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingMessages) {
+                    Iterator<PendingMessage> iterator = mPendingMessages.iterator();
+                    while(iterator.hasNext()) {
+                        if(iterator.next().serverId == serverId) iterator.remove();
+                    }
+                }
+                String[] args = new String[] { String.valueOf(serverId) };
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(TABLE_MESSAGES_FTS, "docid IN (SELECT " + MESSAGES_ID + " FROM " + TABLE_MESSAGES
+                            + " WHERE " + MESSAGES_SERVER + " = ?)", args);
+                    db.delete(TABLE_MESSAGES, MESSAGES_SERVER + " = ?", args);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    private void writeMessages(List<PendingMessage> messages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            ContentValues ftsValues = new ContentValues();
+            Set<Long> servers = new HashSet<Long>();
+            for(PendingMessage message : messages) {
+                servers.add(message.serverId);
+                values.put(MESSAGES_SERVER, message.serverId);
+                values.put(MESSAGES_ACTOR, message.actorName);
+                values.put(MESSAGES_BODY, message.body);
+                values.put(MESSAGES_RECEIVED, message.receivedTime);
+                long id = db.insert(TABLE_MESSAGES, null, values);
+                if(id == -1) continue;
+
+                ftsValues.put("docid", id);
+                ftsValues.put(MESSAGES_FTS_TEXT, Html.fromHtml(message.body).toString());
+                db.insert(TABLE_MESSAGES_FTS, null, ftsValues);
+            }
+            for(long serverId : servers)
+                trimMessages(db, serverId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the server's messages beyond the newest {@link #MAX_MESSAGES_PER_SERVER}.
+     */
+    private void trimMessages(SQLiteDatabase db, long serverId) {
+        // The receive time of the newest message over the limit, found by walking the server's index.
+        Cursor cursor = db.rawQuery("SELECT " + MESSAGES_RECEIVED + " FROM " + TABLE_MESSAGES + " WHERE " + MESSAGES_SERVER + " = ?"
+                + " ORDER BY " + MESSAGES_RECEIVED + " DESC LIMIT 1 OFFSET " + MAX_MESSAGES_PER_SERVER,
+                new String[] { String.valueOf(serverId) });
+        long cutoff;
+        try {
+            if(!cursor.moveToFirst()) return;
+            cutoff = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        String[] args = new String[] { String.valueOf(serverId), String.valueOf(cutoff) };
+        db.delete(TABLE_MESSAGES_FTS, "docid IN (SELECT " + MESSAGES_ID + " FROM " + TABLE_MESSAGES
+                + " WHERE " + MESSAGES_SERVER + " = ? AND " + MESSAGES_RECEIVED + " <= ?)", args);
+        db.delete(TABLE_MESSAGES, MESSAGES_SERVER + " = ? AND " + MESSAGES_RECEIVED + " <= ?", args);
+    }
+
+    /**
+     * Searches the server's archived messages. Blocks on disk, so call this off the main thread.
+     * @param serverId The server to search messages from.
+     * @param query A full text query, such as "hello world" or "hel*".
+     * @param limit The maximum number of results.
+     * @return Matching messages, newest first. Empty if the query is malformed.
+     */
+    public List<ArchivedMessage> search(long serverId, String query, int limit) {
+        List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>();
+        try {
+            // FTS query syntax errors are only raised once the cursor is first read.
+            Cursor cursor = getReadableDatabase().rawQuery("SELECT m." + MESSAGES_ACTOR + ", m." + MESSAGES_BODY + ", m." + MESSAGES_RECEIVED
+                    + " FROM " + TABLE_MESSAGES + " m JOIN " + TABLE_MESSAGES_FTS + " f ON m." + MESSAGES_ID + " = f.docid"
+                    + " WHERE f." + MESSAGES_FTS_TEXT + " MATCH ? AND m." + MESSAGES_SERVER + " = ?"
+                    + " ORDER BY m." + MESSAGES_RECEIVED + " DESC LIMIT ?",
+                    new String[] { query, String.valueOf(serverId), String.valueOf(limit) });
+            try {
+                while(cursor.moveToNext()) {
+                    messages.add(new ArchivedMessage(cursor.getString(0), cursor.getString(1), cursor.getLong(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            messages.clear();
+        }
+        return messages;
+    }
+
+    private static class PendingMessage {
+        final long serverId;
+        final String actorName;
+        final String body;
+        final long receivedTime;
+
+        PendingMessage(long serverId, String actorName, String body, long receivedTime) {
+            this.serverId = serverId;
+            this.actorName = actorName;
+            this.body = body;
+            this.receivedTime = receivedTime;
+        }
+    }
+
+    /**
+     * A message read back from the archive.
+     */
+    public static class ArchivedMessage {
+        private final String mActorName;
+        private final String mBody;
+        private final long mReceivedTime;
+
+        public ArchivedMessage(String actorName, String body, long receivedTime) {
+            mActorName = actorName;
+            mBody = body;
+            mReceivedTime = receivedTime;
+        }
+
+        public String getActorName() {
+            return mActorName;
+        }
+
+        /**
+         * @return The message body, as HTML.
+         */
+        public String getBody() {
+            return mBody;
+        }
+
+        public long getReceivedTime() {
+            return mReceivedTime;
+        }
+    }
+}
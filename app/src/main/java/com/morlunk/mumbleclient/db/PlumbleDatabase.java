@@ -17,9 +17,13 @@
 
 package com.morlunk.mumbleclient.db;
 
+import android.util.Pair;
+
+import com.morlunk.jumble.model.Message;
 import com.morlunk.jumble.model.Server;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * An interface for persistent storage services (i.e. databases, cloud) to implement.
@@ -31,15 +35,55 @@ public interface PlumbleDatabase {
     public void updateServer(Server server);
     public void removeServer(Server server);
 
+    /**
+     * Adds all of the given servers in a single transaction.
+     */
+    public void addServers(List<Server> servers);
+
     public boolean isCommentSeen(String hash, byte[] commentHash);
     public void markCommentSeen(String hash, byte[] commentHash);
 
+    /**
+     * Marks comments as seen in a single transaction.
+     * @param comments A map of user hashes to the hash of their seen comment.
+     */
+    public void markCommentsSeen(Map<String, byte[]> comments);
+
+    /**
+     * @return Every seen comment, as pairs of user hash and comment hash.
+     */
+    public List<Pair<String, byte[]>> getSeenComments();
+
+    /**
+     * Deletes the least recently seen comments, keeping at most the given number.
+     */
+    public void pruneSeenComments(int maxCount);
+
     public List<Integer> getPinnedChannels(long serverId);
     public void addPinnedChannel(long serverId, int channelId);
     public void removePinnedChannel(long serverId, int channelId);
     public boolean isChannelPinned(long serverId, int channelId);
 
+    /**
+     * Replaces the server's pinned channels in a single transaction.
+     */
+    public void setPinnedChannels(long serverId, List<Integer> channelIds);
+
     public List<String> getAccessTokens(long serverId);
     public void addAccessToken(long serverId, String token);
     public void removeAccessToken(long serverId, String token);
+
+    /**
+     * Appends messages to the end of the chat scrollback, the on-disk store for chat messages
+     * scrolled out of memory. The scrollback only lasts for the current session.
+     */
+    public void pushChatScrollback(List<Message> messages);
+
+    /**
+     * Removes and returns the most recent messages in the chat scrollback.
+     * @param count The maximum number of messages to return.
+     * @return The messages, oldest first.
+     */
+    public List<Message> popChatScrollback(int count);
+    public void clearChatScrollback();
 }
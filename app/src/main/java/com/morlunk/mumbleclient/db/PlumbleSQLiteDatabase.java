@@ -17,18 +17,31 @@
 
 package com.morlunk.mumbleclient.db;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
+import android.util.Pair;
 
+import com.morlunk.jumble.model.Channel;
+import com.morlunk.jumble.model.Message;
 import com.morlunk.jumble.model.Server;
+import com.morlunk.jumble.model.User;
 import com.morlunk.mumbleclient.Constants;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDatabase {
 
@@ -80,10 +93,40 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
             + "`" + COMMENTS_SEEN + "` DATE NOT NULL"
             + ");";
 
+    public static final String TABLE_SCROLLBACK = "scrollback";
+    public static final String SCROLLBACK_ID = "_id";
+    public static final String SCROLLBACK_TYPE = "type";
+    public static final String SCROLLBACK_ACTOR = "actor";
+    public static final String SCROLLBACK_ACTOR_NAME = "actor_name";
+    public static final String SCROLLBACK_BODY = "body";
+    public static final String SCROLLBACK_TIME = "time";
+    public static final String TABLE_SCROLLBACK_CREATE_SQL = "CREATE TABLE IF NOT EXISTS `" + TABLE_SCROLLBACK + "` ("
+            + "`" + SCROLLBACK_ID + "` INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "`" + SCROLLBACK_TYPE + "` TEXT NOT NULL,"
+            + "`" + SCROLLBACK_ACTOR + "` INTEGER NOT NULL,"
+            + "`" + SCROLLBACK_ACTOR_NAME + "` TEXT,"
+            + "`" + SCROLLBACK_BODY + "` TEXT NOT NULL,"
+            + "`" + SCROLLBACK_TIME + "` INTEGER NOT NULL"
+            + ");";
+
+    public static final String INDEX_FAVOURITES_CREATE_SQL = "CREATE INDEX IF NOT EXISTS `favourites_server_channel` ON `"
+            + TABLE_FAVOURITES + "` (`" + FAVOURITES_SERVER + "`, `" + FAVOURITES_CHANNEL + "`);";
+    public static final String INDEX_TOKENS_CREATE_SQL = "CREATE INDEX IF NOT EXISTS `tokens_server_value` ON `"
+            + TABLE_TOKENS + "` (`" + TOKENS_SERVER + "`, `" + TOKENS_VALUE + "`);";
+    public static final String INDEX_COMMENTS_CREATE_SQL = "CREATE INDEX IF NOT EXISTS `comments_who_comment` ON `"
+            + TABLE_COMMENTS + "` (`" + COMMENTS_WHO + "`, `" + COMMENTS_COMMENT + "`);";
+
     public static final Integer PRE_FAVOURITES_DB_VERSION = 2;
     public static final Integer PRE_TOKENS_DB_VERSION = 3;
     public static final Integer PRE_COMMENTS_DB_VERSION = 4;
-    public static final Integer CURRENT_DB_VERSION = 5;
+    public static final Integer PRE_SCROLLBACK_DB_VERSION = 5;
+    public static final Integer PRE_INDEXES_DB_VERSION = 6;
+    public static final Integer PRE_SEEN_DATE_FIX_DB_VERSION = 7;
+    public static final Integer CURRENT_DB_VERSION = 8;
+
+    /** Compiled lazily and reused for the lookups made while rendering lists. Guarded by this. */
+    private SQLiteStatement mChannelPinnedStatement;
+    private SQLiteStatement mCommentSeenStatement;
 
     public PlumbleSQLiteDatabase(Context context) {
         super(context, DATABASE_NAME, null, CURRENT_DB_VERSION);
@@ -95,6 +138,17 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
         db.execSQL(TABLE_FAVOURITES_CREATE_SQL);
         db.execSQL(TABLE_TOKENS_CREATE_SQL);
         db.execSQL(TABLE_COMMENTS_CREATE_SQL);
+        db.execSQL(TABLE_SCROLLBACK_CREATE_SQL);
+        createIndexes(db);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // WAL lets readers proceed during writes, and commits without a journal rewrite.
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly())
+            db.enableWriteAheadLogging();
     }
 
     @Override
@@ -114,6 +168,35 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
         if (oldVersion <= PRE_COMMENTS_DB_VERSION) {
             db.execSQL(TABLE_COMMENTS_CREATE_SQL);
         }
+
+        if (oldVersion <= PRE_SCROLLBACK_DB_VERSION) {
+            db.execSQL(TABLE_SCROLLBACK_CREATE_SQL);
+        }
+
+        if (oldVersion <= PRE_INDEXES_DB_VERSION) {
+            createIndexes(db);
+        }
+
+        if (oldVersion <= PRE_SEEN_DATE_FIX_DB_VERSION) {
+            // Seen dates used to be stored as the literal string "datetime('now')".
+            db.execSQL("UPDATE `" + TABLE_COMMENTS + "` SET `" + COMMENTS_SEEN + "` = datetime('now') WHERE `"
+                    + COMMENTS_SEEN + "` NOT GLOB '[0-9]*'");
+        }
+    }
+
+    private void createIndexes(SQLiteDatabase db) {
+        db.execSQL(INDEX_FAVOURITES_CREATE_SQL);
+        db.execSQL(INDEX_TOKENS_CREATE_SQL);
+        db.execSQL(INDEX_COMMENTS_CREATE_SQL);
+    }
+
+    @Override
+    public synchronized void close() {
+        if(mChannelPinnedStatement != null) mChannelPinnedStatement.close();
+        if(mCommentSeenStatement != null) mCommentSeenStatement.close();
+        mChannelPinnedStatement = null;
+        mCommentSeenStatement = null;
+        super.close();
     }
 
     @Override
@@ -128,16 +211,22 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
                 null,
                 null);
 
-        List<Server> servers = new ArrayList<Server>();
+        List<Server> servers = new ArrayList<Server>(c.getCount());
+        int idColumn = c.getColumnIndex(SERVER_ID);
+        int nameColumn = c.getColumnIndex(SERVER_NAME);
+        int hostColumn = c.getColumnIndex(SERVER_HOST);
+        int portColumn = c.getColumnIndex(SERVER_PORT);
+        int usernameColumn = c.getColumnIndex(SERVER_USERNAME);
+        int passwordColumn = c.getColumnIndex(SERVER_PASSWORD);
 
         c.moveToFirst();
         while (!c.isAfterLast()) {
-            Server server = new Server(c.getInt(c.getColumnIndex(SERVER_ID)),
-                    c.getString(c.getColumnIndex(SERVER_NAME)),
-                    c.getString(c.getColumnIndex(SERVER_HOST)),
-                    c.getInt(c.getColumnIndex(SERVER_PORT)),
-                    c.getString(c.getColumnIndex(SERVER_USERNAME)),
-                    c.getString(c.getColumnIndex(SERVER_PASSWORD)));
+            Server server = new Server(c.getInt(idColumn),
+                    c.getString(nameColumn),
+                    c.getString(hostColumn),
+                    c.getInt(portColumn),
+                    c.getString(usernameColumn),
+                    c.getString(passwordColumn));
             servers.add(server);
             c.moveToNext();
         }
@@ -159,6 +248,26 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
         server.setId(getWritableDatabase().insert(TABLE_SERVER, null, values));
     }
 
+    @Override
+    public void addServers(List<Server> servers) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for(Server server : servers) {
+                values.put(SERVER_NAME, server.getName());
+                values.put(SERVER_HOST, server.getHost());
+                values.put(SERVER_PORT, server.getPort());
+                values.put(SERVER_USERNAME, server.getUsername());
+                values.put(SERVER_PASSWORD, server.getPassword());
+                server.setId(db.insert(TABLE_SERVER, null, values));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public void updateServer(Server server) {
         ContentValues values = new ContentValues();
@@ -211,18 +320,32 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
     }
 
     @Override
-    public boolean isChannelPinned(long serverId, int channelId) {
-        Cursor c = getReadableDatabase().query(
-                TABLE_FAVOURITES,
-                new String[]{FAVOURITES_CHANNEL},
-                FAVOURITES_SERVER + "=? AND " +
-                FAVOURITES_CHANNEL + "=?",
-                new String[]{String.valueOf(serverId), String.valueOf(channelId)},
-                null,
-                null,
-                null);
-        c.moveToFirst();
-        return !c.isAfterLast();
+    public synchronized boolean isChannelPinned(long serverId, int channelId) {
+        if(mChannelPinnedStatement == null) {
+            mChannelPinnedStatement = getReadableDatabase().compileStatement("SELECT COUNT(*) FROM `" + TABLE_FAVOURITES + "` WHERE `"
+                    + FAVOURITES_SERVER + "`=? AND `" + FAVOURITES_CHANNEL + "`=?");
+        }
+        mChannelPinnedStatement.bindLong(1, serverId);
+        mChannelPinnedStatement.bindString(2, String.valueOf(channelId)); // Channels are stored as text
+        return mChannelPinnedStatement.simpleQueryForLong() > 0;
+    }
+
+    @Override
+    public void setPinnedChannels(long serverId, List<Integer> channelIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_FAVOURITES, FAVOURITES_SERVER + "=?", new String[] { String.valueOf(serverId) });
+            ContentValues contentValues = new ContentValues();
+            for(int channelId : channelIds) {
+                contentValues.put(FAVOURITES_CHANNEL, channelId);
+                contentValues.put(FAVOURITES_SERVER, serverId);
+                db.insert(TABLE_FAVOURITES, null, contentValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public void removePinnedChannel(long serverId, int channelId) {
@@ -256,22 +379,141 @@ public class PlumbleSQLiteDatabase extends SQLiteOpenHelper implements PlumbleDa
     }
 
     @Override
-    public boolean isCommentSeen(String hash, byte[] commentHash) {
-        Cursor cursor = getReadableDatabase().query(TABLE_COMMENTS,
-                new String[]{COMMENTS_WHO, COMMENTS_COMMENT, COMMENTS_SEEN}, COMMENTS_WHO + "=? AND " + COMMENTS_COMMENT + "=?",
-                new String[]{hash, new String(commentHash)},
-                null, null, null);
-        boolean hasNext = cursor.moveToNext();
-        cursor.close();
-        return hasNext;
+    public synchronized boolean isCommentSeen(String hash, byte[] commentHash) {
+        if(mCommentSeenStatement == null) {
+            mCommentSeenStatement = getReadableDatabase().compileStatement("SELECT COUNT(*) FROM `" + TABLE_COMMENTS + "` WHERE `"
+                    + COMMENTS_WHO + "`=? AND `" + COMMENTS_COMMENT + "`=?");
+        }
+        mCommentSeenStatement.bindString(1, hash);
+        mCommentSeenStatement.bindBlob(2, commentHash); // markCommentSeen stores the hash as a blob
+        return mCommentSeenStatement.simpleQueryForLong() > 0;
     }
 
     @Override
     public void markCommentSeen(String hash, byte[] commentHash) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            putCommentSeen(db, hash, commentHash, getSeenDate());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces any existing record of the comment with one seen at the given date.
+     * Must be called inside a transaction.
+     */
+    private void putCommentSeen(SQLiteDatabase db, String hash, byte[] commentHash, String seenDate) {
+        // execSQL is used as it can bind the comment hash as a blob, unlike delete().
+        db.execSQL("DELETE FROM `" + TABLE_COMMENTS + "` WHERE `" + COMMENTS_WHO + "`=? AND `" + COMMENTS_COMMENT + "`=?",
+                new Object[] { hash, commentHash });
         ContentValues values = new ContentValues();
         values.put(COMMENTS_WHO, hash);
         values.put(COMMENTS_COMMENT, commentHash);
-        values.put(COMMENTS_SEEN, "datetime('now')");
-        getWritableDatabase().replace(TABLE_COMMENTS, null, values);
+        values.put(COMMENTS_SEEN, seenDate);
+        db.insert(TABLE_COMMENTS, null, values);
+    }
+
+    /**
+     * @return The current time in the format of SQLite's datetime(), so that seen dates sort correctly.
+     */
+    private static String getSeenDate() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    @Override
+    public void markCommentsSeen(Map<String, byte[]> comments) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String seenDate = getSeenDate();
+            for(Map.Entry<String, byte[]> comment : comments.entrySet())
+                putCommentSeen(db, comment.getKey(), comment.getValue(), seenDate);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public List<Pair<String, byte[]>> getSeenComments() {
+        Cursor cursor = getReadableDatabase().query(TABLE_COMMENTS, new String[] { COMMENTS_WHO, COMMENTS_COMMENT },
+                null, null, null, null, null);
+        List<Pair<String, byte[]>> comments = new ArrayList<Pair<String, byte[]>>(cursor.getCount());
+        while(cursor.moveToNext()) {
+            comments.add(new Pair<String, byte[]>(cursor.getString(0), cursor.getBlob(1)));
+        }
+        cursor.close();
+        return comments;
+    }
+
+    @Override
+    public void pruneSeenComments(int maxCount) {
+        getWritableDatabase().execSQL("DELETE FROM `" + TABLE_COMMENTS + "` WHERE rowid NOT IN (SELECT rowid FROM `"
+                + TABLE_COMMENTS + "` ORDER BY `" + COMMENTS_SEEN + "` DESC LIMIT ?)", new Object[] { maxCount });
+    }
+
+    @Override
+    public void pushChatScrollback(List<Message> messages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for(Message message : messages) {
+                values.put(SCROLLBACK_TYPE, message.getType().name());
+                values.put(SCROLLBACK_ACTOR, message.getActor());
+                values.put(SCROLLBACK_ACTOR_NAME, message.getActorName());
+                values.put(SCROLLBACK_BODY, message.getMessage());
+                values.put(SCROLLBACK_TIME, message.getReceivedTime().toMillis(false));
+                db.insert(TABLE_SCROLLBACK, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public List<Message> popChatScrollback(int count) {
+        SQLiteDatabase db = getWritableDatabase();
+        List<Message> messages = new ArrayList<Message>();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_SCROLLBACK, new String[] { SCROLLBACK_ID, SCROLLBACK_TYPE,
+                    SCROLLBACK_ACTOR, SCROLLBACK_ACTOR_NAME, SCROLLBACK_BODY, SCROLLBACK_TIME },
+                    null, null, null, null, SCROLLBACK_ID + " DESC", String.valueOf(count));
+            long oldestId = -1;
+            while(cursor.moveToNext()) {
+                oldestId = cursor.getLong(0);
+                Message.Type type = Message.Type.valueOf(cursor.getString(1));
+                Message message;
+                if(type == Message.Type.TEXT_MESSAGE) {
+                    // Targets aren't kept, so the message is shown under its author's name alone.
+                    message = new Message(cursor.getInt(2), cursor.getString(3), new ArrayList<Channel>(),
+                            new ArrayList<Channel>(), new ArrayList<User>(), cursor.getString(4));
+                } else {
+                    message = new Message(type, cursor.getString(4));
+                }
+                message.getReceivedTime().set(cursor.getLong(5));
+                messages.add(message);
+            }
+            cursor.close();
+            if(oldestId != -1)
+                db.delete(TABLE_SCROLLBACK, SCROLLBACK_ID + ">=?", new String[] { String.valueOf(oldestId) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    @Override
+    public void clearChatScrollback() {
+        getWritableDatabase().delete(TABLE_SCROLLBACK, null, null);
     }
 }
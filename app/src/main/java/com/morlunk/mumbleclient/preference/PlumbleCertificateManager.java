@@ -20,15 +20,14 @@ package com.morlunk.mumbleclient.preference;
 import android.os.Environment;
 
 import com.morlunk.jumble.net.JumbleCertificateGenerator;
+import com.morlunk.mumbleclient.util.CertificateRepository;
 
 import org.spongycastle.operator.OperatorCreationException;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -85,18 +84,7 @@ public class PlumbleCertificateManager {
      * @return true if the certificate is password protected, false otherwise.
      */
     public static boolean isPasswordRequired(File certificateFile) throws KeyStoreException, IOException, NoSuchAlgorithmException {
-        KeyStore p12store = KeyStore.getInstance("PKCS12");
-        FileInputStream inputStream = new FileInputStream(certificateFile);
-        try {
-            p12store.load(inputStream, new char[0]);
-            return false; // If loading succeeded, we can be assured that no password was required.
-        } catch (IOException e) {
-            e.printStackTrace();
-            return true; // FIXME: this is a very coarse attempt at password detection.
-        } catch (CertificateException e) {
-            e.printStackTrace();
-            return true; // FIXME: this is a very coarse attempt at password detection.
-        }
+        return CertificateRepository.getInstance().isPasswordRequired(certificateFile);
     }
 
     /**
@@ -106,15 +94,7 @@ public class PlumbleCertificateManager {
      * @return true if the password is valid, false otherwise.
      */
     public static boolean isPasswordValid(File certificateFile, String password) throws KeyStoreException, IOException, NoSuchAlgorithmException {
-        KeyStore p12store = KeyStore.getInstance("PKCS12");
-        FileInputStream inputStream = new FileInputStream(certificateFile);
-        try {
-            p12store.load(inputStream, password.toCharArray());
-            return true; // If loading succeeded, we can be assured that the password is valid
-        } catch (CertificateException e) {
-            e.printStackTrace();
-            return false; // FIXME: this is a very coarse attempt at password detection.
-        }
+        return CertificateRepository.getInstance().isPasswordValid(certificateFile, password);
     }
 
     /**
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.os.SystemClock;
+
+import com.morlunk.jumble.model.Server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolves the hostnames of saved servers ahead of time, so that connecting doesn't wait on DNS.
+ * Lookups go through the system resolver, which caches results for the record's TTL; connecting
+ * shortly afterwards will hit that cache. Results are also kept here, so callers can tell whether
+ * a connection attempt started warm.
+ */
+public class ConnectionPrewarmer {
+
+    /** The time a lookup is considered warm for, in milliseconds. Kept short, as DNS TTLs vary. */
+    public static final long WARM_TTL = 60 * 1000;
+    private static final int RESOLVER_THREADS = 2;
+
+    private static ConnectionPrewarmer sInstance;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(RESOLVER_THREADS);
+    /** Lookup times keyed by hostname. */
+    private final Map<String, Long> mResolved = Collections.synchronizedMap(new HashMap<String, Long>());
+    private final Set<String> mPending = Collections.synchronizedSet(new HashSet<String>());
+
+    public static synchronized ConnectionPrewarmer getInstance() {
+        if(sInstance == null)
+            sInstance = new ConnectionPrewarmer();
+        return sInstance;
+    }
+
+    private ConnectionPrewarmer() {
+    }
+
+    /**
+     * Resolves the servers' hostnames in the background, skipping any that are already warm.
+     */
+    public void prewarm(Collection<? extends Server> servers) {
+        for(Server server : servers) prewarm(server);
+    }
+
+    public void prewarm(Server server) {
+        final String host = server.getHost();
+        if(host == null || isWarm(server) || !mPending.add(host)) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InetAddress.getAllByName(host);
+                    mResolved.put(host, SystemClock.elapsedRealtime());
+                } catch (UnknownHostException e) {
+                    // Offline or bad host; the connection attempt will report it.
+                } finally {
+                    mPending.remove(host);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the server's hostname was resolved recently.
+     */
+    public boolean isWarm(Server server) {
+        Long time = mResolved.get(server.getHost());
+        return time != null && SystemClock.elapsedRealtime() - time < WARM_TTL;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import java.util.Arrays;
+
+/**
+ * Round trip statistics from a train of pings to a single server.
+ * Jitter is the mean difference between consecutive round trip times, as in RFC 3550.
+ */
+public class LatencyStats {
+
+    private final long mTimestamp;
+    private final int mSent;
+    private final int mReceived;
+    private final int mMin;
+    private final int mMedian;
+    private final int mPercentile95;
+    private final float mJitter;
+
+    /**
+     * Computes statistics from the given samples.
+     * @param samples Round trip times in milliseconds, in the order they were received.
+     * @param received The number of valid samples.
+     * @param sent The number of pings sent.
+     */
+    public LatencyStats(int[] samples, int received, int sent) {
+        mTimestamp = System.currentTimeMillis();
+        mSent = sent;
+        mReceived = received;
+
+        if(received == 0) {
+            mMin = mMedian = mPercentile95 = 0;
+            mJitter = 0;
+            return;
+        }
+
+        long jitterSum = 0;
+        for(int i = 1; i < received; i++)
+            jitterSum += Math.abs(samples[i] - samples[i - 1]);
+        mJitter = received > 1 ? (float) jitterSum / (received - 1) : 0;
+
+        int[] sorted = Arrays.copyOf(samples, received);
+        Arrays.sort(sorted);
+        mMin = sorted[0];
+        mMedian = received % 2 == 1 ? sorted[received / 2] :
+                (sorted[received / 2 - 1] + sorted[received / 2]) / 2;
+        mPercentile95 = sorted[(int) Math.ceil(0.95 * received) - 1];
+    }
+
+    /**
+     * @return The time these statistics were computed, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getSent() {
+        return mSent;
+    }
+
+    public int getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return true if no pings were answered. The latency values are meaningless in this case.
+     */
+    public boolean isUnreachable() {
+        return mReceived == 0;
+    }
+
+    public int getMin() {
+        return mMin;
+    }
+
+    public int getMedian() {
+        return mMedian;
+    }
+
+    public int getPercentile95() {
+        return mPercentile95;
+    }
+
+    public float getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * @return The fraction of pings that went unanswered, from 0 to 1.
+     */
+    public float getLoss() {
+        return mSent > 0 ? (float) (mSent - mReceived) / mSent : 0;
+    }
+}
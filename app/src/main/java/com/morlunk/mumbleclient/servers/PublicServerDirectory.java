@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.morlunk.mumbleclient.Constants;
+import com.morlunk.mumbleclient.db.PublicServer;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Loads the public server list, keeping a copy on disk.
+ * The cached copy is shown first, so reopening the list is instant and works offline. Once the
+ * copy is older than the TTL, it is revalidated with the ETag and Last-Modified headers the server
+ * last sent, and only downloaded again if it changed.
+ */
+public class PublicServerDirectory {
+
+    public interface OnServersLoadedListener {
+        /**
+         * Called on the loading thread as servers are parsed.
+         * @param servers The next batch of servers.
+         * @param replace true if this is the first batch of a newer list, replacing the servers
+         *                passed so far.
+         */
+        public void onServersLoaded(List<PublicServer> servers, boolean replace);
+    }
+
+    public static final String MUMBLE_PUBLIC_URL = "http://www.mumble.info/list2.cgi";
+    /** The time before the cached list is revalidated, in milliseconds. */
+    public static final long DEFAULT_TTL = 60 * 60 * 1000;
+
+    private static final String CACHE_FILE = "public_servers.xml";
+    private static final int TIMEOUT = 10000;
+
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last_modified";
+    private static final String META_FETCHED = "fetched";
+
+    private final File mCacheFile;
+    private final File mMetaFile;
+    private final File mTempFile;
+    private final String mUrl;
+    private final long mTtl;
+    private final PublicServerListParser mParser = new PublicServerListParser();
+
+    public PublicServerDirectory(Context context) {
+        this(new File(context.getCacheDir(), CACHE_FILE), MUMBLE_PUBLIC_URL, DEFAULT_TTL);
+    }
+
+    /**
+     * @param cacheFile The file to keep the list in. Metadata is kept alongside it.
+     * @param url The URL of the list.
+     * @param ttl The time before the cached list is revalidated, in milliseconds.
+     */
+    public PublicServerDirectory(File cacheFile, String url, long ttl) {
+        mCacheFile = cacheFile;
+        mMetaFile = new File(cacheFile.getPath() + ".meta");
+        mTempFile = new File(cacheFile.getPath() + ".tmp");
+        mUrl = url;
+        mTtl = ttl;
+    }
+
+    /**
+     * Loads the list, blocking until done. Passes the cached list to the listener if there is one,
+     * then the fetched list if the cache was missing, stale and changed on the server.
+     * If a cached list was passed, the fetched list is only passed once it has been parsed in full,
+     * so a failed download leaves the cached list in place.
+     * @throws IOException if the list couldn't be fetched and there was no cached copy.
+     */
+    public void load(final OnServersLoadedListener listener) throws IOException, XmlPullParserException {
+        boolean cached = loadCache(listener);
+        Properties meta = readMeta();
+        long fetched = Long.parseLong(meta.getProperty(META_FETCHED, "0"));
+        if(cached && System.currentTimeMillis() - fetched < mTtl)
+            return;
+
+        try {
+            fetch(listener, cached, meta);
+        } catch (IOException e) {
+            if(!cached) throw e;
+            Log.w(Constants.TAG, "Failed to revalidate public server list, using cached copy", e);
+        } catch (XmlPullParserException e) {
+            if(!cached) throw e;
+            Log.w(Constants.TAG, "Received malformed public server list, using cached copy", e);
+        }
+    }
+
+    private boolean loadCache(final OnServersLoadedListener listener) {
+        if(!mCacheFile.exists()) return false;
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(mCacheFile);
+            mParser.parse(stream, new PublicServerListParser.OnServersParsedListener() {
+                @Override
+                public void onServersParsed(List<PublicServer> servers) {
+                    listener.onServersLoaded(servers, false);
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            // Corrupt cache. Anything already passed will be replaced by the fetched list.
+            e.printStackTrace();
+            mCacheFile.delete();
+            mMetaFile.delete();
+            return false;
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private void fetch(final OnServersLoadedListener listener, final boolean cached, Properties meta) throws IOException, XmlPullParserException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        connection.setRequestMethod("GET");
+        connection.addRequestProperty("version", com.morlunk.jumble.Constants.PROTOCOL_STRING);
+        if(cached) {
+            if(meta.getProperty(META_ETAG) != null)
+                connection.addRequestProperty("If-None-Match", meta.getProperty(META_ETAG));
+            if(meta.getProperty(META_LAST_MODIFIED) != null)
+                connection.addRequestProperty("If-Modified-Since", meta.getProperty(META_LAST_MODIFIED));
+        }
+
+        try {
+            int responseCode = connection.getResponseCode();
+            if(cached && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                meta.setProperty(META_FETCHED, Long.toString(System.currentTimeMillis()));
+                writeMeta(meta);
+                return;
+            } else if(responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response code " + responseCode);
+            }
+
+            // Parse as we download, writing what we read to disk for next time.
+            // With nothing cached on screen, batches are passed on as they arrive. Otherwise they're
+            // held back until the whole list has parsed, so a failure can't replace the cached list
+            // with part of a new one.
+            final List<PublicServer> held = cached ? new ArrayList<PublicServer>() : null;
+            InputStream stream = null;
+            OutputStream output = null;
+            boolean complete = false;
+            try {
+                output = new FileOutputStream(mTempFile);
+                stream = new TeeInputStream(connection.getInputStream(), output);
+                mParser.parse(stream, new PublicServerListParser.OnServersParsedListener() {
+                    private boolean mFirst = true;
+
+                    @Override
+                    public void onServersParsed(List<PublicServer> servers) {
+                        if(held != null) {
+                            held.addAll(servers);
+                            return;
+                        }
+                        listener.onServersLoaded(servers, mFirst);
+                        mFirst = false;
+                    }
+                });
+                // Keep anything after the closing tag, so the cached copy is byte for byte the same.
+                byte[] buffer = new byte[1024];
+                while(stream.read(buffer) != -1);
+                output.close();
+                output = null;
+                complete = true;
+            } finally {
+                closeQuietly(stream);
+                closeQuietly(output);
+                if(!complete) mTempFile.delete();
+            }
+            if(held != null) listener.onServersLoaded(held, true);
+
+            if(!mTempFile.renameTo(mCacheFile)) {
+                mTempFile.delete();
+                return;
+            }
+            Properties newMeta = new Properties();
+            if(connection.getHeaderField("ETag") != null)
+                newMeta.setProperty(META_ETAG, connection.getHeaderField("ETag"));
+            if(connection.getHeaderField("Last-Modified") != null)
+                newMeta.setProperty(META_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+            newMeta.setProperty(META_FETCHED, Long.toString(System.currentTimeMillis()));
+            writeMeta(newMeta);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Properties readMeta() {
+        Properties meta = new Properties();
+        if(!mMetaFile.exists()) return meta;
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(mMetaFile);
+            meta.load(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(stream);
+        }
+        return meta;
+    }
+
+    private void writeMeta(Properties meta) {
+        OutputStream stream = null;
+        try {
+            stream = new FileOutputStream(mMetaFile);
+            meta.store(stream, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies everything read from the wrapped stream to an output stream.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mOutput;
+
+        public TeeInputStream(InputStream in, OutputStream output) {
+            super(in);
+            mOutput = output;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) mOutput.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if(read > 0) mOutput.write(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip not supported");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
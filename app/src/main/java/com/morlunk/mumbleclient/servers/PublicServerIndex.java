@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import com.morlunk.mumbleclient.db.PublicServer;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * A prefix index over the public server list, for searching as the user types.
+ * Names, hosts, regions and countries are split into normalized tokens (lower case, without
+ * accents), and each query term matches any token it is a prefix of.
+ *
+ * Not thread safe; callers should build and query the index from a single thread.
+ */
+public class PublicServerIndex {
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final List<PublicServer> mServers = new ArrayList<PublicServer>();
+    /** Maps tokens from any field to the positions of the servers containing them. */
+    private final TreeMap<String, BitSet> mTokens = new TreeMap<String, BitSet>();
+    /** Maps tokens from the country name and code to the positions of the servers containing them. */
+    private final TreeMap<String, BitSet> mCountryTokens = new TreeMap<String, BitSet>();
+
+    /**
+     * Adds servers to the end of the index.
+     */
+    public void add(List<PublicServer> servers) {
+        for(PublicServer server : servers) {
+            int position = mServers.size();
+            mServers.add(server);
+            addTokens(mTokens, position, server.getName());
+            addTokens(mTokens, position, server.getHost());
+            addTokens(mTokens, position, server.getRegion());
+            addTokens(mTokens, position, server.getCountry());
+            addTokens(mCountryTokens, position, server.getCountry());
+            addTokens(mCountryTokens, position, server.getCountryCode());
+        }
+    }
+
+    public int size() {
+        return mServers.size();
+    }
+
+    /**
+     * Finds servers matching every term of both queries.
+     * @param query Terms to match against any field.
+     * @param countryQuery Terms to match against the country name and code.
+     * @return The matching servers, in the order they were added.
+     */
+    public List<PublicServer> search(String query, String countryQuery) {
+        BitSet matches = new BitSet(mServers.size());
+        matches.set(0, mServers.size());
+        matchTerms(mTokens, query, matches);
+        matchTerms(mCountryTokens, countryQuery, matches);
+
+        List<PublicServer> results = new ArrayList<PublicServer>(matches.cardinality());
+        for(int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            results.add(mServers.get(i));
+        return results;
+    }
+
+    /**
+     * Clears positions from matches that don't contain every term of the query.
+     */
+    private static void matchTerms(TreeMap<String, BitSet> index, String query, BitSet matches) {
+        for(String term : tokenize(query)) {
+            if(matches.isEmpty()) return;
+            BitSet termMatches = new BitSet();
+            // All tokens with this prefix sort between the term and the term followed by the last char.
+            SortedMap<String, BitSet> range = index.subMap(term, term + Character.MAX_VALUE);
+            for(BitSet positions : range.values())
+                termMatches.or(positions);
+            matches.and(termMatches);
+        }
+    }
+
+    private static void addTokens(Map<String, BitSet> index, int position, String text) {
+        for(String token : tokenize(text)) {
+            BitSet positions = index.get(token);
+            if(positions == null) {
+                positions = new BitSet();
+                index.put(token, positions);
+            }
+            positions.set(position);
+        }
+    }
+
+    /**
+     * Splits the text into lower case tokens without accents.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if(text == null) return tokens;
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        normalized = DIACRITICS.matcher(normalized).replaceAll("").toLowerCase(Locale.US);
+        for(String token : SEPARATORS.split(normalized)) {
+            if(token.length() > 0) tokens.add(token);
+        }
+        return tokens;
+    }
+}
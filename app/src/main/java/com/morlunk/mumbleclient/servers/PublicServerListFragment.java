@@ -18,7 +18,6 @@
 package com.morlunk.mumbleclient.servers;
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
@@ -26,12 +25,11 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
-import android.os.Build;
-import android.os.Build.VERSION;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.support.v4.app.Fragment;
-import android.util.Log;
-import android.util.Xml;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -53,31 +51,27 @@ import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.morlunk.mumbleclient.Constants;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+import com.morlunk.jumble.model.Server;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.db.PlumbleDatabase;
 import com.morlunk.mumbleclient.db.PublicServer;
 import com.morlunk.mumbleclient.util.CardDrawable;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -87,8 +81,21 @@ import java.util.concurrent.Executors;
  *
  */
 public class PublicServerListFragment extends Fragment implements OnItemClickListener {
-    
-    public static final int MAX_ACTIVE_PINGS = 50;
+
+    /** The delay after the last keystroke before the list is filtered, in milliseconds. */
+    private static final int FILTER_DELAY = 300;
+    /** The number of sort keys remembered. Earlier choices break ties in later ones. */
+    private static final int MAX_SORT_KEYS = 3;
+
+    private static final int SORT_NAME = 0;
+    private static final int SORT_COUNTRY = 1;
+    private static final int SORT_LATENCY = 2;
+    private static final int SORT_USERS = 3;
+    private static final int SORT_FILL_RATIO = 4;
+    private static final int SORT_DISTANCE = 5;
+
+    /** Builds, searches and sorts the list off the main thread. */
+    private static final ExecutorService sFilterExecutor = Executors.newSingleThreadExecutor();
     
     private ServerListFragment.ServerConnectHandler mConnectHandler;
     private DatabaseProvider mDatabaseProvider;
@@ -96,13 +103,36 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
     private GridView mServerGrid;
     private ProgressBar mServerProgress;
     private PublicServerAdapter mServerAdapter;
-    private int mActivePingCount = 0;
+    private ServerPinger mPinger;
+    private ServerMatcher mMatcher;
+    private Handler mHandler = new Handler();
+    private String mQuery = "";
+    private String mCountryQuery = "";
+    /** Sort keys, most significant first. */
+    private LinkedList<Integer> mSortKeys = new LinkedList<Integer>();
+
+    private ServerPinger.OnServerPingListener mPingListener = new ServerPinger.OnServerPingListener() {
+        @Override
+        public void onServerPinged(Server server, ServerInfoResponse response) {
+            if(mServerAdapter != null && server instanceof PublicServer)
+                mServerAdapter.setInfoResponse((PublicServer) server, new ServerInfoResponse(response));
+        }
+    };
     
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         
         setHasOptionsMenu(true);
+        mPinger = new ServerPinger();
+        mPinger.addListener(mPingListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mPinger.shutdown();
+        if(mMatcher != null) mMatcher.cancel();
     }
     
     @Override
@@ -136,12 +166,6 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
         return view;
     }
 
-    @Override
-    public void onPrepareOptionsMenu(Menu menu) {
-        super.onPrepareOptionsMenu(menu);
-        menu.findItem(R.id.menu_match_server).setVisible(VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB); // Executors only supported on Honeycomb +
-    }
-
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
@@ -167,11 +191,23 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
     }
     
     public void setServers(List<PublicServer> servers) {
-        mServers = servers;
+        mServers = new ArrayList<PublicServer>(servers);
         mServerProgress.setVisibility(View.GONE);
         mServerAdapter = new PublicServerAdapter(getActivity(), servers);
         mServerGrid.setAdapter(mServerAdapter);
     }
+
+    /**
+     * Appends servers to the list, keeping any filter and sort applied.
+     */
+    public void addServers(List<PublicServer> servers) {
+        if(mServerAdapter == null) {
+            setServers(servers);
+            return;
+        }
+        mServers.addAll(servers);
+        mServerAdapter.addServers(servers);
+    }
     
     public boolean isFilled() {
         return mServerAdapter != null;
@@ -191,15 +227,76 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
         adb.show();
     }
 
+    /**
+     * Finds a nearby server with low latency and free slots.
+     * Shows a ProgressDialog while it performs this and an AlertDialog allowing the user to connect.
+     */
     private void findOptimalServer() {
-        MatchServerTask matchServerTask = new MatchServerTask();
-        matchServerTask.execute(Locale.getDefault().getCountry());
+        final ProgressDialog progressDialog = ProgressDialog.show(getActivity(), null, getString(R.string.server_match_progress));
+        mMatcher = new ServerMatcher(ServerProbe.getInstance(), mServers, Locale.getDefault().getCountry(),
+                new ServerMatcher.OnServerMatchedListener() {
+            @Override
+            public void onServerMatched(ServerMatcher.Result result) {
+                mMatcher = null;
+                progressDialog.dismiss();
+                if(isAdded()) showMatchResult(result);
+            }
+        });
+        progressDialog.setCancelable(true);
+        progressDialog.setCanceledOnTouchOutside(true);
+        progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                if(mMatcher != null) mMatcher.cancel();
+                mMatcher = null;
+            }
+        });
+        mMatcher.start();
+    }
+
+    private void showMatchResult(ServerMatcher.Result result) {
+        final PublicServer publicServer = result.getServer();
+        String probes = getString(R.string.server_match_probes, result.getServersProbed(), result.getPingsSent());
+
+        AlertDialog.Builder adb = new AlertDialog.Builder(getActivity());
+        if(publicServer != null) {
+            ServerInfoResponse response = result.getResponse();
+            LatencyStats stats = result.getStats();
+            adb.setTitle(R.string.server_match_found);
+            adb.setMessage(getString(R.string.server_match_info,
+                    publicServer.getName(),
+                    publicServer.getHost(),
+                    publicServer.getPort(),
+                    response.getCurrentUsers(),
+                    response.getMaximumUsers(),
+                    response.getVersionString(),
+                    publicServer.getCountry(),
+                    stats.getMedian()) + "\n\n" + probes);
+            adb.setPositiveButton(R.string.connect, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    mConnectHandler.connectToPublicServer(publicServer);
+                }
+            });
+            adb.setNegativeButton(android.R.string.cancel, null);
+        } else {
+            adb.setTitle(R.string.server_match_not_found);
+            adb.setMessage(probes);
+            adb.setPositiveButton(android.R.string.ok, null);
+        }
+        adb.show();
     }
 
     private void showSortDialog() {
         AlertDialog.Builder alertBuilder = new AlertDialog.Builder(getActivity());
         alertBuilder.setTitle(R.string.sortBy);
-        alertBuilder.setItems(new String[] { getString(R.string.name), getString(R.string.country)}, new SortClickListener());
+        alertBuilder.setItems(new String[] {
+                getString(R.string.name),
+                getString(R.string.country),
+                getString(R.string.sort_latency),
+                getString(R.string.sort_user_count),
+                getString(R.string.sort_fill_ratio),
+                getString(R.string.sort_distance) }, new SortClickListener());
         alertBuilder.show();
     }
     
@@ -208,44 +305,62 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
         final EditText nameText = (EditText) dialogView.findViewById(R.id.server_search_name);
         final EditText countryText = (EditText) dialogView.findViewById(R.id.server_search_country);
                 
+        nameText.setText(mQuery);
+        countryText.setText(mCountryQuery);
+
+        // Filter as the user types, once they pause.
+        final Runnable filterRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mQuery = nameText.getText().toString();
+                mCountryQuery = countryText.getText().toString();
+                if(mServerAdapter != null) mServerAdapter.refresh();
+            }
+        };
+        TextWatcher filterWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(filterRunnable);
+                mHandler.postDelayed(filterRunnable, FILTER_DELAY);
+            }
+        };
+        nameText.addTextChangedListener(filterWatcher);
+        countryText.addTextChangedListener(filterWatcher);
+
         final AlertDialog dlg = new AlertDialog.Builder(getActivity()).
             setTitle(R.string.search).
             setView(dialogView).
             setPositiveButton(R.string.search, new DialogInterface.OnClickListener() {
                 public void onClick(final DialogInterface dialog, final int which)
                 {
-                    String queryName = nameText.getText().toString().toUpperCase(Locale.US);
-                    String queryCountry = countryText.getText().toString().toUpperCase(Locale.US);
-                    mServerAdapter.filter(queryName, queryCountry);
+                    mHandler.removeCallbacks(filterRunnable);
+                    filterRunnable.run();
                     dialog.dismiss();
                 }
             }).create();
-        
-        nameText.setImeOptions(EditorInfo.IME_ACTION_SEARCH);
-        nameText.setOnEditorActionListener(new OnEditorActionListener() {
+
+        OnEditorActionListener searchActionListener = new OnEditorActionListener() {
             @Override
             public boolean onEditorAction(final TextView v, final int actionId, final KeyEvent event)
             {
-                String queryName = nameText.getText().toString().toUpperCase(Locale.US);
-                String queryCountry = countryText.getText().toString().toUpperCase(Locale.US);
-                mServerAdapter.filter(queryName, queryCountry);
+                mHandler.removeCallbacks(filterRunnable);
+                filterRunnable.run();
                 dlg.dismiss();
                 return true;
             }
-        });
-        
+        };
+        nameText.setImeOptions(EditorInfo.IME_ACTION_SEARCH);
+        nameText.setOnEditorActionListener(searchActionListener);
         countryText.setImeOptions(EditorInfo.IME_ACTION_SEARCH);
-        countryText.setOnEditorActionListener(new OnEditorActionListener() {
-            @Override
-            public boolean onEditorAction(final TextView v, final int actionId, final KeyEvent event)
-            {
-                String queryName = nameText.getText().toString().toUpperCase(Locale.US);
-                String queryCountry = countryText.getText().toString().toUpperCase(Locale.US);
-                mServerAdapter.filter(queryName, queryCountry);
-                dlg.dismiss();
-                return true;
-            }
-        });
+        countryText.setOnEditorActionListener(searchActionListener);
         
         // Show keyboard automatically
         nameText.setOnFocusChangeListener(new View.OnFocusChangeListener() {
@@ -267,23 +382,77 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
     
     private class PublicServerAdapter extends ArrayAdapter<PublicServer> {
         private Map<PublicServer, ServerInfoResponse> infoResponses = new HashMap<PublicServer, ServerInfoResponse>();
-        private List<PublicServer> originalServers;
+        private Set<PublicServer> pendingPings = new HashSet<PublicServer>();
+        private final PublicServerIndex mIndex = new PublicServerIndex();
+        /** Incremented for each refresh, so results from older refreshes can be dropped. */
+        private int mGeneration;
         
         public PublicServerAdapter(Context context, List<PublicServer> servers) {
-            super(context, android.R.id.text1, servers);
-            originalServers = new ArrayList<PublicServer>(servers);
+            super(context, android.R.id.text1, new ArrayList<PublicServer>(servers));
+            indexServers(servers);
+            if(mQuery.length() > 0 || mCountryQuery.length() > 0 || !mSortKeys.isEmpty())
+                refresh();
         }
-        
-        public void filter(String queryName, String queryCountry) {
+
+        public void addServers(List<PublicServer> servers) {
+            indexServers(servers);
+            refresh();
+        }
+
+        private void indexServers(List<PublicServer> servers) {
+            final List<PublicServer> indexed = new ArrayList<PublicServer>(servers);
+            sFilterExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mIndex.add(indexed);
+                }
+            });
+        }
+
+        /**
+         * Filters and sorts the list in the background with the current query and sort keys,
+         * then swaps the results in.
+         */
+        public void refresh() {
+            final int generation = ++mGeneration;
+            final String query = mQuery;
+            final String countryQuery = mCountryQuery;
+            final Comparator<PublicServer> comparator = createComparator();
+            sFilterExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<PublicServer> results = mIndex.search(query, countryQuery);
+                    if(comparator != null) Collections.sort(results, comparator);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(generation == mGeneration) setResults(results);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void setResults(List<PublicServer> results) {
+            setNotifyOnChange(false);
             clear();
-            
-            for(PublicServer server : originalServers) {
-                String serverName = server.getName() != null ? server.getName().toUpperCase(Locale.US) : "";
-                String serverCountry = server.getCountry() != null ? server.getCountry().toUpperCase(Locale.US) : "";
-                
-                if(serverName.contains(queryName) && serverCountry.contains(queryCountry))
-                    add(server);
-            }
+            for(PublicServer server : results)
+                add(server);
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Creates a comparator for the current sort keys, using a snapshot of the ping results.
+         * @return The comparator, or null if the list should be left in directory order.
+         */
+        private Comparator<PublicServer> createComparator() {
+            if(mSortKeys.isEmpty()) return null;
+            Map<PublicServer, ServerInfoResponse> responses = new HashMap<PublicServer, ServerInfoResponse>(infoResponses);
+            List<Comparator<PublicServer>> comparators = new ArrayList<Comparator<PublicServer>>();
+            for(int key : mSortKeys)
+                comparators.add(createSortComparator(key, responses));
+            comparators.add(createSortComparator(SORT_NAME, responses));
+            return Ordering.compound(comparators);
         }
 
         @SuppressLint("NewApi")
@@ -317,27 +486,9 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
             TextView locationText = (TextView) view.findViewById(R.id.server_row_location);
             locationText.setText(server.getCountry());
             
-            // Ping server if available
-            if(!infoResponses.containsKey(server) && mActivePingCount < MAX_ACTIVE_PINGS) {
-                mActivePingCount++;
-                final View serverView = view; // Create final instance of view for use in asynctask
-                ServerInfoTask task = new ServerInfoTask() {
-                    protected void onPostExecute(ServerInfoResponse result) {
-                        super.onPostExecute(result);
-                        infoResponses.put(server, result);
-                        if(serverView != null && serverView.isShown() && serverView.getTag() == server)
-                            updateInfoResponseView(serverView, server);
-                        mActivePingCount--;
-                        Log.d(Constants.TAG, "DEBUG: Servers remaining in queue: "+ mActivePingCount);
-                    };
-                };
-                
-                // Execute on parallel threads if API >= 11. RACE CAR THREADING, WOOOOOOOOOOOOOOOOOOOOOO
-                if(VERSION.SDK_INT >= 11)
-                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, server);
-                else
-                    task.execute(server);
-            }
+            // Ping server once it's shown
+            if(!infoResponses.containsKey(server) && pendingPings.add(server))
+                mPinger.ping(server);
             
             ImageView favoriteButton = (ImageView)view.findViewById(R.id.server_row_favorite);
             
@@ -362,7 +513,12 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
                             String username = usernameField.getText().toString();
                             if(username.equals("")) username = settings.getDefaultUsername();
                             server.setUsername(username);
-                            mDatabaseProvider.getDatabase().addServer(server);
+                            mDatabaseProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+                                @Override
+                                public void run(PlumbleDatabase database) {
+                                    database.addServer(server);
+                                }
+                            });
                         }
                     });
                     
@@ -376,6 +532,18 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
             return view;
         }
         
+        /**
+         * Stores the ping result for the server, and updates its row if it is visible.
+         */
+        public void setInfoResponse(PublicServer server, ServerInfoResponse response) {
+            pendingPings.remove(server);
+            infoResponses.put(server, response);
+            for(int i = 0; i < mServerGrid.getChildCount(); i++) {
+                View view = mServerGrid.getChildAt(i);
+                if(view.getTag() == server) updateInfoResponseView(view, server);
+            }
+        }
+
         private void updateInfoResponseView(View view, PublicServer server) {
             ServerInfoResponse infoResponse = infoResponses.get(server);
             // If there is a null value for the server info (rather than none at all), the request must have failed.
@@ -403,260 +571,158 @@ public class PublicServerListFragment extends Fragment implements OnItemClickLis
     }
 
     private void fillPublicList() {
-        new PublicServerFetchTask() {
-            protected void onPostExecute(List<PublicServer> result) {
-                super.onPostExecute(result);
-
-                if (result == null) {
-                    // Handle error
-                    Toast.makeText(getActivity(), R.string.error_fetching_servers, Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
-                if(isVisible()) // Prevents NPEs when fragment is detached.
-                    setServers(result);
-            };
-        }.execute();
+        new PublicServerFetchTask(getActivity()).execute();
     }
 
     private class SortClickListener implements DialogInterface.OnClickListener {
-
-        private static final int SORT_NAME = 0;
-        private static final int SORT_COUNTRY = 1;
-        
-        private Comparator<PublicServer> nameComparator = new Comparator<PublicServer>() {
-            @Override
-            public int compare(PublicServer lhs, PublicServer rhs) {
-                return lhs.getName().compareTo(rhs.getName());
-            }
-        };
-
-        private Comparator<PublicServer> countryComparator = new Comparator<PublicServer>() {
-            @Override
-            public int compare(PublicServer lhs, PublicServer rhs) {
-                if(rhs.getCountry() == null) return -1;
-                else if(lhs.getCountry() == null) return 1;
-                return lhs.getCountry().compareTo(rhs.getCountry());
-            }
-        };
-        
-        
         @Override
         public void onClick(DialogInterface dialog, int which) {
-            ArrayAdapter<PublicServer> arrayAdapter = mServerAdapter;
-            if(which == SORT_NAME) {
-                arrayAdapter.sort(nameComparator);
-            } else if(which == SORT_COUNTRY) {
-                arrayAdapter.sort(countryComparator);
-            }
+            mSortKeys.remove(Integer.valueOf(which));
+            mSortKeys.addFirst(which);
+            while(mSortKeys.size() > MAX_SORT_KEYS)
+                mSortKeys.removeLast();
+            mServerAdapter.refresh();
         }
     }
 
-    private class PublicServerFetchTask extends AsyncTask<Void, Void, List<PublicServer>> {
-
-    private static final String MUMBLE_PUBLIC_URL = "http://www.mumble.info/list2.cgi";
+    /**
+     * Creates a comparator for a single sort key.
+     * Servers that haven't responded to a ping sort last by latency, user count and fill ratio.
+     * @param responses A snapshot of ping results, as the comparator is used off the main thread.
+     */
+    private Comparator<PublicServer> createSortComparator(int key, final Map<PublicServer, ServerInfoResponse> responses) {
+        switch (key) {
+            case SORT_COUNTRY:
+                return new Comparator<PublicServer>() {
+                    @Override
+                    public int compare(PublicServer lhs, PublicServer rhs) {
+                        if(rhs.getCountry() == null) return lhs.getCountry() == null ? 0 : -1;
+                        else if(lhs.getCountry() == null) return 1;
+                        return lhs.getCountry().compareTo(rhs.getCountry());
+                    }
+                };
+            case SORT_LATENCY:
+                return new Comparator<PublicServer>() {
+                    @Override
+                    public int compare(PublicServer lhs, PublicServer rhs) {
+                        return Ints.compare(getLatency(lhs), getLatency(rhs));
+                    }
 
-    @Override
-    protected List<PublicServer> doInBackground(Void... params) {
-        try {
-            // Fetch XML from server
-            URL url = new URL(MUMBLE_PUBLIC_URL);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.addRequestProperty("version", com.morlunk.jumble.Constants.PROTOCOL_STRING);
-            connection.connect();
-            InputStream stream = connection.getInputStream();
-
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-            parser.setInput(stream, "UTF-8");
-            parser.nextTag();
-
-            List<PublicServer> serverList = new ArrayList<PublicServer>();
-
-            parser.require(XmlPullParser.START_TAG, null, "servers");
-            while(parser.next() != XmlPullParser.END_TAG) {
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
-                }
+                    private int getLatency(PublicServer server) {
+                        ServerInfoResponse response = responses.get(server);
+                        return response != null && !response.isDummy() ? response.getLatency() : Integer.MAX_VALUE;
+                    }
+                };
+            case SORT_USERS:
+                return new Comparator<PublicServer>() {
+                    @Override
+                    public int compare(PublicServer lhs, PublicServer rhs) {
+                        return Ints.compare(getUsers(rhs), getUsers(lhs)); // Busiest first
+                    }
 
-                serverList.add(readEntry(parser));
-            }
-            parser.require(XmlPullParser.END_TAG, null, "servers");
+                    private int getUsers(PublicServer server) {
+                        ServerInfoResponse response = responses.get(server);
+                        return response != null && !response.isDummy() ? response.getCurrentUsers() : -1;
+                    }
+                };
+            case SORT_FILL_RATIO:
+                return new Comparator<PublicServer>() {
+                    @Override
+                    public int compare(PublicServer lhs, PublicServer rhs) {
+                        return Float.compare(getFillRatio(lhs), getFillRatio(rhs)); // Emptiest first
+                    }
 
-            return serverList;
-        } catch (Exception e) {
-            e.printStackTrace();
+                    private float getFillRatio(PublicServer server) {
+                        ServerInfoResponse response = responses.get(server);
+                        if(response == null || response.isDummy()) return Float.MAX_VALUE;
+                        return (float) response.getCurrentUsers() / Math.max(1, response.getMaximumUsers());
+                    }
+                };
+            case SORT_DISTANCE:
+                // The directory has no coordinates, so rank by country, then continent.
+                final String userCountry = Locale.getDefault().getCountry();
+                final String userContinent = ServerMatcher.findContinent(mServers, userCountry);
+                return new Comparator<PublicServer>() {
+                    @Override
+                    public int compare(PublicServer lhs, PublicServer rhs) {
+                        return Ints.compare(ServerMatcher.getProximity(lhs, userCountry, userContinent),
+                                ServerMatcher.getProximity(rhs, userCountry, userContinent));
+                    }
+                };
+            case SORT_NAME:
+            default:
+                return new Comparator<PublicServer>() {
+                    @Override
+                    public int compare(PublicServer lhs, PublicServer rhs) {
+                        String lhsName = lhs.getName() != null ? lhs.getName() : "";
+                        String rhsName = rhs.getName() != null ? rhs.getName() : "";
+                        return lhsName.compareToIgnoreCase(rhsName);
+                    }
+                };
         }
-        return null;
-    }
-
-    private PublicServer readEntry(XmlPullParser parser) throws XmlPullParserException, IOException {
-        String name = parser.getAttributeValue(null, "name");
-        String ca = parser.getAttributeValue(null, "ca");
-        String continentCode = parser.getAttributeValue(null, "continent_code");
-        String country = parser.getAttributeValue(null, "country");
-        String countryCode = parser.getAttributeValue(null, "country_code");
-        String ip = parser.getAttributeValue(null, "ip");
-        String port = parser.getAttributeValue(null, "port");
-        String region = parser.getAttributeValue(null, "region");
-        String url = parser.getAttributeValue(null, "url");
-
-        parser.nextTag();
-
-        PublicServer server = new PublicServer(name, ca, continentCode, country, countryCode, ip, Integer.parseInt(port), region, url);
-
-        return server;
-    }
     }
 
     /**
-     * Finds an empty server in the user's country code with low latency.
-     * By default, it will show a ProgressDialog while it performs this and an AlertDialog allowing the user to connect.
+     * A batch of servers from the directory.
      */
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-    private class MatchServerTask extends AsyncTask<String, Void, ServerInfoResponse> {
-
-        /**
-         * Query until we find up to SEARCH_RANGE empty servers that meet the zero user and location requirements.
-         * Once we have that, then we'll sort them based on latency.
-         * TODO make this a user-changeable option.
-         */
-        public static final int SEARCH_RANGE = 20;
-
-        private Comparator<ServerInfoResponse> mLatencyComparator = new Comparator<ServerInfoResponse>() {
-            @Override
-            public int compare(ServerInfoResponse lhs, ServerInfoResponse rhs) {
-                return lhs.getLatency() == rhs.getLatency() ? 0 :
-                        lhs.getLatency() < rhs.getLatency() ? -1 : 1;
-            }
-        };
-
-        private class MatchServerInfoTask extends ServerInfoTask {
-            @Override
-            protected void onPostExecute(ServerInfoResponse serverInfoResponse) {
-                mResponseCount++;
-                if(serverInfoResponse == null) {
-                    // TODO handle bad responses
-                } else if(serverInfoResponse.getCurrentUsers() == 0 &&
-                        serverInfoResponse.getVersion() == com.morlunk.jumble.Constants.PROTOCOL_VERSION) {
-                    mGoodResponses.add(serverInfoResponse);
-                }
-
-                // Once we have a good sample of results, shut down the ping threads.
-                if(mResponseCount >= mResponsesToSend) {
-                    synchronized (mLock) {
-                        mLock.notify();
-                    }
-                    mPingExecutor.shutdownNow();
-                }
-            }
+    private static class ServerBatch {
+        final List<PublicServer> servers;
+        final boolean replace;
 
+        ServerBatch(List<PublicServer> servers, boolean replace) {
+            this.servers = servers;
+            this.replace = replace;
         }
+    }
 
-        private ExecutorService mPingExecutor = Executors.newFixedThreadPool(5); // Run 5 concurrent pings at a time
-        private Object mLock = new Object();
-
-        private List<ServerInfoResponse> mGoodResponses = Collections.synchronizedList(new ArrayList<ServerInfoResponse>());
-        private volatile int mResponseCount = 0;
-        private int mResponsesToSend = SEARCH_RANGE;
+    /**
+     * Loads the public server directory, adding servers to the list in batches as they're parsed.
+     */
+    private class PublicServerFetchTask extends AsyncTask<Void, ServerBatch, Boolean> {
 
-        private ProgressDialog mProgressDialog;
+        private final PublicServerDirectory mDirectory;
 
-        @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-            mProgressDialog = ProgressDialog.show(getActivity(), null, getString(R.string.server_match_progress));
-            mProgressDialog.setCancelable(true);
-            mProgressDialog.setCanceledOnTouchOutside(true);
-            mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
-                @Override
-                public void onCancel(DialogInterface dialog) {
-                    cancel(true);
-                }
-            });
+        public PublicServerFetchTask(Context context) {
+            mDirectory = new PublicServerDirectory(context.getApplicationContext());
         }
 
         @Override
-        protected ServerInfoResponse doInBackground(String... params) {
-            final String country = params.length > 0 ? params[0] : null; // If a country is provided, search within country
-
-            Collection<PublicServer> servers;
-            if(country != null)
-                servers = Collections2.filter(mServers, new Predicate<PublicServer>() {
+        protected Boolean doInBackground(Void... params) {
+            try {
+                mDirectory.load(new PublicServerDirectory.OnServersLoadedListener() {
                     @Override
-                    public boolean apply(PublicServer publicServer) {
-                        return country.equals(publicServer.getCountryCode());
+                    public void onServersLoaded(List<PublicServer> servers, boolean replace) {
+                        publishProgress(new ServerBatch(servers, replace));
                     }
                 });
-            else
-                servers = mServers;
-
-            // For countries with 0 servers, immediately return null.
-            if(servers.size() == 0)
-                return null;
-
-            // If there are less servers than the value of our range, deal with it.
-            mResponsesToSend = Math.min(SEARCH_RANGE, servers.size());
-
-            Iterator iterator = servers.iterator();
-            while(iterator.hasNext() && mGoodResponses.size() < mResponsesToSend) {
-                PublicServer server = (PublicServer) iterator.next();
-                new MatchServerInfoTask().executeOnExecutor(mPingExecutor, server);
-            }
-            try {
-                synchronized (mLock) {
-                    mLock.wait();
-                }
-            } catch (InterruptedException e) {
+                return true;
+            } catch (Exception e) {
                 e.printStackTrace();
             }
+            return false;
+        }
 
-            Collections.sort(mGoodResponses, mLatencyComparator);
-
-            if(mGoodResponses.size() > 0)
-                return mGoodResponses.get(0);
-            else
-                return null;
+        @Override
+        protected void onProgressUpdate(ServerBatch... batches) {
+            if(!isAdded()) return; // Prevents NPEs when fragment is detached.
+            for(ServerBatch batch : batches) {
+                if(batch.replace)
+                    setServers(batch.servers);
+                else
+                    addServers(batch.servers);
+            }
         }
 
         @Override
-        protected void onPostExecute(ServerInfoResponse response) {
-            super.onPostExecute(response);
-            final PublicServer publicServer = response == null ? null : (PublicServer) response.getServer();
-            mProgressDialog.hide();
-
-            AlertDialog.Builder adb = new AlertDialog.Builder(getActivity());
-            if(publicServer != null) {
-                adb.setTitle(R.string.server_match_found);
-                adb.setMessage(getString(R.string.server_match_info,
-                        publicServer.getName(),
-                        publicServer.getHost(),
-                        publicServer.getPort(),
-                        response.getCurrentUsers(),
-                        response.getMaximumUsers(),
-                        response.getVersionString(),
-                        publicServer.getCountry(),
-                        response.getLatency()));
-                adb.setPositiveButton(R.string.connect, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        mConnectHandler.connectToPublicServer(publicServer);
-                    }
-                });
-            } else {
-                adb.setTitle(R.string.server_match_not_found);
-                adb.setMessage(R.string.server_match_expand_country);
-                adb.setPositiveButton(R.string.expand, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        MatchServerTask matchTask = new MatchServerTask();
-                        matchTask.execute();
-                    }
-                });
+        protected void onPostExecute(Boolean success) {
+            super.onPostExecute(success);
+            if(!isAdded()) return;
+
+            if(!success) {
+                Toast.makeText(getActivity(), R.string.error_fetching_servers, Toast.LENGTH_SHORT).show();
+            } else if(!isFilled()) {
+                setServers(new ArrayList<PublicServer>()); // Empty directory
             }
-            adb.setNegativeButton(android.R.string.cancel, null);
-            adb.show();
         }
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.util.Xml;
+
+import com.morlunk.mumbleclient.db.PublicServer;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams entries from the public server list XML, as served by list2.cgi.
+ * Servers are handed to the listener in batches as they are parsed, so callers can show them
+ * before the whole document has been read.
+ */
+public class PublicServerListParser {
+
+    public interface OnServersParsedListener {
+        /**
+         * Called on the parsing thread with each batch of servers.
+         */
+        public void onServersParsed(List<PublicServer> servers);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    private final int mBatchSize;
+
+    public PublicServerListParser() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public PublicServerListParser(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Parses the list from the given stream, which is not closed.
+     * @return The total number of servers parsed.
+     */
+    public int parse(InputStream stream, OnServersParsedListener listener) throws XmlPullParserException, IOException {
+        return parse(Xml.newPullParser(), stream, listener);
+    }
+
+    /**
+     * Parses the list from the given stream with the given pull parser, i.e. kXML off-device.
+     * @see #parse(InputStream, OnServersParsedListener)
+     */
+    public int parse(XmlPullParser parser, InputStream stream, OnServersParsedListener listener) throws XmlPullParserException, IOException {
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(stream, "UTF-8");
+        parser.nextTag();
+
+        int count = 0;
+        List<PublicServer> batch = new ArrayList<PublicServer>(mBatchSize);
+
+        parser.require(XmlPullParser.START_TAG, null, "servers");
+        while(parser.next() != XmlPullParser.END_TAG) {
+            if (parser.getEventType() != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            batch.add(readEntry(parser));
+            count++;
+            if(batch.size() >= mBatchSize) {
+                listener.onServersParsed(batch);
+                batch = new ArrayList<PublicServer>(mBatchSize);
+            }
+        }
+        parser.require(XmlPullParser.END_TAG, null, "servers");
+
+        if(!batch.isEmpty()) listener.onServersParsed(batch);
+        return count;
+    }
+
+    private PublicServer readEntry(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String name = parser.getAttributeValue(null, "name");
+        String ca = parser.getAttributeValue(null, "ca");
+        String continentCode = parser.getAttributeValue(null, "continent_code");
+        String country = parser.getAttributeValue(null, "country");
+        String countryCode = parser.getAttributeValue(null, "country_code");
+        String ip = parser.getAttributeValue(null, "ip");
+        String port = parser.getAttributeValue(null, "port");
+        String region = parser.getAttributeValue(null, "region");
+        String url = parser.getAttributeValue(null, "url");
+
+        parser.nextTag();
+
+        return new PublicServer(name, ca, continentCode, country, countryCode, ip, Integer.parseInt(port), region, url);
+    }
+}
@@ -35,7 +35,9 @@ import com.morlunk.jumble.Constants;
 import com.morlunk.jumble.model.Server;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.db.PlumbleDatabase;
 
 public class ServerEditFragment extends DialogFragment {
 
@@ -177,10 +179,26 @@ public class ServerEditFragment extends DialogFragment {
             server.setPort(port);
             server.setUsername(username);
             server.setPassword(password);
-			if(shouldCommit) mDatabaseProvider.getDatabase().updateServer(server);
+			if(shouldCommit) {
+                final Server updatedServer = server;
+                mDatabaseProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+                    @Override
+                    public void run(PlumbleDatabase database) {
+                        database.updateServer(updatedServer);
+                    }
+                });
+            }
 		} else {
             server = new Server(-1, name, host, port, username, password);
-			if(shouldCommit) mDatabaseProvider.getDatabase().addServer(server);
+			if(shouldCommit) {
+                final Server newServer = server;
+                mDatabaseProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+                    @Override
+                    public void run(PlumbleDatabase database) {
+                        database.addServer(newServer);
+                    }
+                });
+            }
 		}
 
         if(shouldCommit) mListener.serverInfoUpdated();
@@ -28,6 +28,13 @@ import java.nio.ByteBuffer;
  */
 public class ServerInfoResponse {
 
+	/** The most versions to keep formatted strings for. There are only ever a handful in use. */
+	private static final int MAX_CACHED_VERSIONS = 16;
+	/** Formatted version strings, at the same index as their version. Lookups don't allocate. */
+	private static final int[] sCachedVersions = new int[MAX_CACHED_VERSIONS];
+	private static final String[] sVersionStrings = new String[MAX_CACHED_VERSIONS];
+	private static int sCachedVersionCount;
+
 	private long mIdentifier;
 	private int mVersion;
 	private int mCurrentUsers;
@@ -47,14 +54,23 @@ public class ServerInfoResponse {
 	 * @see http://mumble.sourceforge.net/Protocol
 	 */
 	public ServerInfoResponse(Server server, byte[] response, int latency) {
-		ByteBuffer buffer = ByteBuffer.wrap(response);
-		mVersion = buffer.getInt();
-		mIdentifier = buffer.getLong();
-		mCurrentUsers = buffer.getInt();
-		mMaximumUsers = buffer.getInt();
-		mAllowedBandwidth = buffer.getInt();
-        mLatency = latency;
-        mServer = server;
+		this(server, ByteBuffer.wrap(response), latency);
+	}
+
+	/**
+	 * Creates a ServerInfoResponse object from a buffer holding the response at index 0.
+	 * Reads with absolute gets, so the buffer's position is unchanged and it can be reused.
+	 * @see http://mumble.sourceforge.net/Protocol
+	 */
+	public ServerInfoResponse(Server server, ByteBuffer response, int latency) {
+		set(server, response, latency);
+	}
+
+	/**
+	 * Creates a copy of the given response, for keeping a response that will be reused.
+	 */
+	public ServerInfoResponse(ServerInfoResponse response) {
+		set(response);
 	}
 
 	/**
@@ -64,6 +80,35 @@ public class ServerInfoResponse {
 		this.mDummy = true;
 	}
 	
+	/**
+	 * Overwrites this response with one read from the buffer, as the pinger does with its reused
+	 * responses.
+	 */
+	void set(Server server, ByteBuffer response, int latency) {
+		mVersion = response.getInt(0);
+		mIdentifier = response.getLong(4);
+		mCurrentUsers = response.getInt(12);
+		mMaximumUsers = response.getInt(16);
+		mAllowedBandwidth = response.getInt(20);
+        mLatency = latency;
+        mServer = server;
+        mDummy = false;
+	}
+
+	/**
+	 * Overwrites this response with a copy of the given one.
+	 */
+	public void set(ServerInfoResponse response) {
+		mVersion = response.mVersion;
+		mIdentifier = response.mIdentifier;
+		mCurrentUsers = response.mCurrentUsers;
+		mMaximumUsers = response.mMaximumUsers;
+		mAllowedBandwidth = response.mAllowedBandwidth;
+        mLatency = response.mLatency;
+        mServer = response.mServer;
+        mDummy = response.mDummy;
+	}
+
 	public long getIdentifier() {
 		return mIdentifier;
 	}
@@ -73,8 +118,19 @@ public class ServerInfoResponse {
 	}
 	
 	public String getVersionString() {
-		byte[] versionBytes = ByteBuffer.allocate(4).putInt(mVersion).array();
-		return String.format("%d.%d.%d", (int)versionBytes[1], (int)versionBytes[2], (int)versionBytes[3]);
+		synchronized (sVersionStrings) {
+			for(int i = 0; i < sCachedVersionCount; i++) {
+				if(sCachedVersions[i] == mVersion)
+					return sVersionStrings[i];
+			}
+			String versionString = ((mVersion >> 16) & 0xFF) + "." + ((mVersion >> 8) & 0xFF) + "." + (mVersion & 0xFF);
+			if(sCachedVersionCount < MAX_CACHED_VERSIONS) {
+				sCachedVersions[sCachedVersionCount] = mVersion;
+				sVersionStrings[sCachedVersionCount] = versionString;
+				sCachedVersionCount++;
+			}
+			return versionString;
+		}
 	}
 
 	public int getCurrentUsers() {
@@ -41,20 +41,25 @@ import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.morlunk.jumble.model.Server;
 import com.morlunk.mumbleclient.BuildConfig;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
+import com.morlunk.mumbleclient.db.AsyncDatabase;
 import com.morlunk.mumbleclient.db.DatabaseProvider;
+import com.morlunk.mumbleclient.db.PlumbleChatArchive;
+import com.morlunk.mumbleclient.db.PlumbleDatabase;
 import com.morlunk.mumbleclient.db.PublicServer;
 import com.morlunk.mumbleclient.util.CardDrawable;
 
 import org.w3c.dom.Text;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * Displays a list of servers, and allows the user to connect and edit them.
@@ -72,13 +77,34 @@ public class ServerListFragment extends Fragment implements OnItemClickListener
     private DatabaseProvider mDatabaseProvider;
 	private GridView mServerGrid;
 	private ServerAdapter mServerAdapter;
-	private Map<Server, ServerInfoResponse> mInfoResponses = new HashMap<Server, ServerInfoResponse>();
+    private ServerPingScheduler mPingScheduler;
+
+    private ServerPingScheduler.OnPingsUpdatedListener mPingListener = new ServerPingScheduler.OnPingsUpdatedListener() {
+        @Override
+        public void onPingsUpdated(Set<Server> servers) {
+            if(mServerGrid == null) return;
+            // Only rebind the visible rows that changed.
+            for(int i = 0; i < mServerGrid.getChildCount(); i++) {
+                View view = mServerGrid.getChildAt(i);
+                if(servers.contains(view.getTag()))
+                    updateInfoView(view, (Server) view.getTag());
+            }
+        }
+    };
+
+    private AsyncDatabase.OnDatabaseChangedListener mDatabaseListener = new AsyncDatabase.OnDatabaseChangedListener() {
+        @Override
+        public void onDatabaseChanged() {
+            updateServers();
+        }
+    };
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		
 		setHasOptionsMenu(true);
+        mPingScheduler = ServerPingScheduler.getInstance();
 	}
 	
 	@Override
@@ -124,17 +150,84 @@ public class ServerListFragment extends Fragment implements OnItemClickListener
     @Override
     public void onResume() {
         super.onResume();
+        mDatabaseProvider.getAsyncDatabase().registerListener(mDatabaseListener);
+        mPingScheduler.addListener(mPingListener);
         updateServers();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        mDatabaseProvider.getAsyncDatabase().unregisterListener(mDatabaseListener);
+        mPingScheduler.removeListener(mPingListener);
+    }
+
     @Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		if(item.getItemId() == R.id.menu_add_server_item) {
 			addServer();
 			return true;
-		}
+		} else if(item.getItemId() == R.id.menu_import_servers_item) {
+            importServers();
+            return true;
+        } else if(item.getItemId() == R.id.menu_export_servers_item) {
+            exportServers();
+            return true;
+        }
 		return super.onOptionsItemSelected(item);
 	}
+
+    /**
+     * Adds the servers in the export file that aren't already saved to the database, in a single transaction.
+     * The list refreshes through the database listener once the import completes.
+     */
+    private void importServers() {
+        final Context context = getActivity().getApplicationContext();
+        mDatabaseProvider.getAsyncDatabase().update(new AsyncDatabase.Query<String>() {
+            @Override
+            public String run(PlumbleDatabase database) {
+                try {
+                    File file = ServerListSerializer.getExportFile();
+                    List<Server> servers = ServerListSerializer.removeExisting(
+                            ServerListSerializer.readServers(file), database.getServers());
+                    if(!servers.isEmpty()) database.addServers(servers);
+                    return context.getString(R.string.servers_imported, servers.size(), file.getPath());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return context.getString(R.string.servers_import_failed, e.getMessage());
+                }
+            }
+        }, mToastCallback);
+    }
+
+    private void exportServers() {
+        final Context context = getActivity().getApplicationContext();
+        mDatabaseProvider.getAsyncDatabase().query(new AsyncDatabase.Query<String>() {
+            @Override
+            public String run(PlumbleDatabase database) {
+                try {
+                    File file = ServerListSerializer.getExportFile();
+                    List<Server> servers = database.getServers();
+                    ServerListSerializer.writeServers(servers, file);
+                    return context.getString(R.string.servers_exported, servers.size(), file.getPath());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return context.getString(R.string.servers_export_failed, e.getMessage());
+                }
+            }
+        }, mToastCallback);
+    }
+
+    /**
+     * Shows the outcome of an import or export.
+     */
+    private final AsyncDatabase.Callback<String> mToastCallback = new AsyncDatabase.Callback<String>() {
+        @Override
+        public void onResult(String result) {
+            if(!isAdded()) return;
+            Toast.makeText(getActivity(), result, Toast.LENGTH_LONG).show();
+        }
+    };
 	
 	private void addServer() {
 		ServerEditFragment infoDialog = new ServerEditFragment();
@@ -166,36 +259,47 @@ public class ServerListFragment extends Fragment implements OnItemClickListener
 		alertBuilder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
-				mDatabaseProvider.getDatabase().removeServer(server);
 				mServerAdapter.remove(server);
+                PlumbleChatArchive.getInstance(getActivity()).deleteMessages(server.getId());
+                mDatabaseProvider.getAsyncDatabase().update(new AsyncDatabase.Update() {
+                    @Override
+                    public void run(PlumbleDatabase database) {
+                        database.removeServer(server);
+                    }
+                });
 			}
 		});
 		alertBuilder.setNegativeButton(android.R.string.cancel, null);
 		alertBuilder.show();
 	}
 	
+	/**
+	 * Loads the server list from the database, then pings each server.
+	 */
 	public void updateServers() {
-		List<Server> servers = getServers();
+        mDatabaseProvider.getAsyncDatabase().query(new AsyncDatabase.Query<List<Server>>() {
+            @Override
+            public List<Server> run(PlumbleDatabase database) {
+                return database.getServers();
+            }
+        }, new AsyncDatabase.Callback<List<Server>>() {
+            @Override
+            public void onResult(List<Server> servers) {
+                if(isAdded()) setServers(servers);
+            }
+        });
+    }
+
+    private void setServers(List<Server> servers) {
 		mServerAdapter = new ServerAdapter(getActivity(), servers);
 		mServerGrid.setAdapter(mServerAdapter);
 		
-		for(final Server server : servers) {
-			new ServerInfoTask() {
-				protected void onPostExecute(ServerInfoResponse result) {
-					super.onPostExecute(result);
-					mInfoResponses.put(server, result);
-					mServerAdapter.notifyDataSetChanged();
-				};
-			}.execute(server);
-		}
+		mPingScheduler.setServers(servers);
+        ConnectionPrewarmer.getInstance().prewarm(servers);
 	}
 
 
 
-    public List<Server> getServers() {
-        List<Server> servers = mDatabaseProvider.getDatabase().getServers();
-        return servers;
-    }
 	
 	@Override
 	public void onItemClick(AdapterView<?> arg0, View arg1, int arg2, long arg3) {
@@ -227,11 +331,7 @@ public class ServerListFragment extends Fragment implements OnItemClickListener
 			}
 
 			final Server server = getItem(position);
-
-			ServerInfoResponse infoResponse = mInfoResponses.get(server);
-			// If there is a null value for the server info (rather than none at all), the request must have failed.
-			boolean requestExists = infoResponse != null;
-			boolean requestFailure = infoResponse != null && infoResponse.isDummy();
+            view.setTag(server);
 
 			TextView nameText = (TextView) view.findViewById(R.id.server_row_name);
 			TextView userText = (TextView) view.findViewById(R.id.server_row_user);
@@ -259,30 +359,48 @@ public class ServerListFragment extends Fragment implements OnItemClickListener
                 }
             });
 
-			TextView serverVersionText = (TextView) view.findViewById(R.id.server_row_version_status);
-            TextView serverLatencyText = (TextView) view.findViewById(R.id.server_row_latency);
-			TextView serverUsersText = (TextView) view.findViewById(R.id.server_row_usercount);
-			ProgressBar serverInfoProgressBar = (ProgressBar) view.findViewById(R.id.server_row_ping_progress);
-
-			serverVersionText.setVisibility(!requestExists ? View.INVISIBLE : View.VISIBLE);
-			serverUsersText.setVisibility(!requestExists ? View.INVISIBLE : View.VISIBLE);
-            serverLatencyText.setVisibility(!requestExists ? View.INVISIBLE : View.VISIBLE);
-			serverInfoProgressBar.setVisibility(!requestExists ? View.VISIBLE : View.INVISIBLE);
-
-			if(infoResponse != null && !requestFailure) {
-				serverVersionText.setText(getResources().getString(R.string.online)+" ("+infoResponse.getVersionString()+")");
-				serverUsersText.setText(infoResponse.getCurrentUsers()+"/"+infoResponse.getMaximumUsers());
-                serverLatencyText.setText(infoResponse.getLatency()+"ms");
-			} else if(requestFailure) {
-				serverVersionText.setText(R.string.offline);
-				serverUsersText.setText("");
-                serverLatencyText.setText("");
-			}
+			updateInfoView(view, server);
 
 			return view;
 		}
 	}
 
+    /**
+     * Binds the server's last ping result to its row.
+     */
+    private void updateInfoView(View view, Server server) {
+        ServerInfoResponse infoResponse = mPingScheduler.getResponse(server);
+        // If there is a null value for the server info (rather than none at all), the request must have failed.
+        boolean requestExists = infoResponse != null;
+        boolean requestFailure = infoResponse != null && infoResponse.isDummy();
+
+		TextView serverVersionText = (TextView) view.findViewById(R.id.server_row_version_status);
+        TextView serverLatencyText = (TextView) view.findViewById(R.id.server_row_latency);
+		TextView serverUsersText = (TextView) view.findViewById(R.id.server_row_usercount);
+		ProgressBar serverInfoProgressBar = (ProgressBar) view.findViewById(R.id.server_row_ping_progress);
+
+		serverVersionText.setVisibility(!requestExists ? View.INVISIBLE : View.VISIBLE);
+		serverUsersText.setVisibility(!requestExists ? View.INVISIBLE : View.VISIBLE);
+        serverLatencyText.setVisibility(!requestExists ? View.INVISIBLE : View.VISIBLE);
+		serverInfoProgressBar.setVisibility(!requestExists ? View.VISIBLE : View.INVISIBLE);
+
+		if(infoResponse != null && !requestFailure) {
+			serverVersionText.setText(getResources().getString(R.string.online)+" ("+infoResponse.getVersionString()+")");
+			serverUsersText.setText(infoResponse.getCurrentUsers()+"/"+infoResponse.getMaximumUsers());
+            LatencyStats stats = mPingScheduler.getStats(server);
+            // Background refreshes send a single ping, which has no jitter or loss to show.
+            if(stats != null && !stats.isUnreachable() && stats.getSent() > 1)
+                serverLatencyText.setText(getString(R.string.server_row_latency_stats,
+                        stats.getMedian(), stats.getJitter(), (int) (stats.getLoss() * 100)));
+            else
+                serverLatencyText.setText(infoResponse.getLatency()+"ms");
+		} else if(requestFailure) {
+			serverVersionText.setText(R.string.offline);
+			serverUsersText.setText("");
+            serverLatencyText.setText("");
+		}
+    }
+
     private class ServerPopupMenuItemClickListener implements PopupMenu.OnMenuItemClickListener {
 		
 		private Server server;
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.os.Environment;
+
+import com.morlunk.jumble.model.Server;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Reads and writes server lists as JSON, for importing and exporting favourites in bulk.
+ */
+public class ServerListSerializer {
+
+    private static final String EXPORT_FOLDER = "Plumble";
+    private static final String EXPORT_FILE = "servers.json";
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_HOST = "host";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_USERNAME = "username";
+    /** Only read, for files exported by older versions. Passwords are never written. */
+    private static final String KEY_PASSWORD = "password";
+
+    /**
+     * Returns the file servers are exported to and imported from, in the {@value #EXPORT_FOLDER}
+     * folder on external storage.
+     */
+    public static File getExportFile() throws IOException {
+        if(!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED))
+            throw new IOException("External storage not available.");
+        File directory = new File(Environment.getExternalStorageDirectory(), EXPORT_FOLDER);
+        if(!directory.exists())
+            directory.mkdir();
+        return new File(directory, EXPORT_FILE);
+    }
+
+    /**
+     * Writes the given servers to the file. Passwords are left out, since the file is readable by
+     * any app with access to external storage.
+     */
+    public static void writeServers(List<Server> servers, File file) throws IOException {
+        JSONArray array = new JSONArray();
+        try {
+            for(Server server : servers) {
+                JSONObject object = new JSONObject();
+                object.put(KEY_NAME, server.getName());
+                object.put(KEY_HOST, server.getHost());
+                object.put(KEY_PORT, server.getPort());
+                object.put(KEY_USERNAME, server.getUsername());
+                array.put(object);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(array.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return The servers in the file, without IDs. Add them with {@link com.morlunk.mumbleclient.db.PlumbleDatabase#addServers(List)}.
+     */
+    public static List<Server> readServers(File file) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            char[] buffer = new char[4096];
+            int read;
+            while((read = reader.read(buffer)) != -1)
+                builder.append(buffer, 0, read);
+        } finally {
+            reader.close();
+        }
+
+        try {
+            JSONArray array = new JSONArray(builder.toString());
+            List<Server> servers = new ArrayList<Server>(array.length());
+            for(int x=0;x<array.length();x++) {
+                JSONObject object = array.getJSONObject(x);
+                servers.add(new Server(-1,
+                        object.getString(KEY_NAME),
+                        object.getString(KEY_HOST),
+                        object.getInt(KEY_PORT),
+                        object.getString(KEY_USERNAME),
+                        object.optString(KEY_PASSWORD, "")));
+            }
+            return servers;
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Filters out imported servers that are already saved, or repeated within the import, so that
+     * importing the same file twice doesn't duplicate the list. Servers are matched on host, port
+     * and username.
+     * @return The servers in imported that aren't in existing.
+     */
+    public static List<Server> removeExisting(List<Server> imported, List<Server> existing) {
+        Set<String> keys = new HashSet<String>(existing.size());
+        for(Server server : existing)
+            keys.add(getKey(server));
+        List<Server> result = new ArrayList<Server>(imported.size());
+        for(Server server : imported) {
+            if(keys.add(getKey(server)))
+                result.add(server);
+        }
+        return result;
+    }
+
+    private static String getKey(Server server) {
+        return server.getHost().toLowerCase(Locale.US) + ":" + server.getPort() + ":" + server.getUsername();
+    }
+}
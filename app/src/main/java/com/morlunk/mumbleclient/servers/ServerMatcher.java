@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.morlunk.jumble.model.Server;
+import com.morlunk.mumbleclient.db.PublicServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds a good public server to connect to.
+ * Candidates are probed in waves, nearest first: servers in the user's country, then continent,
+ * then everywhere else. Each responding server is scored on latency, jitter, packet loss and how
+ * full it is. Matching stops as soon as the best server is clearly ahead of the runner up, or when
+ * the deadline passes, whichever comes first.
+ *
+ * Must only be used from the main thread.
+ */
+public class ServerMatcher implements ServerProbe.OnServerProbedListener {
+
+    public interface OnServerMatchedListener {
+        /**
+         * Called once matching finishes, unless it was cancelled.
+         */
+        public void onServerMatched(Result result);
+    }
+
+    /** The number of servers probed at once. */
+    public static final int WAVE_SIZE = 16;
+    /** The number of pings sent to each server. Enough to estimate jitter and loss. */
+    public static final int PINGS_PER_SERVER = 3;
+    public static final int PING_INTERVAL = 50;
+    /** The time after which the best server found so far is returned, in milliseconds. */
+    public static final int DEADLINE = 8000;
+
+    /** How far ahead the best score must be to stop early, on top of both servers' jitter. */
+    private static final int CLEAR_MARGIN = 20;
+    private static final float JITTER_WEIGHT = 2;
+    /** Penalty in milliseconds for losing every ping. */
+    private static final int LOSS_PENALTY = 250;
+    /** Penalty in milliseconds for a full server. */
+    private static final int LOAD_PENALTY = 100;
+
+    public static class Result {
+        private final Candidate mBest;
+        private final int mServersProbed;
+        private final int mPingsSent;
+        private final boolean mTimedOut;
+
+        private Result(Candidate best, int serversProbed, int pingsSent, boolean timedOut) {
+            mBest = best;
+            mServersProbed = serversProbed;
+            mPingsSent = pingsSent;
+            mTimedOut = timedOut;
+        }
+
+        /**
+         * @return The best server, or null if no suitable server responded.
+         */
+        public PublicServer getServer() {
+            return mBest != null ? mBest.server : null;
+        }
+
+        public ServerInfoResponse getResponse() {
+            return mBest != null ? mBest.response : null;
+        }
+
+        public LatencyStats getStats() {
+            return mBest != null ? mBest.stats : null;
+        }
+
+        public int getServersProbed() {
+            return mServersProbed;
+        }
+
+        public int getPingsSent() {
+            return mPingsSent;
+        }
+
+        /**
+         * @return true if the deadline passed before a clear winner emerged.
+         */
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+    }
+
+    private static class Candidate {
+        final PublicServer server;
+        final ServerInfoResponse response;
+        final LatencyStats stats;
+        final float score;
+
+        Candidate(PublicServer server, ServerInfoResponse response, LatencyStats stats) {
+            this.server = server;
+            this.response = response;
+            this.stats = stats;
+            float fill = (float) response.getCurrentUsers() / Math.max(1, response.getMaximumUsers());
+            this.score = stats.getMedian() + JITTER_WEIGHT * stats.getJitter() +
+                    LOSS_PENALTY * stats.getLoss() + LOAD_PENALTY * fill;
+        }
+    }
+
+    private static final Comparator<Candidate> SCORE_COMPARATOR = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            return Float.compare(lhs.score, rhs.score);
+        }
+    };
+
+    private final ServerProbe mProbe;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final OnServerMatchedListener mListener;
+    /** Servers left to probe, nearest first. */
+    private final List<PublicServer> mQueue;
+    private final Set<PublicServer> mWave = new HashSet<PublicServer>();
+    private final List<Candidate> mCandidates = new ArrayList<Candidate>();
+    private int mServersProbed;
+    private int mPingsSent;
+    private boolean mFinished;
+
+    private final Runnable mDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finish(true);
+        }
+    };
+
+    /**
+     * @param servers The servers to choose from.
+     * @param country The user's ISO 3166 country code, used to probe nearby servers first.
+     */
+    public ServerMatcher(ServerProbe probe, List<PublicServer> servers, final String country, OnServerMatchedListener listener) {
+        mProbe = probe;
+        mListener = listener;
+        mQueue = new ArrayList<PublicServer>(servers);
+        final String continent = findContinent(servers, country);
+        // Stable, so servers keep their directory order within each tier.
+        Collections.sort(mQueue, new Comparator<PublicServer>() {
+            @Override
+            public int compare(PublicServer lhs, PublicServer rhs) {
+                return getProximity(lhs, country, continent) - getProximity(rhs, country, continent);
+            }
+        });
+    }
+
+    public void start() {
+        mProbe.addListener(this);
+        mHandler.postDelayed(mDeadlineRunnable, DEADLINE);
+        nextWave();
+    }
+
+    /**
+     * Stops matching without notifying the listener.
+     */
+    public void cancel() {
+        if(mFinished) return;
+        mFinished = true;
+        stop();
+    }
+
+    private void nextWave() {
+        if(mQueue.isEmpty()) {
+            finish(false);
+            return;
+        }
+        List<PublicServer> wave = mQueue.subList(0, Math.min(WAVE_SIZE, mQueue.size()));
+        for(PublicServer server : wave) {
+            mWave.add(server);
+            mProbe.probe(server, PINGS_PER_SERVER, PING_INTERVAL);
+            mServersProbed++;
+        }
+        wave.clear();
+    }
+
+    @Override
+    public void onServerProbed(Server server, ServerInfoResponse response, LatencyStats stats) {
+        if(mFinished || !mWave.remove(server)) return;
+        mPingsSent += stats.getSent();
+
+        if(!stats.isUnreachable() &&
+                response.getVersion() == com.morlunk.jumble.Constants.PROTOCOL_VERSION &&
+                response.getCurrentUsers() < response.getMaximumUsers()) {
+            mCandidates.add(new Candidate((PublicServer) server, response, stats));
+        }
+
+        if(!mWave.isEmpty()) return;
+        if(hasClearWinner()) finish(false);
+        else nextWave();
+    }
+
+    /**
+     * @return true if the best candidate's lead over the runner up is greater than the noise in
+     * either's measurements.
+     */
+    private boolean hasClearWinner() {
+        if(mCandidates.size() < 2) return false;
+        Collections.sort(mCandidates, SCORE_COMPARATOR);
+        Candidate best = mCandidates.get(0);
+        Candidate second = mCandidates.get(1);
+        float noise = JITTER_WEIGHT * (best.stats.getJitter() + second.stats.getJitter());
+        return second.score - best.score > CLEAR_MARGIN + noise;
+    }
+
+    private void finish(boolean timedOut) {
+        if(mFinished) return;
+        mFinished = true;
+        stop();
+        Collections.sort(mCandidates, SCORE_COMPARATOR);
+        Candidate best = mCandidates.isEmpty() ? null : mCandidates.get(0);
+        mListener.onServerMatched(new Result(best, mServersProbed, mPingsSent, timedOut));
+    }
+
+    private void stop() {
+        mHandler.removeCallbacks(mDeadlineRunnable);
+        mProbe.removeListener(this);
+        // Count the pings that unfinished probes got out before the deadline.
+        for(PublicServer server : mWave)
+            mPingsSent += mProbe.cancel(server);
+        mWave.clear();
+    }
+
+    /**
+     * Ranks a server by how near it is to the user.
+     * @return 0 for the same country, 1 for the same continent, 2 otherwise.
+     */
+    public static int getProximity(PublicServer server, String country, String continent) {
+        if(country != null && country.equalsIgnoreCase(server.getCountryCode())) return 0;
+        if(continent != null && continent.equals(server.getContinentCode())) return 1;
+        return 2;
+    }
+
+    /**
+     * The directory doesn't list continents directly, so finds the continent of the given country
+     * from any server in it.
+     * @return The continent code, or null if no server is in the country.
+     */
+    public static String findContinent(List<PublicServer> servers, String country) {
+        for(PublicServer server : servers) {
+            if(country != null && country.equalsIgnoreCase(server.getCountryCode()))
+                return server.getContinentCode();
+        }
+        return null;
+    }
+}
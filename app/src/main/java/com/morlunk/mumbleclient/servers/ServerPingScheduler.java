@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.morlunk.jumble.model.Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps ping results for a set of servers fresh, for display in lists.
+ * The last result for each host and port is cached for the lifetime of the process, so lists can
+ * show it immediately. Results older than {@link #TTL} are refreshed in the background through
+ * {@link ServerProbe}, a few servers at a time, while any listener is registered.
+ * Updates are delivered in batches, naming only the servers whose results changed.
+ *
+ * Must only be used from the main thread.
+ */
+public class ServerPingScheduler implements ServerProbe.OnServerProbedListener {
+
+    public interface OnPingsUpdatedListener {
+        /**
+         * Called with the servers that have new results since the last call.
+         */
+        public void onPingsUpdated(Set<Server> servers);
+    }
+
+    /** The time a result is considered fresh for, in milliseconds. */
+    public static final long TTL = 60 * 1000;
+    /** The maximum number of servers probed at once. */
+    public static final int MAX_CONCURRENT_PROBES = 4;
+    /**
+     * The number of pings in a refresh. Lists only show the user count and a latency, so a full
+     * probe's worth of pings would be wasted on each saved server.
+     */
+    public static final int REFRESH_PING_COUNT = 1;
+    /** The time results are collected for before listeners are told, in milliseconds. */
+    public static final int BATCH_DELAY = 250;
+
+    private static ServerPingScheduler sInstance;
+
+    private final ServerProbe mProbe;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<OnPingsUpdatedListener> mListeners = new CopyOnWriteArrayList<OnPingsUpdatedListener>();
+    /** Results keyed by host and port. */
+    private final Map<String, Result> mResults = new HashMap<String, Result>();
+    /** The servers to keep fresh. */
+    private final List<Server> mServers = new ArrayList<Server>();
+    private final LinkedList<Server> mQueue = new LinkedList<Server>();
+    private final Set<Server> mInFlight = new HashSet<Server>();
+    private final Set<Server> mUpdated = new HashSet<Server>();
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refreshStale();
+        }
+    };
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mUpdated.isEmpty()) return;
+            Set<Server> updated = new HashSet<Server>(mUpdated);
+            mUpdated.clear();
+            for(OnPingsUpdatedListener listener : mListeners)
+                listener.onPingsUpdated(updated);
+        }
+    };
+
+    private static class Result {
+        final ServerInfoResponse response;
+        final LatencyStats stats;
+        final long time;
+
+        Result(ServerInfoResponse response, LatencyStats stats) {
+            this.response = response;
+            this.stats = stats;
+            this.time = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public static synchronized ServerPingScheduler getInstance() {
+        if(sInstance == null)
+            sInstance = new ServerPingScheduler(ServerProbe.getInstance());
+        return sInstance;
+    }
+
+    private ServerPingScheduler(ServerProbe probe) {
+        mProbe = probe;
+        mProbe.addListener(this);
+    }
+
+    /**
+     * Registers a listener, and resumes background refreshes if it is the first.
+     */
+    public void addListener(OnPingsUpdatedListener listener) {
+        mListeners.add(listener);
+        if(mListeners.size() == 1) refreshStale();
+    }
+
+    /**
+     * Unregisters a listener. Background refreshes stop once there are none left.
+     */
+    public void removeListener(OnPingsUpdatedListener listener) {
+        mListeners.remove(listener);
+        if(mListeners.isEmpty()) {
+            mHandler.removeCallbacks(mRefreshRunnable);
+            mQueue.clear();
+        }
+    }
+
+    /**
+     * Sets the servers to keep fresh, and queues those without fresh results for probing.
+     */
+    public void setServers(List<? extends Server> servers) {
+        mServers.clear();
+        mServers.addAll(servers);
+        mQueue.clear();
+        refreshStale();
+    }
+
+    /**
+     * @return The last ping response for the server, or null if it hasn't been pinged.
+     */
+    public ServerInfoResponse getResponse(Server server) {
+        Result result = mResults.get(getKey(server));
+        return result != null ? result.response : null;
+    }
+
+    /**
+     * @return The last probe statistics for the server, or null if it hasn't been pinged.
+     */
+    public LatencyStats getStats(Server server) {
+        Result result = mResults.get(getKey(server));
+        return result != null ? result.stats : null;
+    }
+
+    private boolean isFresh(Server server) {
+        Result result = mResults.get(getKey(server));
+        return result != null && SystemClock.elapsedRealtime() - result.time < TTL;
+    }
+
+    /**
+     * Queues stale servers for probing, and schedules the next check for when the oldest fresh
+     * result expires.
+     */
+    private void refreshStale() {
+        mHandler.removeCallbacks(mRefreshRunnable);
+        if(mListeners.isEmpty()) return;
+
+        long now = SystemClock.elapsedRealtime();
+        long nextExpiry = Long.MAX_VALUE;
+        for(Server server : mServers) {
+            Result result = mResults.get(getKey(server));
+            if(result == null || now - result.time >= TTL) {
+                if(!mQueue.contains(server) && !mInFlight.contains(server))
+                    mQueue.add(server);
+            } else {
+                nextExpiry = Math.min(nextExpiry, result.time + TTL);
+            }
+        }
+        if(nextExpiry != Long.MAX_VALUE)
+            mHandler.postDelayed(mRefreshRunnable, nextExpiry - now);
+        startProbes();
+    }
+
+    private void startProbes() {
+        while(mInFlight.size() < MAX_CONCURRENT_PROBES && !mQueue.isEmpty()) {
+            Server server = mQueue.removeFirst();
+            if(isFresh(server)) continue; // Refreshed elsewhere while queued
+            mInFlight.add(server);
+            mProbe.probe(server, REFRESH_PING_COUNT, ServerProbe.DEFAULT_PING_INTERVAL);
+        }
+    }
+
+    @Override
+    public void onServerProbed(Server server, ServerInfoResponse response, LatencyStats stats) {
+        // Keep results from probes started elsewhere too; they're just as fresh.
+        mResults.put(getKey(server), new Result(response, stats));
+        if(mInFlight.remove(server)) startProbes();
+
+        for(Server tracked : mServers) {
+            if(getKey(tracked).equals(getKey(server))) {
+                if(mUpdated.isEmpty()) mHandler.postDelayed(mDeliverRunnable, BATCH_DELAY);
+                mUpdated.add(tracked);
+            }
+        }
+        if(mInFlight.isEmpty() && mQueue.isEmpty()) refreshStale(); // Reschedule
+    }
+
+    private static String getKey(Server server) {
+        return server.getHost() + ":" + server.getPort();
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.morlunk.jumble.model.Server;
+import com.morlunk.mumbleclient.Constants;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pings many servers at once from a single non-blocking UDP socket.
+ * Each ping is written with a unique 64-bit identifier, which the server echoes back in its
+ * response; this is used to match responses to requests. Pings that aren't answered within
+ * {@link #PING_TIMEOUT} are reported as failed with a dummy {@link ServerInfoResponse}.
+ *
+ * Results are streamed to listeners on the main thread as they arrive.
+ * Call {@link #shutdown()} once done to close the socket and stop the pinger thread.
+ *
+ * Pinging a server that was pinged recently allocates nothing: requests are pooled, addresses
+ * are cached, in-flight pings and their responses are kept in fixed tables, and packets are read
+ * and written through reused direct buffers. Responses are only valid during the listener call;
+ * listeners that keep one must copy it.
+ */
+public class ServerPinger {
+
+    public interface OnServerPingListener {
+        /**
+         * Called on the main thread when a ping completes.
+         * @param server The server that was pinged.
+         * @param response The response, or a dummy response if the ping failed or timed out.
+         *                 It is reused once this returns, so copy it to keep it.
+         */
+        public void onServerPinged(Server server, ServerInfoResponse response);
+    }
+
+    /**
+     * Passes results to the listeners' thread. Results are described by primitives and the
+     * server, so dispatching one needn't allocate.
+     */
+    interface Dispatcher {
+        /**
+         * Arranges for {@link #deliver(int, Server)} to be called with the given arguments.
+         */
+        public void dispatch(int slot, Server server);
+    }
+
+    /** The time to wait for a response, in milliseconds. */
+    public static final int PING_TIMEOUT = 1000;
+    /**
+     * The maximum number of unanswered pings at any time. Keeps bursts of responses from
+     * overflowing the socket's receive buffer.
+     */
+    public static final int MAX_IN_FLIGHT = 64;
+
+    private static final int REQUEST_LENGTH = 12;
+    private static final int RESPONSE_LENGTH = 24;
+    private static final int RESOLVER_THREADS = 2;
+    /** The time a resolved address is reused for, in milliseconds. */
+    private static final long ADDRESS_TTL = 5 * 60 * 1000;
+
+    /** The low bits of each identifier hold the ping's index in the in-flight table. */
+    private static final int SLOT_BITS = 8;
+    private static final long SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    /** The slot passed for failed pings, which have no response. */
+    private static final int NO_SLOT = -1;
+
+    /** Dummy responses carry no data, so one can be shared by all failed pings. */
+    private static final ServerInfoResponse FAILED_RESPONSE = new ServerInfoResponse();
+
+    private final Dispatcher mDispatcher;
+    private final List<OnServerPingListener> mListeners = new CopyOnWriteArrayList<OnServerPingListener>();
+    /** Resolves hostnames, which would otherwise block the selector. */
+    private final ExecutorService mResolveExecutor = Executors.newFixedThreadPool(RESOLVER_THREADS);
+
+    /** Guards the send queue, the ping pool and the address cache. */
+    private final Object mLock = new Object();
+    /** Resolved pings waiting to be sent. */
+    private final ArrayDeque<Ping> mSendQueue = new ArrayDeque<Ping>();
+    /** Recycled pings. */
+    private final ArrayDeque<Ping> mPool = new ArrayDeque<Ping>();
+    private final Map<Server, ResolvedAddress> mAddresses = new WeakHashMap<Server, ResolvedAddress>();
+
+    /** Sent pings, indexed by the low bits of their identifiers. Only used on the pinger thread. */
+    private final Ping[] mInFlight = new Ping[MAX_IN_FLIGHT];
+    private int mInFlightCount;
+    private int mNextSlot;
+    private long mSendCount;
+
+    /**
+     * Responses, at the slot of the ping they answer. A slot stays taken until its response has
+     * been delivered, so the record isn't overwritten while the listeners read it.
+     */
+    private final ServerInfoResponse[] mResponses = new ServerInfoResponse[MAX_IN_FLIGHT];
+    /** 1 at each slot whose response is waiting to be delivered. */
+    private final AtomicIntegerArray mDelivering = new AtomicIntegerArray(MAX_IN_FLIGHT);
+    private final AtomicInteger mDeliveringCount = new AtomicInteger();
+    /** Set when queued pings are waiting for a slot, so delivery wakes the pinger thread. */
+    private volatile boolean mWaitingForSlot;
+
+    private final ByteBuffer mRequestBuffer = ByteBuffer.allocateDirect(REQUEST_LENGTH);
+    private final ByteBuffer mResponseBuffer = ByteBuffer.allocateDirect(RESPONSE_LENGTH);
+
+    private Selector mSelector;
+    private DatagramChannel mChannel;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private final Runnable mPingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                runLoop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeChannel();
+                failAll();
+            }
+        }
+    };
+
+    /**
+     * Creates a pinger that calls its listeners on the main thread.
+     */
+    public ServerPinger() {
+        this(null);
+    }
+
+    /**
+     * @param dispatcher Passes results to the listeners' thread, or null for the main thread.
+     */
+    ServerPinger(Dispatcher dispatcher) {
+        mDispatcher = dispatcher != null ? dispatcher : new MainThreadDispatcher();
+        for(int slot = 0; slot < MAX_IN_FLIGHT; slot++)
+            mResponses[slot] = new ServerInfoResponse();
+    }
+
+    public void addListener(OnServerPingListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(OnServerPingListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queues a ping to the given server. The result will be passed to the listeners.
+     */
+    public synchronized void ping(final Server server) {
+        if(mResolveExecutor.isShutdown()) return;
+        if(!ensureStarted()) {
+            deliverFailure(server);
+            return;
+        }
+
+        InetSocketAddress address = null;
+        synchronized (mLock) {
+            ResolvedAddress resolved = mAddresses.get(server);
+            if(resolved != null && System.nanoTime() - resolved.time < TimeUnit.MILLISECONDS.toNanos(ADDRESS_TTL))
+                address = resolved.address;
+        }
+        if(address != null) {
+            enqueue(server, address);
+            return;
+        }
+
+        mResolveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InetAddress host = InetAddress.getByName(server.getHost());
+                    InetSocketAddress address = new InetSocketAddress(host, server.getPort());
+                    synchronized (mLock) {
+                        mAddresses.put(server, new ResolvedAddress(address));
+                    }
+                    enqueue(server, address);
+                } catch (IOException e) {
+                    deliverFailure(server);
+                }
+            }
+        });
+    }
+
+    public void ping(Collection<? extends Server> servers) {
+        for(Server server : servers) ping(server);
+    }
+
+    /**
+     * Drops all pings that haven't been sent yet. Sent pings still report their results.
+     */
+    public void cancelPending() {
+        synchronized (mLock) {
+            while(!mSendQueue.isEmpty())
+                recycle(mSendQueue.poll());
+        }
+    }
+
+    /**
+     * Stops the pinger and closes its socket. Outstanding pings are dropped without being reported.
+     */
+    public synchronized void shutdown() {
+        mListeners.clear();
+        mResolveExecutor.shutdownNow();
+        cancelPending();
+        mRunning = false;
+        if(mSelector != null) mSelector.wakeup();
+    }
+
+    private void enqueue(Server server, InetSocketAddress address) {
+        synchronized (mLock) {
+            Ping ping = mPool.poll();
+            if(ping == null) ping = new Ping();
+            ping.server = server;
+            ping.address = address;
+            mSendQueue.add(ping);
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Returns a ping to the pool. Must hold mLock.
+     */
+    private void recycle(Ping ping) {
+        ping.server = null;
+        ping.address = null;
+        mPool.add(ping);
+    }
+
+    /**
+     * Opens the socket and starts the pinger thread if needed.
+     * @return false if the socket couldn't be opened.
+     */
+    private boolean ensureStarted() {
+        if(mRunning) return true;
+        try {
+            mSelector = Selector.open();
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().bind(null);
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeChannel();
+            return false;
+        }
+        mRunning = true;
+        mThread = new Thread(mPingRunnable, "ServerPinger");
+        mThread.start();
+        return true;
+    }
+
+    private void runLoop() throws IOException {
+        SelectionKey key = mChannel.keyFor(mSelector);
+        while(mRunning) {
+            boolean blocked = sendQueued();
+            key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+
+            long timeout = 0; // Wait indefinitely when nothing is in flight.
+            long deadline = getEarliestDeadline();
+            if(deadline != Long.MAX_VALUE)
+                timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            // The selected-key set is left alone: clearing it would allocate an entry on every
+            // wakeup, and the socket is polled regardless of which events fired.
+            mSelector.select(timeout);
+
+            receiveResponses();
+            expirePings();
+        }
+    }
+
+    /**
+     * Sends queued pings until every slot is in flight or waiting for its response to be delivered.
+     * @return true if the socket's send buffer is full and we should wait until it is writable.
+     */
+    private boolean sendQueued() {
+        while(true) {
+            Ping ping;
+            synchronized (mLock) {
+                if(mSendQueue.isEmpty()) break;
+                if(mInFlightCount + mDeliveringCount.get() >= MAX_IN_FLIGHT) {
+                    mWaitingForSlot = true;
+                    // Check again, in case a slot was freed before the flag was set.
+                    if(mInFlightCount + mDeliveringCount.get() >= MAX_IN_FLIGHT) break;
+                    mWaitingForSlot = false;
+                }
+                ping = mSendQueue.poll();
+            }
+
+            int slot = findFreeSlot();
+            long identifier = (mSendCount << SLOT_BITS) | slot;
+            mRequestBuffer.clear();
+            mRequestBuffer.putInt(0); // Request type
+            mRequestBuffer.putLong(identifier);
+            mRequestBuffer.flip();
+            try {
+                ping.sentTime = System.nanoTime();
+                if(mChannel.send(mRequestBuffer, ping.address) == 0) {
+                    synchronized (mLock) {
+                        mSendQueue.addFirst(ping);
+                    }
+                    return true;
+                }
+                mSendCount++;
+                ping.identifier = identifier;
+                ping.deadline = ping.sentTime + TimeUnit.MILLISECONDS.toNanos(PING_TIMEOUT);
+                mInFlight[slot] = ping;
+                mInFlightCount++;
+            } catch (IOException e) {
+                // Unreachable host, no route, etc.
+                deliverFailure(ping.server);
+                synchronized (mLock) {
+                    recycle(ping);
+                }
+            }
+        }
+        return false;
+    }
+
+    private int findFreeSlot() {
+        while(mInFlight[mNextSlot] != null || mDelivering.get(mNextSlot) != 0)
+            mNextSlot = (mNextSlot + 1) % MAX_IN_FLIGHT;
+        return mNextSlot;
+    }
+
+    private void receiveResponses() throws IOException {
+        SocketAddress address;
+        mResponseBuffer.clear();
+        while((address = mChannel.receive(mResponseBuffer)) != null) {
+            long receivedTime = System.nanoTime();
+            if(mResponseBuffer.position() == RESPONSE_LENGTH) {
+                long identifier = mResponseBuffer.getLong(4);
+                int slot = (int) (identifier & SLOT_MASK);
+                Ping ping = slot < MAX_IN_FLIGHT ? mInFlight[slot] : null;
+                if(ping != null && ping.identifier == identifier) {
+                    int latency = (int) TimeUnit.NANOSECONDS.toMillis(receivedTime - ping.sentTime);
+                    mResponses[slot].set(ping.server, mResponseBuffer, latency);
+                    Server server = ping.server;
+                    completePing(slot);
+                    deliverResponse(slot, server);
+                } else {
+                    Log.d(Constants.TAG, "Dropped ping response from "+address+", unknown identifier "+identifier);
+                }
+            }
+            mResponseBuffer.clear();
+        }
+    }
+
+    private long getEarliestDeadline() {
+        long deadline = Long.MAX_VALUE;
+        if(mInFlightCount == 0) return deadline;
+        for(Ping ping : mInFlight) {
+            if(ping != null && (deadline == Long.MAX_VALUE || ping.deadline - deadline < 0))
+                deadline = ping.deadline;
+        }
+        return deadline;
+    }
+
+    private void expirePings() {
+        if(mInFlightCount == 0) return;
+        long now = System.nanoTime();
+        for(int slot = 0; slot < MAX_IN_FLIGHT; slot++) {
+            Ping ping = mInFlight[slot];
+            if(ping != null && ping.deadline - now <= 0) {
+                deliverFailure(ping.server);
+                completePing(slot);
+            }
+        }
+    }
+
+    private void completePing(int slot) {
+        Ping ping = mInFlight[slot];
+        mInFlight[slot] = null;
+        mInFlightCount--;
+        synchronized (mLock) {
+            recycle(ping);
+        }
+    }
+
+    private void failAll() {
+        if(!mRunning) return; // Shut down, nobody is listening.
+        mRunning = false;
+        for(int slot = 0; slot < MAX_IN_FLIGHT; slot++) {
+            if(mInFlight[slot] != null) {
+                deliverFailure(mInFlight[slot].server);
+                completePing(slot);
+            }
+        }
+        synchronized (mLock) {
+            Ping ping;
+            while((ping = mSendQueue.poll()) != null) {
+                deliverFailure(ping.server);
+                recycle(ping);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if(mChannel != null) mChannel.close();
+            if(mSelector != null) mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void deliverResponse(int slot, Server server) {
+        mDelivering.set(slot, 1);
+        mDeliveringCount.incrementAndGet();
+        mDispatcher.dispatch(slot, server);
+    }
+
+    private void deliverFailure(Server server) {
+        mDispatcher.dispatch(NO_SLOT, server);
+    }
+
+    /**
+     * Passes a result to the listeners, then frees its response slot.
+     * Called by the dispatcher on the listeners' thread.
+     * @param slot The slot holding the response, or {@link #NO_SLOT} if the ping failed.
+     */
+    void deliver(int slot, Server server) {
+        ServerInfoResponse response = slot != NO_SLOT ? mResponses[slot] : FAILED_RESPONSE;
+        for(OnServerPingListener listener : mListeners)
+            listener.onServerPinged(server, response);
+        if(slot == NO_SLOT) return;
+
+        mDelivering.set(slot, 0);
+        mDeliveringCount.decrementAndGet();
+        if(mWaitingForSlot) {
+            mWaitingForSlot = false;
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Posts results to the main thread. Messages are pooled by the framework, so this doesn't
+     * allocate.
+     */
+    private class MainThreadDispatcher implements Dispatcher, Handler.Callback {
+        private final Handler mHandler = new Handler(Looper.getMainLooper(), this);
+
+        @Override
+        public void dispatch(int slot, Server server) {
+            mHandler.obtainMessage(0, slot, 0, server).sendToTarget();
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            deliver(msg.arg1, (Server) msg.obj);
+            return true;
+        }
+    }
+
+    private static class Ping {
+        Server server;
+        InetSocketAddress address;
+        long identifier;
+        long sentTime;
+        long deadline;
+    }
+
+    private static class ResolvedAddress {
+        final InetSocketAddress address;
+        final long time;
+
+        ResolvedAddress(InetSocketAddress address) {
+            this.address = address;
+            this.time = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.morlunk.jumble.model.Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Measures latency, jitter and packet loss by sending a train of pings to each server.
+ * All probes share a single {@link ServerPinger}, and therefore a single socket and thread.
+ * A rolling history of results is kept for each host and port for the lifetime of the process.
+ *
+ * Must only be used from the main thread.
+ */
+public class ServerProbe implements ServerPinger.OnServerPingListener {
+
+    public interface OnServerProbedListener {
+        /**
+         * Called when a probe of the server completes.
+         * @param server The server that was probed.
+         * @param response The last successful ping response, or a dummy if every ping was lost.
+         * @param stats The statistics from this probe.
+         */
+        public void onServerProbed(Server server, ServerInfoResponse response, LatencyStats stats);
+    }
+
+    /** The default number of pings in a probe. */
+    public static final int DEFAULT_PING_COUNT = 10;
+    /** The default delay between pings in a probe, in milliseconds. */
+    public static final int DEFAULT_PING_INTERVAL = 100;
+    /** The number of probe results to keep for each server. */
+    public static final int HISTORY_SIZE = 20;
+
+    private static ServerProbe sInstance;
+
+    private final ServerPinger mPinger = new ServerPinger();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<OnServerProbedListener> mListeners = new CopyOnWriteArrayList<OnServerProbedListener>();
+    private final Map<Server, Probe> mProbes = new HashMap<Server, Probe>();
+    /** Probe results keyed by host and port, oldest first. */
+    private final Map<String, LinkedList<LatencyStats>> mHistory = new HashMap<String, LinkedList<LatencyStats>>();
+
+    public static synchronized ServerProbe getInstance() {
+        if(sInstance == null)
+            sInstance = new ServerProbe();
+        return sInstance;
+    }
+
+    private ServerProbe() {
+        mPinger.addListener(this);
+    }
+
+    public void addListener(OnServerProbedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(OnServerProbedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public void probe(Server server) {
+        probe(server, DEFAULT_PING_COUNT, DEFAULT_PING_INTERVAL);
+    }
+
+    /**
+     * Sends a train of pings to the server. Does nothing if the server is already being probed.
+     * @param count The number of pings to send.
+     * @param interval The delay between pings, in milliseconds.
+     */
+    public void probe(Server server, int count, int interval) {
+        if(mProbes.containsKey(server) || count <= 0) return;
+        Probe probe = new Probe(server, count, interval);
+        mProbes.put(server, probe);
+        mHandler.post(probe);
+    }
+
+    public void probe(List<? extends Server> servers) {
+        for(Server server : servers) probe(server);
+    }
+
+    /**
+     * Stops sending pings to the server if it is being probed. The result is discarded.
+     * @return The number of pings the probe had sent, or 0 if the server wasn't being probed.
+     */
+    public int cancel(Server server) {
+        Probe probe = mProbes.remove(server);
+        if(probe == null) return 0;
+        mHandler.removeCallbacks(probe);
+        return probe.sent;
+    }
+
+    /**
+     * Stops sending pings for any probes in progress. Their results are discarded.
+     */
+    public void cancel() {
+        for(Probe probe : mProbes.values())
+            mHandler.removeCallbacks(probe);
+        mProbes.clear();
+    }
+
+    /**
+     * @return The probe results for the given host and port, oldest first.
+     */
+    public List<LatencyStats> getHistory(String host, int port) {
+        LinkedList<LatencyStats> history = mHistory.get(getHistoryKey(host, port));
+        return history != null ? new ArrayList<LatencyStats>(history) : new ArrayList<LatencyStats>();
+    }
+
+    /**
+     * @return The most recent probe result for the given host and port, or null if never probed.
+     */
+    public LatencyStats getLatestStats(String host, int port) {
+        LinkedList<LatencyStats> history = mHistory.get(getHistoryKey(host, port));
+        return history != null ? history.getLast() : null;
+    }
+
+    @Override
+    public void onServerPinged(Server server, ServerInfoResponse response) {
+        Probe probe = mProbes.get(server);
+        if(probe == null) return; // Cancelled
+
+        if(!response.isDummy()) {
+            probe.samples[probe.received++] = response.getLatency();
+            probe.lastResponse.set(response); // The pinger reuses its responses
+        }
+        if(++probe.completed < probe.count) return;
+
+        mProbes.remove(server);
+        LatencyStats stats = new LatencyStats(probe.samples, probe.received, probe.count);
+        String key = getHistoryKey(server.getHost(), server.getPort());
+        LinkedList<LatencyStats> history = mHistory.get(key);
+        if(history == null) {
+            history = new LinkedList<LatencyStats>();
+            mHistory.put(key, history);
+        }
+        history.add(stats);
+        if(history.size() > HISTORY_SIZE) history.removeFirst();
+
+        ServerInfoResponse lastResponse = probe.received > 0 ? probe.lastResponse : response;
+        for(OnServerProbedListener listener : mListeners)
+            listener.onServerProbed(server, lastResponse, stats);
+    }
+
+    private static String getHistoryKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * Sends one ping of the train each time it is run, then reschedules itself.
+     */
+    private class Probe implements Runnable {
+        final Server server;
+        final int count;
+        final int interval;
+        final int[] samples;
+        int sent;
+        int received;
+        int completed;
+        final ServerInfoResponse lastResponse = new ServerInfoResponse();
+
+        Probe(Server server, int count, int interval) {
+            this.server = server;
+            this.count = count;
+            this.interval = interval;
+            this.samples = new int[count];
+        }
+
+        @Override
+        public void run() {
+            mPinger.ping(server);
+            if(++sent < count) mHandler.postDelayed(this, interval);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.morlunk.jumble.model.Server;
+import com.morlunk.mumbleclient.Constants;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Measures how long connections take, from the user asking to connect until the server has
+ * finished synchronizing its state. Keeps the most recent samples for each host and port.
+ */
+public class ConnectionMetrics {
+
+    /** The number of samples kept for each server. */
+    public static final int HISTORY_SIZE = 10;
+
+    public static class Sample {
+        private final boolean mWarm;
+        private final long mTimeToEstablished;
+        private final long mTimeToSynchronized;
+
+        private Sample(boolean warm, long timeToEstablished, long timeToSynchronized) {
+            mWarm = warm;
+            mTimeToEstablished = timeToEstablished;
+            mTimeToSynchronized = timeToSynchronized;
+        }
+
+        /**
+         * @return true if the server's address had been resolved ahead of time.
+         */
+        public boolean isWarm() {
+            return mWarm;
+        }
+
+        /**
+         * @return The time until the TLS handshake completed, in milliseconds, or -1 if unknown.
+         */
+        public long getTimeToEstablished() {
+            return mTimeToEstablished;
+        }
+
+        /**
+         * @return The time until the server finished synchronizing, in milliseconds.
+         */
+        public long getTimeToSynchronized() {
+            return mTimeToSynchronized;
+        }
+    }
+
+    private static ConnectionMetrics sInstance;
+
+    private final Map<String, LinkedList<Sample>> mHistory = new HashMap<String, LinkedList<Sample>>();
+    private String mPendingKey;
+    private boolean mPendingWarm;
+    private long mStartTime;
+    private long mEstablishedTime;
+
+    public static synchronized ConnectionMetrics getInstance() {
+        if(sInstance == null)
+            sInstance = new ConnectionMetrics();
+        return sInstance;
+    }
+
+    private ConnectionMetrics() {
+    }
+
+    /**
+     * Marks the start of a connection attempt.
+     * @param warm Whether the server's address was resolved ahead of time.
+     */
+    public synchronized void onConnectStarted(Server server, boolean warm) {
+        mPendingKey = getKey(server.getHost(), server.getPort());
+        mPendingWarm = warm;
+        mStartTime = SystemClock.elapsedRealtime();
+        mEstablishedTime = 0;
+    }
+
+    public synchronized void onConnectionEstablished() {
+        if(mPendingKey != null) mEstablishedTime = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void onConnectionSynchronized() {
+        if(mPendingKey == null) return; // Not started by us, e.g. an automatic reconnect.
+        long now = SystemClock.elapsedRealtime();
+        long timeToEstablished = mEstablishedTime > 0 ? mEstablishedTime - mStartTime : -1;
+        Sample sample = new Sample(mPendingWarm, timeToEstablished, now - mStartTime);
+
+        LinkedList<Sample> history = mHistory.get(mPendingKey);
+        if(history == null) {
+            history = new LinkedList<Sample>();
+            mHistory.put(mPendingKey, history);
+        }
+        history.add(sample);
+        if(history.size() > HISTORY_SIZE) history.removeFirst();
+
+        Log.i(Constants.TAG, "Connected to "+mPendingKey+" ("+(mPendingWarm ? "warm" : "cold")+"): established in "
+                +sample.getTimeToEstablished()+"ms, synchronized in "+sample.getTimeToSynchronized()+"ms");
+        mPendingKey = null;
+    }
+
+    /**
+     * Discards the pending attempt, if any.
+     */
+    public synchronized void onConnectionFailed() {
+        mPendingKey = null;
+    }
+
+    /**
+     * @return The most recent sample for the given server, or null if none.
+     */
+    public synchronized Sample getLastSample(String host, int port) {
+        LinkedList<Sample> history = mHistory.get(getKey(host, port));
+        return history != null && !history.isEmpty() ? history.getLast() : null;
+    }
+
+    private static String getKey(String host, int port) {
+        return host + ":" + port;
+    }
+}
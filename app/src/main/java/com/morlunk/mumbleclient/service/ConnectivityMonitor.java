@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Reports network availability using {@link ConnectivityManager#CONNECTIVITY_ACTION}.
+ */
+public class ConnectivityMonitor implements ReconnectPolicy.NetworkMonitor {
+
+    private Context mContext;
+    private ConnectivityManager mConnectivityManager;
+    private Listener mListener;
+    private boolean mAvailable;
+
+    private BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(isInitialStickyBroadcast()) return;
+            boolean available = isNetworkAvailable();
+            if(available == mAvailable) return;
+            mAvailable = available;
+            if(mListener != null) mListener.onNetworkChanged(available);
+        }
+    };
+
+    public ConnectivityMonitor(Context context) {
+        mContext = context.getApplicationContext();
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public boolean isNetworkAvailable() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    @Override
+    public void start(Listener listener) {
+        if(mListener != null) stop();
+        mListener = listener;
+        mAvailable = isNetworkAvailable();
+        mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public void stop() {
+        if(mListener == null) return;
+        mContext.unregisterReceiver(mReceiver);
+        mListener = null;
+    }
+}
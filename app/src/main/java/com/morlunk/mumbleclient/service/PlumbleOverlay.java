@@ -21,6 +21,7 @@ import android.content.Context;
 import android.graphics.PixelFormat;
 import android.os.RemoteException;
 import android.util.DisplayMetrics;
+import android.util.SparseArray;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
@@ -34,6 +35,8 @@ import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
 import com.morlunk.mumbleclient.channel.ChannelAdapter;
+import com.morlunk.mumbleclient.util.ServerModelMirror;
+import com.morlunk.mumbleclient.util.TalkStateAggregator;
 
 /**
  * An onscreen interactive overlay displaying the users in the current channel.
@@ -47,28 +50,47 @@ public class PlumbleOverlay {
     private JumbleObserver mObserver = new JumbleObserver() {
         @Override
         public void onUserTalkStateUpdated(User user) throws RemoteException {
-            mChannelAdapter.notifyDataSetChanged();
+            mTalkStateAggregator.post(user);
         }
 
         @Override
         public void onUserStateUpdated(User user) throws RemoteException {
-            if(user.getChannelId() == mService.getBinder().getSessionChannel().getId())
+            if(user.getChannelId() == mChannelAdapter.getChannel().getId())
                 mChannelAdapter.notifyDataSetChanged();
         }
 
         @Override
         public void onUserJoinedChannel(User user, Channel newChannel, Channel oldChannel) throws RemoteException {
-            if(user.getSession() == mService.getSession()) // Session user has changed channels
-                mChannelAdapter.setChannel(mService.getBinder().getSessionChannel());
-            else if(newChannel.getId() == mService.getBinder().getSessionChannel().getId() ||
-                    oldChannel.getId() == mService.getBinder().getSessionChannel().getId())
+            if(user.getSession() == mModelMirror.getSession()) // Session user has changed channels
+                mChannelAdapter.setChannel(newChannel);
+            else if(newChannel.getId() == mChannelAdapter.getChannel().getId() ||
+                    (oldChannel != null && oldChannel.getId() == mChannelAdapter.getChannel().getId()))
                 mChannelAdapter.notifyDataSetChanged();
         }
     };
 
+    /**
+     * Rebinds only the on-screen rows of users whose talk state changed during the last frame.
+     */
+    private TalkStateAggregator mTalkStateAggregator = new TalkStateAggregator(new TalkStateAggregator.TalkStateListener() {
+        @Override
+        public void onTalkStatesUpdated(SparseArray<User> users) {
+            if(mChannelAdapter == null) return;
+            int firstPosition = mOverlayList.getFirstVisiblePosition();
+            for(int x=0;x<mOverlayList.getChildCount();x++) {
+                int position = firstPosition + x;
+                if(position >= mChannelAdapter.getCount()) break;
+                User user = users.get((int) mChannelAdapter.getItemId(position));
+                if(user != null)
+                    mChannelAdapter.refreshUserView(mOverlayList.getChildAt(x), user);
+            }
+        }
+    });
+
     private View mOverlayView;
     private ListView mOverlayList;
     private ChannelAdapter mChannelAdapter;
+    private ServerModelMirror mModelMirror = new ServerModelMirror();
     private ImageView mTalkButton;
 //    private ImageView mToggleButton;
     private ImageView mCloseButton;
@@ -204,9 +226,11 @@ public class PlumbleOverlay {
             return;
         mShown = true;
         try {
-            mChannelAdapter = new ChannelAdapter(mService, mService.getBinder(), mService.getBinder().getSessionChannel());
+            mModelMirror.seed(mService.getBinder());
+            mChannelAdapter = new ChannelAdapter(mService, mModelMirror, mModelMirror.getSessionChannel());
             mOverlayList.setAdapter(mChannelAdapter);
-            mService.getBinder().registerObserver(mObserver);
+            mService.getBinder().registerObserver(mModelMirror);
+            mModelMirror.registerObserver(mObserver); // Called once the mirror is up to date
             WindowManager windowManager = (WindowManager) mService.getSystemService(Context.WINDOW_SERVICE);
             windowManager.addView(mOverlayView, mOverlayParams);
         } catch (RemoteException e) {
@@ -220,8 +244,11 @@ public class PlumbleOverlay {
         if(!mShown)
             return;
         mShown = false;
+        mTalkStateAggregator.cancel();
         try {
-            mService.getBinder().unregisterObserver(mObserver);
+            mModelMirror.unregisterObserver(mObserver);
+            mService.getBinder().unregisterObserver(mModelMirror);
+            mModelMirror.clear();
             mOverlayList.setAdapter(null);
             WindowManager windowManager = (WindowManager) mService.getSystemService(Context.WINDOW_SERVICE);
             windowManager.removeView(mOverlayView);
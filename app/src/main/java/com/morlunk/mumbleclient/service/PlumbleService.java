@@ -29,6 +29,7 @@ import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.speech.tts.TextToSpeech;
 import android.support.v4.app.NotificationCompat;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
@@ -37,14 +38,17 @@ import android.view.WindowManager;
 import com.morlunk.jumble.Constants;
 import com.morlunk.jumble.JumbleService;
 import com.morlunk.jumble.model.Message;
+import com.morlunk.jumble.model.Server;
 import com.morlunk.jumble.model.User;
 import com.morlunk.jumble.util.JumbleObserver;
 import com.morlunk.mumbleclient.R;
 import com.morlunk.mumbleclient.Settings;
 import com.morlunk.mumbleclient.app.PlumbleActivity;
+import com.morlunk.mumbleclient.db.PlumbleChatArchive;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 /**
  * An extension of the Jumble service with some added Plumble-exclusive non-standard Mumble features.
@@ -59,6 +63,13 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
     public static final String BROADCAST_MUTE = "broadcast_mute";
     public static final String BROADCAST_DEAFEN = "broadcast_deafen";
     public static final String BROADCAST_TOGGLE_OVERLAY = "broadcast_toggle_overlay";
+    public static final String BROADCAST_CANCEL_RECONNECT = "broadcast_cancel_reconnect";
+    /** Sent when a reconnect attempt has been scheduled. */
+    public static final String BROADCAST_RECONNECT_SCHEDULED = "broadcast_reconnect_scheduled";
+    /** The delay until the next attempt in milliseconds, or -1 if waiting for the network. */
+    public static final String EXTRA_RECONNECT_DELAY = "reconnect_delay";
+    /** Marks connect intents sent by the service itself while reconnecting. */
+    private static final String EXTRA_RECONNECT = "reconnect";
 
     public static final int STATUS_NOTIFICATION_ID = 1;
 
@@ -67,6 +78,7 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
     private List<String> mUnreadMessages = new ArrayList<String>();
 
     private Settings mSettings;
+    private PlumbleChatArchive mChatArchive;
     private boolean mHotCornerEnabled;
     /** The view representing the hot corner. */
     private View mHotCornerView;
@@ -77,6 +89,12 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
     /** Proximity lock for handset mode. */
     private PowerManager.WakeLock mProximityLock;
 
+    private ReconnectPolicy mReconnectPolicy;
+    /** The intent used to start the last user-initiated connection, replayed when reconnecting. */
+    private Intent mConnectIntent;
+    /** Whether the current connection got as far as synchronizing. Failures before that aren't retried. */
+    private boolean mSynchronized;
+
     private TextToSpeech mTTS;
     private TextToSpeech.OnInitListener mTTSInitListener = new TextToSpeech.OnInitListener() {
         @Override
@@ -86,9 +104,42 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
         }
     };
 
+    private ReconnectPolicy.Callback mReconnectCallback = new ReconnectPolicy.Callback() {
+        @Override
+        public void onReconnect(int attempt) {
+            Intent reconnectIntent = new Intent(mConnectIntent);
+            reconnectIntent.putExtra(EXTRA_RECONNECT, true);
+            startService(reconnectIntent);
+        }
+
+        @Override
+        public void onReconnectScheduled(int attempt, long delay) {
+            createNotification();
+            updateNotificationTicker(getReconnectMessage(PlumbleService.this, delay));
+            updateNotificationState();
+
+            Intent scheduledIntent = new Intent(BROADCAST_RECONNECT_SCHEDULED);
+            scheduledIntent.putExtra(EXTRA_RECONNECT_DELAY, delay);
+            sendBroadcast(scheduledIntent);
+        }
+
+        @Override
+        public void onReconnectAbandoned(int attempts) {
+            hideNotification();
+            logReconnectMetrics("Gave up reconnecting after " + attempts + " attempts");
+        }
+    };
+
     private BroadcastReceiver mNotificationReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            if(BROADCAST_CANCEL_RECONNECT.equals(intent.getAction())) {
+                if(mReconnectPolicy.isReconnecting()) {
+                    mReconnectPolicy.cancel();
+                    if(!isConnected()) hideNotification();
+                }
+                return;
+            }
             if(!isConnected()) return;
             try {
                 if(BROADCAST_MUTE.equals(intent.getAction())) {
@@ -121,11 +172,13 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
 
         @Override
         public void onConnectionError(String message, boolean reconnecting) throws RemoteException {
-            if(reconnecting) {
-                String tickerMessage = getString(R.string.reconnecting, PlumbleActivity.RECONNECT_DELAY/1000);
-                if(mNotificationReceiver == null) createNotification();
-                updateNotificationTicker(tickerMessage);
-                updateNotificationState();
+            // Only retry connections that dropped after synchronizing, so that rejections and
+            // typos in the server's address are reported straight away.
+            boolean dropped = mSynchronized;
+            mSynchronized = false;
+            if(mSettings.isAutoReconnectEnabled() && mConnectIntent != null &&
+                    (dropped || mReconnectPolicy.isReconnecting())) {
+                mReconnectPolicy.onConnectionLost();
             }
         }
 
@@ -139,6 +192,11 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
 
         @Override
         public void onMessageLogged(Message message) throws RemoteException {
+            // Public servers aren't in the database and all share the ID -1, so don't archive them.
+            Server server = getBinder().getConnectedServer();
+            if(server != null && server.getId() != -1)
+                mChatArchive.archive(server.getId(), message);
+
             // Strip all HTML tags.
             String strippedMessage = message.getMessage().replaceAll("<[^>]*>", "");
 
@@ -182,6 +240,7 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
         notificationIntentFilter.addAction(BROADCAST_MUTE);
         notificationIntentFilter.addAction(BROADCAST_DEAFEN);
         notificationIntentFilter.addAction(BROADCAST_TOGGLE_OVERLAY);
+        notificationIntentFilter.addAction(BROADCAST_CANCEL_RECONNECT);
         notificationIntentFilter.addAction(PlumbleActivity.ACTION_PLUMBLE_SHOWN);
         registerReceiver(mNotificationReceiver, notificationIntentFilter);
 
@@ -196,6 +255,11 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.registerOnSharedPreferenceChangeListener(this);
 
+        mChatArchive = PlumbleChatArchive.getInstance(this);
+
+        mReconnectPolicy = new ReconnectPolicy(new HandlerClock(),
+                new ConnectivityMonitor(this), new Random(), mReconnectCallback);
+
         // Instantiate overlay view
         mChannelOverlay = new PlumbleOverlay(this);
 
@@ -204,9 +268,22 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
             mTTS = new TextToSpeech(this, mTTSInitListener);
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if(intent != null && ACTION_CONNECT.equals(intent.getAction()) &&
+                !intent.getBooleanExtra(EXTRA_RECONNECT, false)) {
+            // A connection requested by the user supersedes any reconnect in progress.
+            mReconnectPolicy.cancel();
+            mConnectIntent = intent;
+            mSynchronized = false;
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     public void onDestroy() {
         stopForeground(true);
+        mReconnectPolicy.cancel();
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.unregisterOnSharedPreferenceChangeListener(this);
         unregisterReceiver(mNotificationReceiver);
@@ -216,12 +293,14 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
             e.printStackTrace();
         }
         if(mTTS != null) mTTS.shutdown();
+        mChatArchive.flush();
         super.onDestroy();
     }
 
     @Override
     public void onConnectionEstablished() {
         super.onConnectionEstablished();
+        ConnectionMetrics.getInstance().onConnectionEstablished();
         // Restore mute/deafen state
         if(mSettings.isMuted() || mSettings.isDeafened()) {
             try {
@@ -236,6 +315,11 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
     @Override
     public void onConnectionSynchronized() {
         super.onConnectionSynchronized();
+        ConnectionMetrics.getInstance().onConnectionSynchronized();
+        mSynchronized = true;
+        boolean reconnected = mReconnectPolicy.isReconnecting();
+        mReconnectPolicy.onConnected();
+        if(reconnected) logReconnectMetrics("Reconnected in " + mReconnectPolicy.getLastReconnectDuration() + "ms");
         createNotification();
 
         // Update setting-dependent connection properties
@@ -249,6 +333,7 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
     @Override
     public void onConnectionDisconnected() {
         super.onConnectionDisconnected();
+        ConnectionMetrics.getInstance().onConnectionFailed();
         // Remove overlay if present.
         mChannelOverlay.hide();
 
@@ -266,13 +351,9 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
 
         setProximitySensorOn(false);
 
-        try {
-            if(!getBinder().isReconnecting()) {
-                hideNotification();
-//                stopSelf(); // Stop manual control of the service's lifecycle.
-            }
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        if(!mReconnectPolicy.isReconnecting()) {
+            hideNotification();
+//            stopSelf(); // Stop manual control of the service's lifecycle.
         }
     }
 
@@ -464,11 +545,7 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
             contentText = getString(R.string.disconnected);
         }
 
-        try {
-            if(getBinder().isReconnecting()) contentText = getString(R.string.reconnecting, PlumbleActivity.RECONNECT_DELAY/1000);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+        if(mReconnectPolicy.isReconnecting()) contentText = getString(R.string.reconnecting_pending);
 
         if(!mUnreadMessages.isEmpty() && isConnected()) {
             NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
@@ -489,10 +566,29 @@ public class PlumbleService extends JumbleService implements SharedPreferences.O
         startForeground(STATUS_NOTIFICATION_ID, mStatusNotificationBuilder.build());
     }
 
+    /**
+     * @param delay The delay until the next reconnect attempt in milliseconds, or -1 if waiting for the network.
+     * @return A message describing when the next reconnect attempt will be made.
+     */
+    public static String getReconnectMessage(Context context, long delay) {
+        if(delay < 0) return context.getString(R.string.reconnecting_no_network);
+        return context.getString(R.string.reconnecting, (int) ((delay + 999) / 1000));
+    }
+
     public void hideNotification() {
         stopForeground(true);
     }
 
+    /**
+     * Logs the outcome of an outage along with the running reconnect totals, as
+     * {@link ConnectionMetrics} does for connection times.
+     */
+    private void logReconnectMetrics(String outcome) {
+        Log.i(com.morlunk.mumbleclient.Constants.TAG, outcome + ": " + mReconnectPolicy.getReconnectCount()
+                + " reconnected, " + mReconnectPolicy.getAbandonedCount() + " abandoned, mean time to reconnect "
+                + mReconnectPolicy.getMeanReconnectDuration() + "ms");
+    }
+
     private void setProximitySensorOn(boolean on) {
         if(on) {
             PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
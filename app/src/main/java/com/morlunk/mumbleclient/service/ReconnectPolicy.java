@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import java.util.Random;
+
+/**
+ * Decides when to reconnect after a connection is lost.
+ * Retries immediately when the network comes back, otherwise backs off exponentially with jitter
+ * so that a flapping connection doesn't hammer the server. Gives up after {@link #MAX_ATTEMPTS}.
+ * Time and network state are supplied through {@link Clock} and {@link NetworkMonitor}, so the
+ * policy can be driven without a device, and has no Android dependencies so that it can be tested
+ * on a plain JVM. Not thread safe; call from the clock's thread.
+ */
+public class ReconnectPolicy {
+
+    /** The delay before the first retry, in milliseconds. */
+    public static final int BASE_DELAY = 1000;
+    /** The largest delay between retries, in milliseconds. */
+    public static final int MAX_DELAY = 60000;
+    /** The number of attempts made before giving up. */
+    public static final int MAX_ATTEMPTS = 10;
+
+    public interface Clock {
+        /**
+         * @return Monotonic time in milliseconds.
+         */
+        public long now();
+        public void schedule(Runnable task, long delay);
+        public void cancel(Runnable task);
+    }
+
+    public interface NetworkMonitor {
+        public interface Listener {
+            public void onNetworkChanged(boolean available);
+        }
+
+        public boolean isNetworkAvailable();
+        public void start(Listener listener);
+        public void stop();
+    }
+
+    public interface Callback {
+        /**
+         * Called when it's time to make a connection attempt.
+         * @param attempt The attempt number, starting at 1.
+         */
+        public void onReconnect(int attempt);
+
+        /**
+         * Called when the next attempt has been scheduled.
+         * @param delay The delay until the attempt in milliseconds, or -1 if waiting for the network.
+         */
+        public void onReconnectScheduled(int attempt, long delay);
+
+        /**
+         * Called when the policy has given up after exhausting its attempts.
+         */
+        public void onReconnectAbandoned(int attempts);
+    }
+
+    private final Clock mClock;
+    private final NetworkMonitor mNetworkMonitor;
+    private final Random mRandom;
+    private final Callback mCallback;
+
+    private boolean mReconnecting;
+    /** True while an attempt is in flight and we're waiting to hear how it went. */
+    private boolean mAttemptPending;
+    private boolean mScheduled;
+    private int mAttempts;
+    private int mBackoff;
+    private long mOutageStart;
+
+    private int mReconnectCount;
+    private int mAbandonedCount;
+    private long mLastDuration = -1;
+    private long mTotalDuration;
+
+    private Runnable mRetryTask = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            attempt();
+        }
+    };
+
+    private NetworkMonitor.Listener mNetworkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkChanged(boolean available) {
+            if(!mReconnecting || mAttemptPending) return;
+            if(available) {
+                // Coverage is back; the backoff so far says nothing about the new network.
+                cancelScheduled();
+                mBackoff = 0;
+                attempt();
+            } else if(mScheduled) {
+                // Don't burn attempts while there's nothing to connect over.
+                cancelScheduled();
+                scheduleNext();
+            }
+        }
+    };
+
+    public ReconnectPolicy(Clock clock, NetworkMonitor monitor, Random random, Callback callback) {
+        mClock = clock;
+        mNetworkMonitor = monitor;
+        mRandom = random;
+        mCallback = callback;
+    }
+
+    /**
+     * Called when the connection drops, or when a reconnect attempt fails.
+     * Starts a new outage if one isn't in progress, and schedules the next attempt.
+     */
+    public void onConnectionLost() {
+        if(!mReconnecting) {
+            mReconnecting = true;
+            mAttempts = 0;
+            mBackoff = 0;
+            mOutageStart = mClock.now();
+            mNetworkMonitor.start(mNetworkListener);
+        }
+        mAttemptPending = false;
+
+        if(mAttempts >= MAX_ATTEMPTS) {
+            int attempts = mAttempts;
+            mAbandonedCount++;
+            reset();
+            mCallback.onReconnectAbandoned(attempts);
+            return;
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Called when the connection has been re-established. Records how long the outage lasted.
+     */
+    public void onConnected() {
+        if(!mReconnecting) return;
+        long duration = mClock.now() - mOutageStart;
+        mLastDuration = duration;
+        mTotalDuration += duration;
+        mReconnectCount++;
+        reset();
+    }
+
+    /**
+     * Stops reconnecting, e.g. when the user cancels or connects somewhere else.
+     */
+    public void cancel() {
+        reset();
+    }
+
+    public boolean isReconnecting() {
+        return mReconnecting;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return The number of outages that ended in a successful reconnect.
+     */
+    public int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * @return The number of outages where we gave up.
+     */
+    public int getAbandonedCount() {
+        return mAbandonedCount;
+    }
+
+    /**
+     * @return How long the last successful reconnect took in milliseconds, or -1 if none.
+     */
+    public long getLastReconnectDuration() {
+        return mLastDuration;
+    }
+
+    /**
+     * @return The mean time to reconnect in milliseconds, or -1 if none.
+     */
+    public long getMeanReconnectDuration() {
+        return mReconnectCount > 0 ? mTotalDuration / mReconnectCount : -1;
+    }
+
+    /**
+     * Computes the delay for the given backoff step, using "equal jitter": half of the capped
+     * exponential delay, plus a random amount up to the other half.
+     */
+    public long getDelay(int backoff) {
+        long cap = Math.min(MAX_DELAY, (long) BASE_DELAY << Math.min(backoff, 16));
+        long half = cap / 2;
+        return half + (long) (mRandom.nextDouble() * (cap - half));
+    }
+
+    private void scheduleNext() {
+        long delay;
+        if(mNetworkMonitor.isNetworkAvailable()) {
+            delay = getDelay(mBackoff++);
+            mCallback.onReconnectScheduled(mAttempts + 1, delay);
+        } else {
+            // Wait for the network, but still try now and then in case the broadcast never comes.
+            delay = MAX_DELAY;
+            mCallback.onReconnectScheduled(mAttempts + 1, -1);
+        }
+        mScheduled = true;
+        mClock.schedule(mRetryTask, delay);
+    }
+
+    private void attempt() {
+        mAttempts++;
+        mAttemptPending = true;
+        mCallback.onReconnect(mAttempts);
+    }
+
+    private void cancelScheduled() {
+        if(mScheduled) mClock.cancel(mRetryTask);
+        mScheduled = false;
+    }
+
+    private void reset() {
+        cancelScheduled();
+        if(mReconnecting) mNetworkMonitor.stop();
+        mReconnecting = false;
+        mAttemptPending = false;
+        mAttempts = 0;
+        mBackoff = 0;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * A process-wide LRU cache of decoded bitmaps, bounded by their size in bytes.
+ * Entries are keyed by a hash of the image source rather than the source itself, as data URIs
+ * can carry the entire base64 payload.
+ * Hit, miss and eviction counts are available through {@link #hitCount()}, {@link #missCount()}
+ * and {@link #evictionCount()}.
+ */
+public class BitmapCache extends LruCache<String, Bitmap> {
+
+    /** The fraction of the application's memory class to allow the cache to use. */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    private static BitmapCache sInstance;
+
+    public static synchronized BitmapCache getInstance(Context context) {
+        if(sInstance == null) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            int maxSize = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+            sInstance = new BitmapCache(maxSize);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param source The image source, such as a URL or data URI.
+     * @return A fixed-length key identifying the source's content.
+     */
+    public static String getKey(String source) {
+        return Hashing.sha1().hashString(source, Charsets.UTF_8).toString();
+    }
+
+    private BitmapCache(int maxSize) {
+        super(maxSize);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight(); // getByteCount() requires API 12
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.util.Log;
+
+import com.morlunk.mumbleclient.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps client certificates in memory, so that connecting doesn't read the certificate from
+ * external storage each time. Entries are keyed by path, and reloaded if the file's modification
+ * time or length changes. Certificates can be loaded and checked ahead of time with {@link #preload}.
+ * Paths are made absolute before use, so relative and absolute paths share an entry.
+ */
+public class CertificateRepository {
+
+    private static final String CERTIFICATE_FORMAT = "PKCS12";
+
+    private static class Entry {
+        final String path;
+        final long lastModified;
+        final long length;
+        /** The bytes of the file. Read once by whichever caller created the entry. */
+        final FutureTask<byte[]> data;
+        /** Null until checked. Guarded by the entry. */
+        Boolean passwordRequired;
+        /** The last password that opened the store, or null if none has. Guarded by the entry. */
+        String validPassword;
+        KeyStore store;
+
+        Entry(final File file, long lastModified, long length) {
+            this.path = file.getAbsolutePath();
+            this.lastModified = lastModified;
+            this.length = length;
+            this.data = new FutureTask<byte[]>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    byte[] data = new byte[(int) Entry.this.length];
+                    DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+                    try {
+                        inputStream.readFully(data);
+                    } finally {
+                        inputStream.close();
+                    }
+                    return data;
+                }
+            });
+        }
+    }
+
+    private static CertificateRepository sInstance;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    public static synchronized CertificateRepository getInstance() {
+        if(sInstance == null)
+            sInstance = new CertificateRepository();
+        return sInstance;
+    }
+
+    private CertificateRepository() {
+    }
+
+    /**
+     * Loads the certificate at the given path on a background thread, and checks that the
+     * password opens it. Later calls for the same unchanged file return immediately.
+     */
+    public void preload(final String path, final String password) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File file = new File(path);
+                    if(!isPasswordValid(file, password))
+                        Log.w(Constants.TAG, "Password does not open certificate "+path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (KeyStoreException e) {
+                    e.printStackTrace();
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the contents of the certificate at the given path, reading it if not yet cached.
+     * Waits for a pending read of the same file rather than reading it twice, but never for a
+     * key store to be parsed.
+     * @return The bytes of the certificate, or null if it could not be read.
+     */
+    public byte[] getCertificate(String path) {
+        try {
+            return getData(getEntry(new File(path)));
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Checks to see if the given certificate is password protected.
+     * @param certificateFile A PKCS12 certificate.
+     * @return true if the certificate is password protected, false otherwise.
+     */
+    public boolean isPasswordRequired(File certificateFile) throws IOException, KeyStoreException, NoSuchAlgorithmException {
+        Entry entry = getEntry(certificateFile);
+        byte[] data = getData(entry);
+        synchronized (entry) {
+            if(entry.passwordRequired == null) {
+                entry.passwordRequired = !tryLoad(entry, data, "");
+            }
+            return entry.passwordRequired;
+        }
+    }
+
+    /**
+     * Checks to see if the given password opens the certificate.
+     * @param certificateFile A PKCS12 certificate.
+     * @param password A password for the certificate.
+     * @return true if the password is valid, false otherwise.
+     */
+    public boolean isPasswordValid(File certificateFile, String password) throws IOException, KeyStoreException, NoSuchAlgorithmException {
+        Entry entry = getEntry(certificateFile);
+        byte[] data = getData(entry);
+        synchronized (entry) {
+            if(password.equals(entry.validPassword)) return true;
+            boolean valid = tryLoad(entry, data, password);
+            if("".equals(password)) entry.passwordRequired = !valid;
+            return valid;
+        }
+    }
+
+    /**
+     * @return The parsed store for the given certificate, if it has been opened successfully
+     * since it last changed. Otherwise, null.
+     */
+    public KeyStore getKeyStore(String path) {
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(new File(path).getAbsolutePath());
+        }
+        if(entry == null) return null;
+        synchronized (entry) {
+            return entry.store;
+        }
+    }
+
+    /**
+     * Returns the entry for the file, creating it if the file is new or has changed.
+     * The map is only locked to look up the entry; the file is read outside it.
+     */
+    private Entry getEntry(File file) {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Entry entry;
+        boolean created = false;
+        synchronized (mEntries) {
+            entry = mEntries.get(path);
+            if(entry == null || entry.lastModified != lastModified || entry.length != length) {
+                entry = new Entry(file, lastModified, length);
+                mEntries.put(path, entry);
+                created = true;
+            }
+        }
+        if(created) entry.data.run();
+        return entry;
+    }
+
+    /**
+     * Waits for the entry's file to be read. Entries that failed to read are dropped, so the next
+     * call tries again.
+     */
+    private byte[] getData(Entry entry) throws IOException {
+        try {
+            return entry.data.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading certificate");
+        } catch (ExecutionException e) {
+            synchronized (mEntries) {
+                if(mEntries.get(entry.path) == entry) mEntries.remove(entry.path);
+            }
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause().toString());
+        }
+    }
+
+    /**
+     * Parses the key store. Called with the entry locked, but not the repository.
+     */
+    private static boolean tryLoad(Entry entry, byte[] data, String password) throws KeyStoreException, NoSuchAlgorithmException {
+        KeyStore store = KeyStore.getInstance(CERTIFICATE_FORMAT);
+        try {
+            store.load(new ByteArrayInputStream(data), password.toCharArray());
+        } catch (IOException e) {
+            return false; // Thrown by most providers for a bad password.
+        } catch (CertificateException e) {
+            return false;
+        }
+        entry.store = store;
+        entry.validPassword = password;
+        return true;
+    }
+}
@@ -71,6 +71,14 @@ public abstract class JumbleServiceFragment extends Fragment {
         return null;
     }
 
+    /**
+     * If implemented, will register the returned observer to the model mirror upon binding.
+     * It is called after the mirror has applied each change, so it can read the mirror.
+     */
+    public IJumbleObserver getModelObserver() {
+        return null;
+    }
+
     private void onServiceAttached(IJumbleService service) {
         mBound = true;
         try {
@@ -79,6 +87,8 @@ public abstract class JumbleServiceFragment extends Fragment {
         } catch (RemoteException e) {
             e.printStackTrace();
         }
+        if(getModelObserver() != null)
+            getModelMirror().registerObserver(getModelObserver());
 
         onServiceBound(service);
     }
@@ -91,6 +101,8 @@ public abstract class JumbleServiceFragment extends Fragment {
         } catch (RemoteException e) {
             e.printStackTrace();
         }
+        if(getModelObserver() != null)
+            getModelMirror().unregisterObserver(getModelObserver());
 
     }
 
@@ -104,4 +116,8 @@ public abstract class JumbleServiceFragment extends Fragment {
     public IJumbleService getService() {
         return mServiceProvider.getService();
     }
+
+    public ServerModelMirror getModelMirror() {
+        return mServiceProvider.getModelMirror();
+    }
 }
@@ -24,6 +24,8 @@ import com.morlunk.jumble.IJumbleService;
  */
 public interface JumbleServiceProvider {
     public IJumbleService getService();
+    /** @return A local mirror of the connected server's model, safe to read while binding views. */
+    public ServerModelMirror getModelMirror();
     public void addServiceFragment(JumbleServiceFragment fragment);
     public void removeServiceFragment(JumbleServiceFragment fragment);
 }
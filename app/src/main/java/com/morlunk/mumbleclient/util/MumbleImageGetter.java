@@ -18,54 +18,86 @@
 package com.morlunk.mumbleclient.util;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.StrictMode;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
+import android.text.Spanned;
+import android.text.style.ImageSpan;
 import android.util.Base64;
 import android.util.DisplayMetrics;
+import android.widget.TextView;
 
 import com.morlunk.mumbleclient.Settings;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Implementation of ImageGetter designed for Mumble MOTDs and messages.
- * Can read base64-embedded images and references. Caches them too.
- * Created by andrew on 07/02/14.
+ * Can read base64-embedded images and references. Decoded images are kept in the shared
+ * {@link BitmapCache}.
+ *
+ * Images that aren't cached are fetched and decoded off the main thread. Until then, the span
+ * holds a placeholder which is swapped for the image once it loads. Text containing images should
+ * be set with {@link #setText(TextView, Spanned)}, which starts loads for the view and cancels
+ * those of the text it previously displayed.
+ * {@link #getDrawable(String)} may be called from any thread, so text can be parsed in the
+ * background. Everything else must be called from the main thread.
  */
 public class MumbleImageGetter implements Html.ImageGetter {
 
     /** The maximum image size in bytes to load. */
     private static final int MAX_LENGTH = 64000;
+    /** The size of the placeholder shown while an image loads, in dp. */
+    private static final int PLACEHOLDER_SIZE = 32;
+    private static final int LOADER_THREADS = 2;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(LOADER_THREADS);
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    /** Loads in progress, keyed by cache key, so that repeated sources share one fetch. */
+    private static final Map<String, LoadRequest> sRequests = new HashMap<String, LoadRequest>();
 
     private Context mContext;
     private Settings mSettings;
-    private Map<String, Drawable> mBitmapCache;
+    private BitmapCache mBitmapCache;
+    private Map<TextView, Spanned> mBoundText = new WeakHashMap<TextView, Spanned>();
 
     public MumbleImageGetter(Context context) {
         mContext = context;
         mSettings = Settings.getInstance(context);
-        mBitmapCache = new HashMap<String, Drawable>();
-
-        // We have to enable network on the main thread here. FIXME
-        StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitAll().build();
-        StrictMode.setThreadPolicy(policy);
+        mBitmapCache = BitmapCache.getInstance(context);
     }
 
     @Override
     public Drawable getDrawable(String source) {
-        Drawable cachedDrawable = mBitmapCache.get(source);
-        if(cachedDrawable != null) return cachedDrawable;
+        String key = BitmapCache.getKey(source);
+        Bitmap cachedBitmap = mBitmapCache.get(key);
+        if(cachedBitmap != null) return createDrawable(cachedBitmap);
 
         String decodedSource; // Decode from URL encoding
         try {
@@ -75,42 +107,269 @@ public class MumbleImageGetter implements Html.ImageGetter {
             return null;
         }
 
-        Bitmap bitmap = null;
-        try {
-            if(decodedSource.startsWith("data:image")) {
-                bitmap = getBase64Image(decodedSource.split(",")[1]);
-            } else if(mSettings.shouldLoadExternalImages()) {
-                bitmap = getURLImage(decodedSource);
-            }
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
+        if(!decodedSource.startsWith("data:image") && !mSettings.shouldLoadExternalImages())
             return null;
+
+        float density = mContext.getResources().getDisplayMetrics().density;
+        AsyncDrawable drawable = new AsyncDrawable(key, decodedSource);
+        drawable.setBounds(0, 0, (int) (PLACEHOLDER_SIZE * density), (int) (PLACEHOLDER_SIZE * density));
+        return drawable;
+    }
+
+    /**
+     * Sets the text of the view, loading any pending images it contains.
+     * Loads started for the text the view previously displayed are cancelled.
+     */
+    public void setText(TextView view, Spanned text) {
+        Spanned previousText = mBoundText.remove(view);
+        if(previousText != null) {
+            for(AsyncDrawable drawable : getAsyncDrawables(previousText))
+                detach(drawable, view);
+        }
+
+        view.setText(text);
+        List<AsyncDrawable> drawables = getAsyncDrawables(text);
+        if(drawables.isEmpty()) return;
+
+        mBoundText.put(view, text);
+        for(AsyncDrawable drawable : drawables)
+            attach(drawable, view);
+    }
+
+    private static List<AsyncDrawable> getAsyncDrawables(Spanned text) {
+        List<AsyncDrawable> drawables = new ArrayList<AsyncDrawable>();
+        for(ImageSpan span : text.getSpans(0, text.length(), ImageSpan.class)) {
+            Drawable drawable = span.getDrawable();
+            if(drawable instanceof AsyncDrawable && !((AsyncDrawable) drawable).isLoaded())
+                drawables.add((AsyncDrawable) drawable);
+        }
+        return drawables;
+    }
+
+    /**
+     * Registers the view as waiting on the drawable's image. The same drawable may be shown by
+     * several views at once, e.g. when rendered text is cached, so waiters are tracked per view.
+     */
+    private void attach(AsyncDrawable drawable, TextView view) {
+        Bitmap cachedBitmap = mBitmapCache.get(drawable.mKey);
+        if(cachedBitmap != null) {
+            // Loaded while the text was bound elsewhere.
+            drawable.setDrawable(createDrawable(view.getResources(), cachedBitmap));
+            view.setText(view.getText());
+            return;
+        }
+
+        LoadRequest request = sRequests.get(drawable.mKey);
+        if(request == null) {
+            DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+            int width = view.getWidth() > 0 ? view.getWidth() : metrics.widthPixels;
+            request = new LoadRequest(mBitmapCache, drawable.mKey, drawable.mSource, width, metrics.density);
+            sRequests.put(drawable.mKey, request);
+            request.mFuture = sExecutor.submit(request);
         }
-        if(bitmap == null) return null;
+        for(Waiter waiter : request.mWaiters) {
+            if(waiter.mDrawable == drawable && waiter.mView.get() == view) return;
+        }
+        request.mWaiters.add(new Waiter(drawable, view));
+    }
+
+    private static void detach(AsyncDrawable drawable, TextView view) {
+        LoadRequest request = sRequests.get(drawable.mKey);
+        if(request == null) return;
+        Iterator<Waiter> iterator = request.mWaiters.iterator();
+        while(iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            TextView waitingView = waiter.mView.get();
+            if(waitingView == null || (waiter.mDrawable == drawable && waitingView == view)) iterator.remove();
+        }
+        if(request.mWaiters.isEmpty()) {
+            request.mFuture.cancel(true);
+            sRequests.remove(drawable.mKey);
+        }
+    }
 
-        BitmapDrawable drawable = new BitmapDrawable(mContext.getResources(), bitmap);
-        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics(); // Use display metrics to scale image to mdpi
+    /**
+     * Wraps a bitmap in a new drawable, so that rows sharing a cached bitmap don't share bounds.
+     */
+    private Drawable createDrawable(Bitmap bitmap) {
+        return createDrawable(mContext.getResources(), bitmap);
+    }
+
+    private static Drawable createDrawable(Resources resources, Bitmap bitmap) {
+        BitmapDrawable drawable = new BitmapDrawable(resources, bitmap);
+        DisplayMetrics metrics = resources.getDisplayMetrics(); // Use display metrics to scale image to mdpi
         drawable.setBounds(0, 0, (int)((float)drawable.getIntrinsicWidth()*metrics.density), (int)((float)drawable.getIntrinsicHeight()*metrics.density));
-        mBitmapCache.put(source, drawable);
         return drawable;
     }
 
-    private Bitmap getBase64Image(String base64) throws IllegalArgumentException {
+    /**
+     * Called on the main thread when a load finishes, successfully or not.
+     */
+    private static void onLoadFinished(LoadRequest request, Bitmap bitmap) {
+        if(sRequests.get(request.mKey) != request) return; // Cancelled
+        sRequests.remove(request.mKey);
+        if(bitmap == null) return;
+
+        request.mBitmapCache.put(request.mKey, bitmap);
+        Set<TextView> views = new HashSet<TextView>();
+        for(Waiter waiter : request.mWaiters) {
+            TextView view = waiter.mView.get();
+            if(view == null) continue; // The drawable will pick up the cached bitmap if shown again.
+            if(!waiter.mDrawable.isLoaded())
+                waiter.mDrawable.setDrawable(createDrawable(view.getResources(), bitmap));
+            views.add(view);
+        }
+        for(TextView view : views) {
+            // Reset the text so that the span is measured with the image's bounds.
+            view.setText(view.getText());
+        }
+    }
+
+    private static Bitmap getBase64Image(String base64, int maxWidth, float density) throws IllegalArgumentException {
         byte[] src = Base64.decode(base64, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(src, 0, src.length);
+        return decodeSampledBitmap(src, maxWidth, density);
     }
 
-    private Bitmap getURLImage(String source) {
+    private static Bitmap getURLImage(String source, int maxWidth, float density) throws IOException {
+        URL url = new URL(source);
+        URLConnection conn = url.openConnection();
+        if(conn.getContentLength() > MAX_LENGTH) return null;
+
+        InputStream inputStream = conn.getInputStream();
         try {
-            URL url = new URL(source);
-            URLConnection conn = url.openConnection();
-            if(conn.getContentLength() > MAX_LENGTH) return null;
-            return BitmapFactory.decodeStream(conn.getInputStream());
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            // Read to a buffer, as the content length isn't always reported.
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = inputStream.read(buffer)) != -1) {
+                if(Thread.interrupted()) return null;
+                outputStream.write(buffer, 0, read);
+                if(outputStream.size() > MAX_LENGTH) return null;
+            }
+            byte[] src = outputStream.toByteArray();
+            return decodeSampledBitmap(src, maxWidth, density);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Decodes the image, downsampling it by powers of two until it is no wider than needed.
+     * Images are drawn scaled by the display density, so that is applied before comparing.
+     * @param maxWidth The width available to the image, in pixels.
+     */
+    private static Bitmap decodeSampledBitmap(byte[] src, int maxWidth, float density) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(src, 0, src.length, options);
+
+        options.inSampleSize = 1;
+        while(maxWidth > 0 && (int) (options.outWidth / (options.inSampleSize * 2) * density) >= maxWidth)
+            options.inSampleSize *= 2;
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(src, 0, src.length, options);
+    }
+
+    /**
+     * A fetch and decode of a single image source, shared by every drawable waiting on it.
+     */
+    private static class LoadRequest implements Runnable {
+        private final BitmapCache mBitmapCache;
+        private final String mKey;
+        private final String mSource;
+        /** The width available to the image, in pixels. */
+        private final int mMaxWidth;
+        private final float mDensity;
+        private final List<Waiter> mWaiters = new ArrayList<Waiter>();
+        private Future<?> mFuture;
+
+        public LoadRequest(BitmapCache bitmapCache, String key, String source, int maxWidth, float density) {
+            mBitmapCache = bitmapCache;
+            mKey = key;
+            mSource = source;
+            mMaxWidth = maxWidth;
+            mDensity = density;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                if(mSource.startsWith("data:image")) {
+                    bitmap = getBase64Image(mSource.split(",")[1], mMaxWidth, mDensity);
+                } else {
+                    bitmap = getURLImage(mSource, mMaxWidth, mDensity);
+                }
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            final Bitmap result = bitmap;
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoadFinished(LoadRequest.this, result);
+                }
+            });
+        }
+    }
+
+    /**
+     * A view waiting for a drawable it displays to load.
+     */
+    private static class Waiter {
+        private final AsyncDrawable mDrawable;
+        /** Weak, so that a pending load doesn't keep a finished activity alive. */
+        private final WeakReference<TextView> mView;
+
+        public Waiter(AsyncDrawable drawable, TextView view) {
+            mDrawable = drawable;
+            mView = new WeakReference<TextView>(view);
+        }
+    }
+
+    /**
+     * A drawable that draws nothing until its image has loaded, then draws the image.
+     */
+    private static class AsyncDrawable extends Drawable {
+        private final String mKey;
+        private final String mSource;
+        private Drawable mDrawable;
+
+        public AsyncDrawable(String key, String source) {
+            mKey = key;
+            mSource = source;
+        }
+
+        public boolean isLoaded() {
+            return mDrawable != null;
+        }
+
+        public void setDrawable(Drawable drawable) {
+            mDrawable = drawable;
+            setBounds(drawable.getBounds());
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if(mDrawable != null) mDrawable.draw(canvas);
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            if(mDrawable != null) mDrawable.setAlpha(alpha);
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter cf) {
+            if(mDrawable != null) mDrawable.setColorFilter(cf);
+        }
+
+        @Override
+        public int getOpacity() {
+            return mDrawable != null ? mDrawable.getOpacity() : PixelFormat.TRANSPARENT;
         }
-        return null;
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.util.SparseArray;
+
+import com.morlunk.jumble.IJumbleObserver;
+import com.morlunk.jumble.IJumbleService;
+import com.morlunk.jumble.model.Channel;
+import com.morlunk.jumble.model.User;
+import com.morlunk.jumble.util.JumbleObserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A local copy of the connected server's channels and users, seeded once from the service and
+ * kept current from observer callbacks. Lets adapters bind rows without making remote calls.
+ *
+ * The service runs in our process, so the models it hands out are its own live objects. The mirror
+ * stores copies instead, which it alone updates; callers must treat them as read only.
+ *
+ * The service only sends the channels a user left and joined, so the subchannel user counts of
+ * their parents are kept up to date here, as are the user lists of channels users connect to or
+ * disconnect from. Likewise, the subchannel lists of parents are updated when channels are added,
+ * moved or removed.
+ *
+ * Observers are not called in a guaranteed order, so consumers that read the mirror when the
+ * model changes should register with {@link #registerObserver} rather than with the service.
+ * The mirror calls them with its own copies once each update has been applied.
+ */
+public class ServerModelMirror extends JumbleObserver {
+
+    private IJumbleService mService;
+    private SparseArray<Channel> mChannels = new SparseArray<Channel>();
+    private SparseArray<User> mUsers = new SparseArray<User>();
+    private int mSession = -1;
+    private List<IJumbleObserver> mObservers = new CopyOnWriteArrayList<IJumbleObserver>();
+
+    /**
+     * Replaces the mirror's contents with the service's current state.
+     * The service is retained so that the mirror can reseed itself on reconnect.
+     */
+    public void seed(IJumbleService service) throws RemoteException {
+        mService = service;
+        clear();
+        if(!service.isConnected()) return;
+
+        for(Channel channel : service.getChannelList())
+            mChannels.put(channel.getId(), copy(channel, Channel.CREATOR));
+        for(User user : service.getUserList())
+            mUsers.put(user.getSession(), copy(user, User.CREATOR));
+        mSession = service.getSession();
+    }
+
+    /**
+     * Registers an observer to be notified of model changes after the mirror has applied them.
+     * Only the connection, channel and user callbacks are forwarded.
+     */
+    public void registerObserver(IJumbleObserver observer) {
+        if(!mObservers.contains(observer)) mObservers.add(observer);
+    }
+
+    public void unregisterObserver(IJumbleObserver observer) {
+        mObservers.remove(observer);
+    }
+
+    public void clear() {
+        mChannels.clear();
+        mUsers.clear();
+        mSession = -1;
+    }
+
+    public boolean isSeeded() {
+        return mSession != -1;
+    }
+
+    public int getSession() {
+        return mSession;
+    }
+
+    public User getUser(int session) {
+        return mUsers.get(session);
+    }
+
+    public Channel getChannel(int id) {
+        return mChannels.get(id);
+    }
+
+    public User getSessionUser() {
+        return mUsers.get(mSession);
+    }
+
+    public Channel getSessionChannel() {
+        User user = getSessionUser();
+        return user != null ? mChannels.get(user.getChannelId()) : null;
+    }
+
+    /**
+     * @return An unmodifiable snapshot of the mirrored channels.
+     */
+    public List<Channel> getChannelList() {
+        List<Channel> channels = new ArrayList<Channel>(mChannels.size());
+        for(int x=0;x<mChannels.size();x++)
+            channels.add(mChannels.valueAt(x));
+        return Collections.unmodifiableList(channels);
+    }
+
+    /**
+     * @return An unmodifiable snapshot of the mirrored users.
+     */
+    public List<User> getUserList() {
+        List<User> users = new ArrayList<User>(mUsers.size());
+        for(int x=0;x<mUsers.size();x++)
+            users.add(mUsers.valueAt(x));
+        return Collections.unmodifiableList(users);
+    }
+    @Override
+    public void onConnected() throws RemoteException {
+        if(mService != null) seed(mService);
+        for(IJumbleObserver observer : mObservers)
+            observer.onConnected();
+    }
+
+    @Override
+    public void onDisconnected() throws RemoteException {
+        clear();
+        for(IJumbleObserver observer : mObservers)
+            observer.onDisconnected();
+    }
+
+    @Override
+    public void onChannelAdded(Channel channel) throws RemoteException {
+        channel = copy(channel, Channel.CREATOR);
+        mChannels.put(channel.getId(), channel);
+        addSubchannel(channel.getParent(), channel.getId());
+        for(IJumbleObserver observer : mObservers)
+            observer.onChannelAdded(channel);
+    }
+
+    @Override
+    public void onChannelStateUpdated(Channel channel) throws RemoteException {
+        channel = copy(channel, Channel.CREATOR);
+        Channel previous = mChannels.get(channel.getId());
+        mChannels.put(channel.getId(), channel);
+        if(previous != null && previous.getParent() != channel.getParent()) {
+            removeSubchannel(previous.getParent(), channel.getId());
+            changeUserCount(previous.getParent(), -channel.getSubchannelUserCount());
+            addSubchannel(channel.getParent(), channel.getId());
+            changeUserCount(channel.getParent(), channel.getSubchannelUserCount());
+        }
+        for(IJumbleObserver observer : mObservers)
+            observer.onChannelStateUpdated(channel);
+    }
+
+    @Override
+    public void onChannelRemoved(Channel channel) throws RemoteException {
+        Channel removed = mChannels.get(channel.getId());
+        mChannels.remove(channel.getId());
+        if(removed != null) removeSubchannel(removed.getParent(), channel.getId());
+        for(IJumbleObserver observer : mObservers)
+            observer.onChannelRemoved(channel);
+    }
+
+    @Override
+    public void onUserConnected(User user) throws RemoteException {
+        user = copy(user, User.CREATOR);
+        mUsers.put(user.getSession(), user);
+        Channel channel = mChannels.get(user.getChannelId());
+        if(channel != null && !channel.getUsers().contains(user.getSession())) {
+            channel.getUsers().add(user.getSession());
+            changeUserCount(channel.getId(), 1);
+        }
+        for(IJumbleObserver observer : mObservers)
+            observer.onUserConnected(user);
+    }
+
+    @Override
+    public void onUserStateUpdated(User user) throws RemoteException {
+        user = copy(user, User.CREATOR);
+        mUsers.put(user.getSession(), user);
+        for(IJumbleObserver observer : mObservers)
+            observer.onUserStateUpdated(user);
+    }
+
+    @Override
+    public void onUserTalkStateUpdated(User user) throws RemoteException {
+        user = copy(user, User.CREATOR);
+        mUsers.put(user.getSession(), user);
+        for(IJumbleObserver observer : mObservers)
+            observer.onUserTalkStateUpdated(user);
+    }
+
+    @Override
+    public void onUserJoinedChannel(User user, Channel newChannel, Channel oldChannel) throws RemoteException {
+        User previous = mUsers.get(user.getSession());
+        boolean moved = previous == null || previous.getChannelId() != newChannel.getId();
+        user = copy(user, User.CREATOR);
+        newChannel = copy(newChannel, Channel.CREATOR);
+        mUsers.put(user.getSession(), user);
+        mChannels.put(newChannel.getId(), newChannel);
+        if(oldChannel != null) {
+            oldChannel = copy(oldChannel, Channel.CREATOR);
+            mChannels.put(oldChannel.getId(), oldChannel);
+        }
+
+        // The channels sent carry their own counts; their parents' are stale.
+        if(moved) {
+            changeUserCount(newChannel.getParent(), 1);
+            if(oldChannel != null) changeUserCount(oldChannel.getParent(), -1);
+        }
+        for(IJumbleObserver observer : mObservers)
+            observer.onUserJoinedChannel(user, newChannel, oldChannel);
+    }
+
+    @Override
+    public void onUserRemoved(User user, String reason) throws RemoteException {
+        User removed = mUsers.get(user.getSession());
+        mUsers.remove(user.getSession());
+        if(removed != null) {
+            Channel channel = mChannels.get(removed.getChannelId());
+            if(channel != null && channel.getUsers().remove(Integer.valueOf(user.getSession())))
+                changeUserCount(channel.getId(), -1);
+        }
+        for(IJumbleObserver observer : mObservers)
+            observer.onUserRemoved(user, reason);
+    }
+
+    /**
+     * Copies a model through a parcel, so the mirror never shares state with the service.
+     */
+    private static <T extends Parcelable> T copy(T model, Parcelable.Creator<T> creator) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            model.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void addSubchannel(int parentId, int channelId) {
+        Channel parent = mChannels.get(parentId);
+        if(parent != null && parentId != channelId && !parent.getSubchannels().contains(channelId))
+            parent.getSubchannels().add(channelId);
+    }
+
+    private void removeSubchannel(int parentId, int channelId) {
+        Channel parent = mChannels.get(parentId);
+        if(parent != null) parent.getSubchannels().remove(Integer.valueOf(channelId));
+    }
+
+    /**
+     * Adds to the subchannel user count of the given channel and each of its parents.
+     */
+    private void changeUserCount(int channelId, int change) {
+        for(Channel channel = mChannels.get(channelId); channel != null; channel = mChannels.get(channel.getParent())) {
+            channel.setSubchannelUserCount(channel.getSubchannelUserCount() + change);
+            if(channel.getParent() == channel.getId()) break; // Root
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.morlunk.jumble.model.User;
+
+/**
+ * Coalesces talk state updates and delivers them at most once per display frame.
+ * Talk state changes fire at every voice packet boundary, so redrawing on each one is wasteful.
+ * Only the latest state of each user (by session) is delivered.
+ */
+public class TalkStateAggregator {
+
+    /** Interval between flushes in milliseconds, roughly one frame at 60fps. */
+    public static final int FRAME_INTERVAL = 16;
+
+    public interface TalkStateListener {
+        /**
+         * Called on the main thread with the latest state of each user that changed since the last frame.
+         * The array is reused after this returns, so don't hold on to it.
+         */
+        public void onTalkStatesUpdated(SparseArray<User> users);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final TalkStateListener mListener;
+
+    /** Double buffered so that flushing doesn't allocate and updates can arrive while a frame is delivered. */
+    private SparseArray<User> mPendingUsers = new SparseArray<User>();
+    private SparseArray<User> mFlushingUsers = new SparseArray<User>();
+    private boolean mScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public TalkStateAggregator(TalkStateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues the user's new talk state, scheduling a flush if one isn't already pending.
+     */
+    public void post(User user) {
+        synchronized (this) {
+            mPendingUsers.put(user.getSession(), user);
+            if(mScheduled) return;
+            mScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, FRAME_INTERVAL);
+    }
+
+    /**
+     * Drops all pending updates.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        synchronized (this) {
+            mPendingUsers.clear();
+            mScheduled = false;
+        }
+    }
+
+    private void flush() {
+        SparseArray<User> users;
+        synchronized (this) {
+            users = mPendingUsers;
+            mPendingUsers = mFlushingUsers;
+            mFlushingUsers = users;
+            mScheduled = false;
+        }
+        mListener.onTalkStatesUpdated(users);
+        users.clear();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.view;
+
+/**
+ * A row of a {@link PlumbleNestedAdapter}'s flattened hierarchy.
+ */
+class NestPositionMetadata {
+    NestMetadataType type;
+    NestPositionMetadata parent;
+    int id;
+    int childPosition;
+    int depth;
+    /** Whether this group's contents were shown when the visible metadata was last built. */
+    boolean expanded;
+    /** Whether this row is present in the visible metadata. */
+    boolean visible;
+    /** Index of this row in the flat metadata. */
+    int flatPosition;
+    /** Index of this row in the visible metadata, only valid if visible. */
+    int visiblePosition;
+}
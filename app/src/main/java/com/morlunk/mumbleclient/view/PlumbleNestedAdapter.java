@@ -19,6 +19,7 @@ package com.morlunk.mumbleclient.view;
 
 import android.content.Context;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.View;
 import android.view.ViewGroup;
@@ -38,19 +39,6 @@ import java.util.List;
  */
 public abstract class PlumbleNestedAdapter<G, C> extends BaseAdapter implements ListAdapter {
 	
-	protected enum NestMetadataType {
-		META_TYPE_GROUP,
-		META_TYPE_ITEM
-	}
-	
-	protected class NestPositionMetadata {
-		NestMetadataType type;
-        NestPositionMetadata parent;
-        int id;
-		int childPosition;
-		int depth;
-	}
-	
 	private Context mContext;
 
 	/**
@@ -59,6 +47,19 @@ public abstract class PlumbleNestedAdapter<G, C> extends BaseAdapter implements
 	protected List<NestPositionMetadata> mFlatMeta = new ArrayList<NestPositionMetadata>();
 	protected List<NestPositionMetadata> mVisibleMeta = new ArrayList<NestPositionMetadata>();
     protected SparseBooleanArray mExpandedGroups = new SparseBooleanArray();
+
+    /**
+     * ID to metadata indexes, used to look up flat and visible positions in constant time.
+     */
+    private SparseArray<NestPositionMetadata> mGroupIndex = new SparseArray<NestPositionMetadata>();
+    private SparseArray<NestPositionMetadata> mChildIndex = new SparseArray<NestPositionMetadata>();
+
+    private VisibleMetadataBuilder.ExpansionState mExpansionState = new VisibleMetadataBuilder.ExpansionState() {
+        @Override
+        public boolean isGroupExpanded(int groupId) {
+            return PlumbleNestedAdapter.this.isGroupExpanded(groupId);
+        }
+    };
 	
 	public abstract View getGroupView(int groupId, int depth, View convertView, ViewGroup parent);
 	public abstract View getChildView(int groupId, int childPosition, int depth, View convertView, ViewGroup parent);
@@ -89,6 +90,11 @@ public abstract class PlumbleNestedAdapter<G, C> extends BaseAdapter implements
             populateHierarchy(root, metadata);
         }
         mFlatMeta = metadata;
+
+        mGroupIndex.clear();
+        mChildIndex.clear();
+        addToIndex(mFlatMeta);
+        updateFlatPositions(0);
     }
 
     /**
@@ -101,58 +107,45 @@ public abstract class PlumbleNestedAdapter<G, C> extends BaseAdapter implements
 
         int childCount = getChildCount(parent.id);
         for(int x=0;x<childCount;x++) {
-            NestPositionMetadata childMeta = new NestPositionMetadata();
-            childMeta.parent = parent;
-            childMeta.id = getChildId(parent.id, x);
-            childMeta.type = NestMetadataType.META_TYPE_ITEM;
-            childMeta.childPosition = x;
-            childMeta.depth = parent.depth+1;
-            metaList.add(childMeta);
+            metaList.add(createChildMetadata(parent, x));
         }
 
         int subgroups = getGroupCount(parent.id);
         for(int x=0;x<subgroups;x++) {
-            NestPositionMetadata subMeta = new NestPositionMetadata();
-            subMeta.parent = parent;
-            subMeta.id = getGroupId(parent.id, x);
-            subMeta.type = NestMetadataType.META_TYPE_GROUP;
-            subMeta.depth = 1+parent.depth;
-            populateHierarchy(subMeta, metaList);
+            populateHierarchy(createGroupMetadata(parent, x), metaList);
         }
     }
 
+    private NestPositionMetadata createChildMetadata(NestPositionMetadata parent, int childPosition) {
+        NestPositionMetadata childMeta = new NestPositionMetadata();
+        childMeta.parent = parent;
+        childMeta.id = getChildId(parent.id, childPosition);
+        childMeta.type = NestMetadataType.META_TYPE_ITEM;
+        childMeta.childPosition = childPosition;
+        childMeta.depth = parent.depth+1;
+        return childMeta;
+    }
+
+    private NestPositionMetadata createGroupMetadata(NestPositionMetadata parent, int groupPosition) {
+        NestPositionMetadata subMeta = new NestPositionMetadata();
+        subMeta.parent = parent;
+        subMeta.id = getGroupId(parent.id, groupPosition);
+        subMeta.type = NestMetadataType.META_TYPE_GROUP;
+        subMeta.depth = 1+parent.depth;
+        return subMeta;
+    }
+
 	/**
+	 * Builds the visible metadata in a single pass over the flat metadata.
+	 * @see VisibleMetadataBuilder#build
 	 * TODO move this over to PlumbleNestedListView
 	 */
 	protected final void buildVisibleMetadata() {
 		long startTime = System.currentTimeMillis();
-		mVisibleMeta.clear();
-		for(int x=0;x< mFlatMeta.size();x++) {
-            NestPositionMetadata metadata = mFlatMeta.get(x);
-			if(metadata.type == NestMetadataType.META_TYPE_GROUP) {
-				if(isParentExpanded(metadata))
-						mVisibleMeta.add(metadata);
-			} else if(metadata.type == NestMetadataType.META_TYPE_ITEM) {
-				if(mVisibleMeta.contains(metadata.parent) &&
-                        mExpandedGroups.get(metadata.parent.id, isGroupExpandedByDefault(metadata.parent.id))) // Don't insert a child group with no parent.
-					mVisibleMeta.add(metadata);
-			}
-		}
+		VisibleMetadataBuilder.build(mFlatMeta, mVisibleMeta, mExpansionState);
 		Log.d(Constants.TAG, "OPT: built visible metadata, took "+(System.currentTimeMillis()-startTime)+"ms");
 	}
 	
-	/**
-	 * Iterates up the group hierarchy and returns whether or not any of the group's parents are not expanded.
-	 */
-	private boolean isParentExpanded(NestPositionMetadata metadata) {
-		if(metadata.parent == null)
-			return true; // Return true for top of tree.
-		if(!mExpandedGroups.get(metadata.parent.id, isGroupExpandedByDefault(metadata.parent.id)))
-			return false;
-		else
-			return isParentExpanded(metadata.parent);
-	}
-	
 	protected void collapseGroup(int groupId) {
         mExpandedGroups.put(groupId, false);
 	}
@@ -166,45 +159,228 @@ public abstract class PlumbleNestedAdapter<G, C> extends BaseAdapter implements
 	}
 
 	public int getFlatChildPosition(int childId) {
-		for(int x=0;x< mFlatMeta.size();x++) {
-			NestPositionMetadata metadata = mFlatMeta.get(x);
-			if(metadata.type == NestMetadataType.META_TYPE_ITEM &&
-					metadata.id == childId)
-				return x;
-		}
-		return -1;
+		NestPositionMetadata metadata = mChildIndex.get(childId);
+		return metadata != null ? metadata.flatPosition : -1;
 	}
 	
 	public int getVisibleFlatChildPosition(int childId) {
-		for(int x=0;x< mVisibleMeta.size();x++) {
-			NestPositionMetadata metadata = mVisibleMeta.get(x);
-			if(metadata.type == NestMetadataType.META_TYPE_ITEM &&
-					metadata.id == childId)
-				return x;
-		}
-		return -1;
+		NestPositionMetadata metadata = mChildIndex.get(childId);
+		return metadata != null && metadata.visible ? metadata.visiblePosition : -1;
 	}
 
 	public int getFlatGroupPosition(int groupId) {
-		for(int x=0;x< mFlatMeta.size();x++) {
-			NestPositionMetadata metadata = mFlatMeta.get(x);
-			if(metadata.type == NestMetadataType.META_TYPE_GROUP &&
-					metadata.id == groupId)
-				return x;
-		}
-		return -1;
+		NestPositionMetadata metadata = mGroupIndex.get(groupId);
+		return metadata != null ? metadata.flatPosition : -1;
 	}
 	
 	public int getVisibleFlatGroupPosition(int groupId) {
-		for(int x=0;x< mVisibleMeta.size();x++) {
-			NestPositionMetadata metadata = mVisibleMeta.get(x);
-			if(metadata.type == NestMetadataType.META_TYPE_GROUP &&
-					metadata.id == groupId)
-				return x;
-		}
-		return -1;
+		NestPositionMetadata metadata = mGroupIndex.get(groupId);
+		return metadata != null && metadata.visible ? metadata.visiblePosition : -1;
 	}
 	
+    /**
+     * Returns the ID of the group containing the passed group, or -1 if it is a root or not present.
+     */
+    public int getParentGroupId(int groupId) {
+        NestPositionMetadata metadata = mGroupIndex.get(groupId);
+        if(metadata == null || metadata.parent == null)
+            return -1;
+        return metadata.parent.id;
+    }
+
+    /**
+     * Inserts the child at the given position of the group into the existing hierarchy without rebuilding it.
+     * The implementation's data must already reflect the insertion.
+     */
+    protected void notifyChildInserted(int groupId, int childPosition) {
+        if(insertChildMetadata(groupId, childPosition))
+            super.notifyDataSetChanged();
+    }
+
+    /**
+     * Removes the child from the existing hierarchy without rebuilding it.
+     * The implementation's data must already reflect the removal.
+     */
+    protected void notifyChildRemoved(int childId) {
+        if(removeChildMetadata(childId))
+            super.notifyDataSetChanged();
+    }
+
+    /**
+     * Moves the child to the given position of a (possibly different) group, notifying observers once.
+     * The implementation's data must already reflect the move.
+     */
+    protected void notifyChildMoved(int childId, int groupId, int childPosition) {
+        boolean removed = removeChildMetadata(childId);
+        boolean inserted = insertChildMetadata(groupId, childPosition);
+        if(removed || inserted)
+            super.notifyDataSetChanged();
+    }
+
+    /**
+     * Inserts the group (and its contents) at the given position of its parent into the existing hierarchy.
+     * Only the new subtree is queried from the implementation.
+     */
+    protected void notifyGroupInserted(int parentId, int groupPosition) {
+        int parentIndex = getFlatGroupPosition(parentId);
+        if(parentIndex < 0)
+            return;
+        NestPositionMetadata parent = mFlatMeta.get(parentIndex);
+
+        List<NestPositionMetadata> subtree = new ArrayList<NestPositionMetadata>();
+        populateHierarchy(createGroupMetadata(parent, groupPosition), subtree);
+
+        // Skip over the parent's children and the subtrees of preceding sibling groups.
+        int index = parentIndex + 1;
+        int siblings = 0;
+        while(index < mFlatMeta.size() && mFlatMeta.get(index).depth > parent.depth) {
+            NestPositionMetadata metadata = mFlatMeta.get(index);
+            if(metadata.parent == parent && metadata.type == NestMetadataType.META_TYPE_GROUP) {
+                if(siblings == groupPosition)
+                    break;
+                siblings++;
+            }
+            index++;
+        }
+        mFlatMeta.addAll(index, subtree);
+        addToIndex(subtree);
+        updateFlatPositions(index);
+        notifyVisibleSetChanged();
+    }
+
+    /**
+     * Removes the group and everything nested within it from the existing hierarchy.
+     */
+    protected void notifyGroupRemoved(int groupId) {
+        int start = getFlatGroupPosition(groupId);
+        if(start < 0)
+            return;
+        int depth = mFlatMeta.get(start).depth;
+        int end = start + 1;
+        while(end < mFlatMeta.size() && mFlatMeta.get(end).depth > depth)
+            end++;
+        List<NestPositionMetadata> subtree = mFlatMeta.subList(start, end);
+        removeFromIndex(subtree);
+        subtree.clear();
+        updateFlatPositions(start);
+        notifyVisibleSetChanged();
+    }
+
+    /**
+     * Rebinds the visible rows without touching the hierarchy, i.e. when a group or child was renamed.
+     */
+    protected void notifyContentChanged() {
+        super.notifyDataSetChanged();
+    }
+
+    private boolean insertChildMetadata(int groupId, int childPosition) {
+        int groupIndex = getFlatGroupPosition(groupId);
+        if(groupIndex < 0)
+            return false;
+        NestPositionMetadata group = mFlatMeta.get(groupIndex);
+        NestPositionMetadata child = createChildMetadata(group, childPosition);
+        int index = groupIndex + 1 + childPosition;
+        mFlatMeta.add(index, child);
+        mChildIndex.put(child.id, child);
+        shiftChildPositions(index + 1, group, 1);
+        updateFlatPositions(index);
+
+        if(hasExpansionChanged(group)) {
+            buildVisibleMetadata();
+        } else if(isContentVisible(group)) {
+            int visibleIndex = group.visiblePosition + 1 + childPosition;
+            mVisibleMeta.add(visibleIndex, child);
+            child.visible = true;
+            updateVisiblePositions(visibleIndex);
+        }
+        return true;
+    }
+
+    private boolean removeChildMetadata(int childId) {
+        int index = getFlatChildPosition(childId);
+        if(index < 0)
+            return false;
+        NestPositionMetadata child = mFlatMeta.remove(index);
+        mChildIndex.remove(childId);
+        shiftChildPositions(index, child.parent, -1);
+        updateFlatPositions(index);
+
+        if(hasExpansionChanged(child.parent)) {
+            buildVisibleMetadata();
+        } else if(child.visible) {
+            mVisibleMeta.remove(child.visiblePosition);
+            updateVisiblePositions(child.visiblePosition);
+        }
+        child.visible = false;
+        return true;
+    }
+
+    private void addToIndex(List<NestPositionMetadata> metadataList) {
+        for(NestPositionMetadata metadata : metadataList) {
+            if(metadata.type == NestMetadataType.META_TYPE_GROUP)
+                mGroupIndex.put(metadata.id, metadata);
+            else
+                mChildIndex.put(metadata.id, metadata);
+        }
+    }
+
+    private void removeFromIndex(List<NestPositionMetadata> metadataList) {
+        for(NestPositionMetadata metadata : metadataList) {
+            if(metadata.type == NestMetadataType.META_TYPE_GROUP)
+                mGroupIndex.remove(metadata.id);
+            else
+                mChildIndex.remove(metadata.id);
+        }
+    }
+
+    /**
+     * Renumbers the stored flat positions after an insertion or removal at the given index.
+     */
+    private void updateFlatPositions(int start) {
+        for(int x=start;x<mFlatMeta.size();x++)
+            mFlatMeta.get(x).flatPosition = x;
+    }
+
+    /**
+     * Renumbers the stored visible positions after an insertion or removal at the given index.
+     */
+    private void updateVisiblePositions(int start) {
+        for(int x=start;x<mVisibleMeta.size();x++)
+            mVisibleMeta.get(x).visiblePosition = x;
+    }
+
+    /**
+     * Offsets the child positions of the group's children starting at the given flat index.
+     * Children are always stored contiguously after their group, so this stops at the first non-sibling.
+     */
+    private void shiftChildPositions(int start, NestPositionMetadata group, int offset) {
+        for(int x=start;x<mFlatMeta.size();x++) {
+            NestPositionMetadata metadata = mFlatMeta.get(x);
+            if(metadata.parent != group || metadata.type != NestMetadataType.META_TYPE_ITEM)
+                break;
+            metadata.childPosition += offset;
+        }
+    }
+
+    /**
+     * Returns whether the contents of the group were shown when the visible metadata was last built.
+     */
+    private boolean isContentVisible(NestPositionMetadata group) {
+        return group.visible && group.expanded;
+    }
+
+    /**
+     * Returns whether the group or any of its parents have changed expansion state since the visible metadata was built.
+     * This happens when a default expansion state depends on the data, such as a channel's user count.
+     */
+    private boolean hasExpansionChanged(NestPositionMetadata group) {
+        for(NestPositionMetadata metadata = group; metadata != null; metadata = metadata.parent) {
+            if(metadata.expanded != isGroupExpanded(metadata.id))
+                return true;
+        }
+        return false;
+    }
+
 	@Override
 	public void notifyDataSetChanged() {
 		long startTime = System.currentTimeMillis();
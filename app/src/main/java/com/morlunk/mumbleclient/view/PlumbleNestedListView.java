@@ -25,9 +25,6 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 
-import com.morlunk.mumbleclient.view.PlumbleNestedAdapter.NestMetadataType;
-import com.morlunk.mumbleclient.view.PlumbleNestedAdapter.NestPositionMetadata;
-
 public class PlumbleNestedListView extends ListView implements OnItemClickListener {
 
 	public interface OnNestedChildClickListener {
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.view;
+
+import java.util.List;
+
+/**
+ * Builds the visible rows of a nested adapter from its flat metadata.
+ * Kept free of Android dependencies so that it can be tested and benchmarked on a plain JVM.
+ */
+class VisibleMetadataBuilder {
+
+    interface ExpansionState {
+        public boolean isGroupExpanded(int groupId);
+    }
+
+    private VisibleMetadataBuilder() {
+    }
+
+    /**
+     * Builds the visible metadata in a single pre-order pass over the flat metadata.
+     * Once a hidden or collapsed group is found, everything deeper than it is skipped until the walk returns to its depth.
+     * Updates the expanded, visible and visiblePosition fields of each row.
+     * @param flatMeta The flattened hierarchy, in pre-order.
+     * @param visibleMeta The list to fill with the visible rows. Cleared first.
+     */
+    static void build(List<NestPositionMetadata> flatMeta, List<NestPositionMetadata> visibleMeta, ExpansionState expansion) {
+        visibleMeta.clear();
+        int collapsedDepth = Integer.MAX_VALUE; // Depth of the collapsed ancestor hiding the current node, if any.
+        for(int x=0;x<flatMeta.size();x++) {
+            NestPositionMetadata metadata = flatMeta.get(x);
+            if(metadata.depth <= collapsedDepth)
+                collapsedDepth = Integer.MAX_VALUE; // Left the collapsed group's subtree.
+
+            metadata.visible = collapsedDepth == Integer.MAX_VALUE;
+            if(metadata.type == NestMetadataType.META_TYPE_GROUP) {
+                metadata.expanded = expansion.isGroupExpanded(metadata.id);
+                if(metadata.visible && !metadata.expanded)
+                    collapsedDepth = metadata.depth;
+            }
+            if(metadata.visible) {
+                metadata.visiblePosition = visibleMeta.size();
+                visibleMeta.add(metadata);
+            }
+        }
+    }
+}
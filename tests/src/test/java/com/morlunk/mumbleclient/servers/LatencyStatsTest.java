@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyStatsTest {
+
+    private static final float EPSILON = 0.0001f;
+
+    @Test
+    public void testOddSampleCount() {
+        LatencyStats stats = new LatencyStats(new int[] { 40, 50, 42, 44, 41 }, 5, 5);
+        assertEquals(40, stats.getMin());
+        assertEquals(42, stats.getMedian());
+        assertEquals(50, stats.getPercentile95());
+        // |50-40| + |42-50| + |44-42| + |41-44| = 23 over 4 differences
+        assertEquals(5.75f, stats.getJitter(), EPSILON);
+        assertEquals(0, stats.getLoss(), EPSILON);
+        assertFalse(stats.isUnreachable());
+    }
+
+    @Test
+    public void testEvenSampleCountAveragesMedian() {
+        LatencyStats stats = new LatencyStats(new int[] { 10, 20, 30, 40 }, 4, 4);
+        assertEquals(25, stats.getMedian());
+        assertEquals(10, stats.getJitter(), EPSILON);
+    }
+
+    @Test
+    public void testPercentile95() {
+        int[] samples = new int[20];
+        for(int i = 0; i < samples.length; i++)
+            samples[i] = samples.length - i; // Unsorted on purpose
+        LatencyStats stats = new LatencyStats(samples, 20, 20);
+        assertEquals(19, stats.getPercentile95());
+        assertEquals(1, stats.getMin());
+    }
+
+    @Test
+    public void testOnlyReceivedSamplesAreUsed() {
+        // Trailing slots of the sample array are unused when pings are lost.
+        LatencyStats stats = new LatencyStats(new int[] { 30, 32, 0, 0 }, 2, 4);
+        assertEquals(30, stats.getMin());
+        assertEquals(31, stats.getMedian());
+        assertEquals(2, stats.getJitter(), EPSILON);
+        assertEquals(0.5f, stats.getLoss(), EPSILON);
+    }
+
+    @Test
+    public void testSingleSampleHasNoJitter() {
+        LatencyStats stats = new LatencyStats(new int[] { 80 }, 1, 1);
+        assertEquals(80, stats.getMedian());
+        assertEquals(80, stats.getPercentile95());
+        assertEquals(0, stats.getJitter(), EPSILON);
+    }
+
+    @Test
+    public void testUnreachable() {
+        LatencyStats stats = new LatencyStats(new int[5], 0, 5);
+        assertTrue(stats.isUnreachable());
+        assertEquals(1, stats.getLoss(), EPSILON);
+        assertEquals(0, stats.getMedian());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import com.morlunk.mumbleclient.db.PublicServer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublicServerIndexTest {
+
+    private PublicServer mBerlin;
+    private PublicServer mMunich;
+    private PublicServer mQuebec;
+    private PublicServer mOslo;
+    private PublicServerIndex mIndex;
+
+    private static PublicServer createServer(String name, String country, String countryCode, String host, String region) {
+        return new PublicServer(name, "0", "", country, countryCode, host, 64738, region, "");
+    }
+
+    @Before
+    public void setUp() {
+        mBerlin = createServer("Berlin Gaming", "Germany", "DE", "berlin.example", "Berlin");
+        mMunich = createServer("Bier & Voice", "Germany", "DE", "munich.example", "Bayern");
+        mQuebec = createServer("Caf\u00e9 Qu\u00e9bec", "Canada", "CA", "cafe.example", "Qu\u00e9bec");
+        mOslo = createServer("Nordic Voice", "Norway", "NO", "oslo.example", "Oslo");
+        mIndex = new PublicServerIndex();
+        mIndex.add(Arrays.asList(mBerlin, mMunich));
+        mIndex.add(Arrays.asList(mQuebec, mOslo));
+    }
+
+    @Test
+    public void testEmptyQueryMatchesAllInOrder() {
+        assertEquals(4, mIndex.size());
+        assertEquals(Arrays.asList(mBerlin, mMunich, mQuebec, mOslo), mIndex.search("", ""));
+        assertEquals(Arrays.asList(mBerlin, mMunich, mQuebec, mOslo), mIndex.search(null, null));
+    }
+
+    @Test
+    public void testPrefixMatchesAnyField() {
+        assertEquals(Arrays.asList(mBerlin), mIndex.search("berl", ""));
+        assertEquals(Arrays.asList(mMunich, mOslo), mIndex.search("VOI", ""));
+        assertEquals(Arrays.asList(mMunich), mIndex.search("munich", ""));
+        assertEquals(Arrays.asList(mOslo), mIndex.search("os", ""));
+    }
+
+    @Test
+    public void testAllTermsMustMatch() {
+        assertEquals(Arrays.asList(mOslo), mIndex.search("voice nordic", ""));
+        assertTrue(mIndex.search("voice berlin", "").isEmpty());
+    }
+
+    @Test
+    public void testAccentsAreIgnored() {
+        assertEquals(Arrays.asList(mQuebec), mIndex.search("quebec", ""));
+        assertEquals(Arrays.asList(mQuebec), mIndex.search("Caf\u00e9", ""));
+    }
+
+    @Test
+    public void testCountryQueryMatchesNameOrCode() {
+        assertEquals(Arrays.asList(mBerlin, mMunich), mIndex.search("", "germ"));
+        assertEquals(Arrays.asList(mBerlin, mMunich), mIndex.search("", "de"));
+        assertEquals(Arrays.asList(mMunich), mIndex.search("bier", "de"));
+        // The country query doesn't look at other fields.
+        assertTrue(mIndex.search("", "oslo").isEmpty());
+    }
+
+    @Test
+    public void testNoMatch() {
+        assertTrue(mIndex.search("zzz", "").isEmpty());
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("bier", "voice"), PublicServerIndex.tokenize("Bier & Voice"));
+        assertEquals(Arrays.asList("voice", "berlin", "example"), PublicServerIndex.tokenize("voice.berlin.example"));
+        assertEquals(Arrays.asList("cafe", "quebec"), PublicServerIndex.tokenize("  Caf\u00e9 -- Qu\u00e9bec "));
+        assertEquals(new ArrayList<String>(), PublicServerIndex.tokenize(null));
+    }
+}
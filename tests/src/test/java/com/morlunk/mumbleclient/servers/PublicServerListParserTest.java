@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import com.morlunk.mumbleclient.db.PublicServer;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses a local fixture of the public server list with kXML, the pull parser Android ships.
+ */
+public class PublicServerListParserTest {
+
+    private static final int FIXTURE_SERVERS = 7;
+
+    private static class RecordingListener implements PublicServerListParser.OnServersParsedListener {
+        private final List<Integer> mBatchSizes = new ArrayList<Integer>();
+        private final List<PublicServer> mServers = new ArrayList<PublicServer>();
+
+        @Override
+        public void onServersParsed(List<PublicServer> servers) {
+            mBatchSizes.add(servers.size());
+            mServers.addAll(servers);
+        }
+    }
+
+    private int parse(PublicServerListParser parser, InputStream stream, RecordingListener listener) throws Exception {
+        try {
+            return parser.parse(new KXmlParser(), stream, listener);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private InputStream openFixture() {
+        return getClass().getResourceAsStream("/public_servers.xml");
+    }
+
+    @Test
+    public void testParsesAllAttributes() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        int count = parse(new PublicServerListParser(), openFixture(), listener);
+        assertEquals(FIXTURE_SERVERS, count);
+        assertEquals(FIXTURE_SERVERS, listener.mServers.size());
+
+        PublicServer first = listener.mServers.get(0);
+        assertEquals("Gamers & Friends", first.getName());
+        assertEquals("1", first.getCA());
+        assertEquals("EU", first.getContinentCode());
+        assertEquals("Germany", first.getCountry());
+        assertEquals("DE", first.getCountryCode());
+        assertEquals("mumble.example.de", first.getHost());
+        assertEquals(64738, first.getPort());
+        assertEquals("Bavaria", first.getRegion());
+        assertEquals("http://example.de/", first.getUrl());
+        assertEquals(-1, first.getId());
+
+        assertEquals("T\u014dky\u014d", listener.mServers.get(1).getRegion());
+        assertEquals("Caf\u00e9 Qu\u00e9bec", listener.mServers.get(4).getName());
+        assertEquals(50000, listener.mServers.get(4).getPort());
+        assertEquals("Pampas", listener.mServers.get(FIXTURE_SERVERS - 1).getName());
+    }
+
+    @Test
+    public void testDeliversInBatches() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        parse(new PublicServerListParser(3), openFixture(), listener);
+        assertEquals(3, listener.mBatchSizes.size());
+        assertEquals(3, (int) listener.mBatchSizes.get(0));
+        assertEquals(3, (int) listener.mBatchSizes.get(1));
+        assertEquals(1, (int) listener.mBatchSizes.get(2));
+    }
+
+    @Test
+    public void testExactMultipleOfBatchSizeHasNoEmptyBatch() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        parse(new PublicServerListParser(FIXTURE_SERVERS), openFixture(), listener);
+        assertEquals(1, listener.mBatchSizes.size());
+        assertEquals(FIXTURE_SERVERS, (int) listener.mBatchSizes.get(0));
+    }
+
+    @Test
+    public void testEmptyList() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        InputStream stream = new ByteArrayInputStream("<servers></servers>".getBytes("UTF-8"));
+        assertEquals(0, parse(new PublicServerListParser(), stream, listener));
+        assertTrue(listener.mBatchSizes.isEmpty());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks response parsing, and that parsing into a reused response allocates nothing.
+ * Allocation counting needs HotSpot's per-thread counters, so those tests are skipped elsewhere.
+ * {@link ServerPingerTest} does the same for the whole ping path.
+ */
+public class ServerInfoResponseTest {
+
+    private static final int ITERATIONS = 100000;
+    /** Allowance for the counter itself, over all iterations. */
+    private static final int MEASUREMENT_SLACK = 1024;
+
+    private ByteBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        // The pinger's reused receive buffer.
+        mBuffer = ByteBuffer.allocateDirect(24);
+        mBuffer.putInt(0, (1 << 16) | (2 << 8) | 4); // 1.2.4
+        mBuffer.putLong(4, 0x1122334455667788L);
+        mBuffer.putInt(12, 12);
+        mBuffer.putInt(16, 100);
+        mBuffer.putInt(20, 72000);
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationCounter() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+
+    @Test
+    public void testParsesFromBuffer() {
+        ServerInfoResponse response = new ServerInfoResponse(null, mBuffer, 42);
+        assertEquals("1.2.4", response.getVersionString());
+        assertEquals(0x1122334455667788L, response.getIdentifier());
+        assertEquals(12, response.getCurrentUsers());
+        assertEquals(100, response.getMaximumUsers());
+        assertEquals(72000, response.getAllowedBandwidth());
+        assertEquals(42, response.getLatency());
+        assertEquals(0, mBuffer.position());
+    }
+
+    @Test
+    public void testParsesFromArray() {
+        byte[] bytes = new byte[24];
+        mBuffer.duplicate().get(bytes);
+        ServerInfoResponse response = new ServerInfoResponse(null, bytes, 42);
+        assertEquals(0x1122334455667788L, response.getIdentifier());
+        assertEquals(72000, response.getAllowedBandwidth());
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        ServerInfoResponse reused = new ServerInfoResponse(null, mBuffer, 42);
+        ServerInfoResponse copy = new ServerInfoResponse(reused);
+        reused.set(null, ByteBuffer.allocate(24), 7);
+        assertEquals(0x1122334455667788L, copy.getIdentifier());
+        assertEquals(42, copy.getLatency());
+        assertFalse(copy.isDummy());
+        assertTrue(new ServerInfoResponse(new ServerInfoResponse()).isDummy());
+    }
+
+    @Test
+    public void testVersionStringIsCached() {
+        ServerInfoResponse first = new ServerInfoResponse(null, mBuffer, 0);
+        ServerInfoResponse second = new ServerInfoResponse(null, mBuffer, 0);
+        assertSame(first.getVersionString(), second.getVersionString());
+    }
+
+    @Test
+    public void testVersionStringDoesNotAllocate() {
+        com.sun.management.ThreadMXBean counter = getAllocationCounter();
+        long thread = Thread.currentThread().getId();
+        ServerInfoResponse response = new ServerInfoResponse(null, mBuffer, 0);
+        for(int i = 0; i < ITERATIONS; i++) // Warm up
+            response.getVersionString();
+
+        long before = counter.getThreadAllocatedBytes(thread);
+        for(int i = 0; i < ITERATIONS; i++)
+            response.getVersionString();
+        long allocated = counter.getThreadAllocatedBytes(thread) - before;
+        assertTrue("getVersionString allocated " + allocated + " bytes", allocated < MEASUREMENT_SLACK);
+    }
+
+    @Test
+    public void testReusedResponseDoesNotAllocate() {
+        com.sun.management.ThreadMXBean counter = getAllocationCounter();
+        long thread = Thread.currentThread().getId();
+        ServerInfoResponse response = new ServerInfoResponse();
+        for(int i = 0; i < ITERATIONS; i++) { // Warm up
+            response.set(null, mBuffer, i);
+            response.getVersionString();
+        }
+
+        long before = counter.getThreadAllocatedBytes(thread);
+        for(int i = 0; i < ITERATIONS; i++) {
+            response.set(null, mBuffer, i);
+            response.getVersionString();
+        }
+        long allocated = counter.getThreadAllocatedBytes(thread) - before;
+        assertTrue("Parsing allocated " + allocated + " bytes", allocated < MEASUREMENT_SLACK);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.servers;
+
+import com.morlunk.jumble.model.Server;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pings a local responder through the real send, receive and dispatch loop, and checks that
+ * pings to a known server allocate nothing in steady state. Results are dispatched directly on
+ * the pinger thread, standing in for the main thread's pooled messages.
+ * Allocation counting needs HotSpot's per-thread counters, so that test is skipped elsewhere.
+ */
+public class ServerPingerTest {
+
+    private static final int WARMUP_PINGS = 20000;
+    private static final int PINGS = 20000;
+    /** Allowance for the counter itself, over all pings. */
+    private static final int MEASUREMENT_SLACK = 1024;
+
+    private DatagramChannel mResponderChannel;
+    private Thread mResponder;
+    private Server mServer;
+    private ServerPinger mPinger;
+
+    private volatile int mCompleted;
+    private volatile int mFailed;
+    private volatile Thread mPingerThread;
+
+    private final ServerPinger.OnServerPingListener mListener = new ServerPinger.OnServerPingListener() {
+        @Override
+        public void onServerPinged(Server server, ServerInfoResponse response) {
+            // Failures are counted rather than asserted, since this runs on the pinger thread.
+            if(server != mServer || response.isDummy() || response.getCurrentUsers() != 12) mFailed++;
+            mCompleted++;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mResponderChannel = DatagramChannel.open();
+        mResponderChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mResponder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                respond();
+            }
+        }, "ServerPingerTest responder");
+        mResponder.start();
+
+        mServer = new Server(1, "Local", "127.0.0.1", mResponderChannel.socket().getLocalPort(), "", "");
+        mPinger = new ServerPinger(new ServerPinger.Dispatcher() {
+            @Override
+            public void dispatch(int slot, Server server) {
+                mPingerThread = Thread.currentThread();
+                mPinger.deliver(slot, server);
+            }
+        });
+        mPinger.addListener(mListener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPinger.shutdown();
+        mResponderChannel.close();
+        mResponder.join();
+    }
+
+    /**
+     * Answers each request as a Mumble server would, echoing its identifier.
+     */
+    private void respond() {
+        ByteBuffer request = ByteBuffer.allocateDirect(12);
+        ByteBuffer response = ByteBuffer.allocateDirect(24);
+        response.putInt(0, (1 << 16) | (2 << 8) | 4);
+        response.putInt(12, 12);
+        response.putInt(16, 100);
+        response.putInt(20, 72000);
+        try {
+            while(true) {
+                request.clear();
+                SocketAddress sender = mResponderChannel.receive(request);
+                response.putLong(4, request.getLong(4));
+                response.clear();
+                mResponderChannel.send(response, sender);
+            }
+        } catch (IOException e) {
+            // Closed by tearDown.
+        }
+    }
+
+    /**
+     * Sends the given number of pings one at a time, waiting for each result.
+     */
+    private void pingSequentially(int count) {
+        for(int i = 0; i < count; i++) {
+            int completed = mCompleted;
+            mPinger.ping(mServer);
+            while(mCompleted == completed)
+                Thread.yield();
+        }
+    }
+
+    @Test
+    public void testPingsAreAnswered() {
+        pingSequentially(100);
+        assertEquals(100, mCompleted);
+        assertEquals(0, mFailed);
+    }
+
+    @Test
+    public void testBurstLargerThanSlotTable() {
+        for(int i = 0; i < ServerPinger.MAX_IN_FLIGHT * 4; i++)
+            mPinger.ping(mServer);
+        while(mCompleted < ServerPinger.MAX_IN_FLIGHT * 4)
+            Thread.yield();
+        assertEquals(0, mFailed);
+    }
+
+    @Test
+    public void testPingDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+
+        pingSequentially(WARMUP_PINGS); // Resolves the address, fills the pools and warms up the JIT
+        long caller = Thread.currentThread().getId();
+        long pinger = mPingerThread.getId();
+
+        // Reading another thread's counter allocates on this one, so the caller is read innermost.
+        long pingerBefore = counter.getThreadAllocatedBytes(pinger);
+        long callerBefore = counter.getThreadAllocatedBytes(caller);
+        pingSequentially(PINGS);
+        long callerAllocated = counter.getThreadAllocatedBytes(caller) - callerBefore;
+        long pingerAllocated = counter.getThreadAllocatedBytes(pinger) - pingerBefore;
+
+        assertEquals(0, mFailed);
+        assertTrue("ping allocated " + callerAllocated + " bytes", callerAllocated < MEASUREMENT_SLACK);
+        assertTrue("Receiving and dispatching allocated " + pingerAllocated + " bytes",
+                pingerAllocated < MEASUREMENT_SLACK);
+    }
+}
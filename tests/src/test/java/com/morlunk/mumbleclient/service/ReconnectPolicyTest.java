@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives ReconnectPolicy with a fake clock and network monitor.
+ */
+public class ReconnectPolicyTest {
+
+    private static class FakeClock implements ReconnectPolicy.Clock {
+        private long mNow;
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+        private final List<Long> mDueTimes = new ArrayList<Long>();
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            mTasks.add(task);
+            mDueTimes.add(mNow + delay);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            int index;
+            while((index = mTasks.indexOf(task)) >= 0) {
+                mTasks.remove(index);
+                mDueTimes.remove(index);
+            }
+        }
+
+        public int getPendingCount() {
+            return mTasks.size();
+        }
+
+        /**
+         * Moves time forward, running any tasks that come due.
+         */
+        public void advance(long millis) {
+            mNow += millis;
+            List<Runnable> due = new ArrayList<Runnable>();
+            Iterator<Long> times = mDueTimes.iterator();
+            Iterator<Runnable> tasks = mTasks.iterator();
+            while(times.hasNext()) {
+                Runnable task = tasks.next();
+                if(times.next() <= mNow) {
+                    due.add(task);
+                    times.remove();
+                    tasks.remove();
+                }
+            }
+            for(Runnable task : due) task.run();
+        }
+    }
+
+    private static class FakeNetworkMonitor implements ReconnectPolicy.NetworkMonitor {
+        private boolean mAvailable = true;
+        private Listener mListener;
+
+        @Override
+        public boolean isNetworkAvailable() {
+            return mAvailable;
+        }
+
+        @Override
+        public void start(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void stop() {
+            mListener = null;
+        }
+
+        public boolean isStarted() {
+            return mListener != null;
+        }
+
+        public void setAvailable(boolean available) {
+            mAvailable = available;
+            if(mListener != null) mListener.onNetworkChanged(available);
+        }
+    }
+
+    /**
+     * Returns the same value from nextDouble(), to pin the jitter.
+     */
+    private static class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        private double mValue;
+
+        public FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    private static class RecordingCallback implements ReconnectPolicy.Callback {
+        private final List<Integer> mAttempts = new ArrayList<Integer>();
+        private final List<Long> mDelays = new ArrayList<Long>();
+        private int mAbandonedAttempts = -1;
+
+        @Override
+        public void onReconnect(int attempt) {
+            mAttempts.add(attempt);
+        }
+
+        @Override
+        public void onReconnectScheduled(int attempt, long delay) {
+            mDelays.add(delay);
+        }
+
+        @Override
+        public void onReconnectAbandoned(int attempts) {
+            mAbandonedAttempts = attempts;
+        }
+
+        public long getLastDelay() {
+            return mDelays.get(mDelays.size() - 1);
+        }
+    }
+
+    private FakeClock mClock;
+    private FakeNetworkMonitor mNetwork;
+    private RecordingCallback mCallback;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mNetwork = new FakeNetworkMonitor();
+        mCallback = new RecordingCallback();
+    }
+
+    private ReconnectPolicy createPolicy(Random random) {
+        return new ReconnectPolicy(mClock, mNetwork, random, mCallback);
+    }
+
+    @Test
+    public void testDelayIsHalfTheCapWithNoJitter() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        assertEquals(ReconnectPolicy.BASE_DELAY / 2, policy.getDelay(0));
+        assertEquals(ReconnectPolicy.BASE_DELAY, policy.getDelay(1));
+        assertEquals(ReconnectPolicy.BASE_DELAY * 2, policy.getDelay(2));
+    }
+
+    @Test
+    public void testDelayIsCapped() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0.999999));
+        assertTrue(policy.getDelay(5) <= ReconnectPolicy.BASE_DELAY << 5);
+        assertTrue(policy.getDelay(30) <= ReconnectPolicy.MAX_DELAY);
+        assertTrue(policy.getDelay(Integer.MAX_VALUE) <= ReconnectPolicy.MAX_DELAY);
+        assertTrue(policy.getDelay(Integer.MAX_VALUE) >= ReconnectPolicy.MAX_DELAY / 2);
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        ReconnectPolicy policy = createPolicy(new Random(42));
+        long cap = ReconnectPolicy.BASE_DELAY << 3;
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for(int i = 0; i < 1000; i++) {
+            long delay = policy.getDelay(3);
+            assertTrue(delay >= cap / 2 && delay <= cap);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // Equal jitter should spread the delays over most of the upper half.
+        assertTrue(max - min > cap / 4);
+    }
+
+    @Test
+    public void testBacksOffBetweenFailedAttempts() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        policy.onConnectionLost();
+        assertTrue(policy.isReconnecting());
+        assertTrue(mNetwork.isStarted());
+
+        long expected = ReconnectPolicy.BASE_DELAY / 2;
+        for(int attempt = 1; attempt <= 4; attempt++) {
+            assertEquals(expected, mCallback.getLastDelay());
+            mClock.advance(expected - 1);
+            assertEquals(attempt - 1, mCallback.mAttempts.size());
+            mClock.advance(1);
+            assertEquals(attempt, mCallback.mAttempts.size());
+            assertEquals(attempt, policy.getAttempts());
+
+            policy.onConnectionLost(); // The attempt failed
+            expected *= 2;
+        }
+    }
+
+    @Test
+    public void testRetriesImmediatelyWhenNetworkReturns() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        mNetwork.setAvailable(false);
+        policy.onConnectionLost();
+        assertEquals(-1, mCallback.getLastDelay());
+        assertTrue(mCallback.mAttempts.isEmpty());
+
+        mNetwork.setAvailable(true);
+        assertEquals(1, mCallback.mAttempts.size());
+        assertEquals(0, mClock.getPendingCount());
+
+        // The backoff restarts for the new network.
+        policy.onConnectionLost();
+        assertEquals(ReconnectPolicy.BASE_DELAY / 2, mCallback.getLastDelay());
+    }
+
+    @Test
+    public void testNetworkLossPostponesScheduledAttempt() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        policy.onConnectionLost();
+        mNetwork.setAvailable(false);
+        assertEquals(-1, mCallback.getLastDelay());
+        assertEquals(1, mClock.getPendingCount());
+
+        mClock.advance(ReconnectPolicy.BASE_DELAY);
+        assertTrue(mCallback.mAttempts.isEmpty());
+        assertEquals(0, policy.getAttempts());
+    }
+
+    @Test
+    public void testIgnoresNetworkChangesWhileAttemptIsPending() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        policy.onConnectionLost();
+        mClock.advance(ReconnectPolicy.BASE_DELAY);
+        assertEquals(1, mCallback.mAttempts.size());
+
+        mNetwork.setAvailable(false);
+        mNetwork.setAvailable(true);
+        assertEquals(1, mCallback.mAttempts.size());
+        assertEquals(0, mClock.getPendingCount());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        for(int i = 0; i < ReconnectPolicy.MAX_ATTEMPTS; i++) {
+            policy.onConnectionLost();
+            mClock.advance(ReconnectPolicy.MAX_DELAY);
+        }
+        assertEquals(ReconnectPolicy.MAX_ATTEMPTS, mCallback.mAttempts.size());
+        assertEquals(-1, mCallback.mAbandonedAttempts);
+
+        policy.onConnectionLost();
+        assertEquals(ReconnectPolicy.MAX_ATTEMPTS, mCallback.mAbandonedAttempts);
+        assertFalse(policy.isReconnecting());
+        assertFalse(mNetwork.isStarted());
+        assertEquals(0, mClock.getPendingCount());
+        assertEquals(1, policy.getAbandonedCount());
+    }
+
+    @Test
+    public void testRecordsReconnectDurations() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        assertEquals(-1, policy.getLastReconnectDuration());
+        assertEquals(-1, policy.getMeanReconnectDuration());
+
+        policy.onConnectionLost();
+        mClock.advance(3000);
+        policy.onConnected();
+        assertEquals(3000, policy.getLastReconnectDuration());
+        assertFalse(policy.isReconnecting());
+        assertFalse(mNetwork.isStarted());
+
+        policy.onConnectionLost();
+        mClock.advance(1000);
+        policy.onConnected();
+        assertEquals(1000, policy.getLastReconnectDuration());
+        assertEquals(2000, policy.getMeanReconnectDuration());
+        assertEquals(2, policy.getReconnectCount());
+    }
+
+    @Test
+    public void testCancelStopsScheduledAttempts() {
+        ReconnectPolicy policy = createPolicy(new FixedRandom(0));
+        policy.onConnectionLost();
+        policy.cancel();
+        assertFalse(policy.isReconnecting());
+        assertEquals(0, mClock.getPendingCount());
+        mNetwork.setAvailable(true);
+        assertTrue(mCallback.mAttempts.isEmpty());
+
+        // Connecting after a cancel isn't counted as a reconnect.
+        policy.onConnected();
+        assertEquals(0, policy.getReconnectCount());
+    }
+}
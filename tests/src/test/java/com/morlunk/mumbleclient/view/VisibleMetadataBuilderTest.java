@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.morlunk.mumbleclient.view;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the single pass visible metadata builder against the implementation it replaced, and
+ * benchmarks the two on a 5,000 row tree.
+ */
+public class VisibleMetadataBuilderTest {
+
+    private static class CollapsedGroups implements VisibleMetadataBuilder.ExpansionState {
+        private final Set<Integer> mCollapsed = new HashSet<Integer>();
+
+        @Override
+        public boolean isGroupExpanded(int groupId) {
+            return !mCollapsed.contains(groupId);
+        }
+    }
+
+    private List<NestPositionMetadata> mFlatMeta;
+    private List<NestPositionMetadata> mGroups;
+    private CollapsedGroups mExpansion;
+    private int mNextId;
+
+    @Before
+    public void setUp() {
+        mFlatMeta = new ArrayList<NestPositionMetadata>();
+        mGroups = new ArrayList<NestPositionMetadata>();
+        mExpansion = new CollapsedGroups();
+        mNextId = 0;
+    }
+
+    private NestPositionMetadata addGroup(NestPositionMetadata parent) {
+        NestPositionMetadata group = new NestPositionMetadata();
+        group.type = NestMetadataType.META_TYPE_GROUP;
+        group.id = mNextId++;
+        group.parent = parent;
+        group.depth = parent != null ? parent.depth + 1 : 0;
+        mFlatMeta.add(group);
+        mGroups.add(group);
+        return group;
+    }
+
+    private NestPositionMetadata addChild(NestPositionMetadata group, int childPosition) {
+        NestPositionMetadata child = new NestPositionMetadata();
+        child.type = NestMetadataType.META_TYPE_ITEM;
+        child.id = mNextId++;
+        child.parent = group;
+        child.childPosition = childPosition;
+        child.depth = group.depth + 1;
+        mFlatMeta.add(child);
+        return child;
+    }
+
+    /**
+     * Adds a random subtree in pre-order, children before subgroups as the adapter does.
+     */
+    private void addRandomTree(NestPositionMetadata parent, Random random, int maxDepth, int maxChildren, int maxGroups) {
+        NestPositionMetadata group = addGroup(parent);
+        int children = random.nextInt(maxChildren + 1);
+        for(int i = 0; i < children; i++)
+            addChild(group, i);
+        if(group.depth >= maxDepth) return;
+        int groups = random.nextInt(maxGroups + 1);
+        for(int i = 0; i < groups; i++)
+            addRandomTree(group, random, maxDepth, maxChildren, maxGroups);
+    }
+
+    private List<NestPositionMetadata> build() {
+        List<NestPositionMetadata> visible = new ArrayList<NestPositionMetadata>();
+        VisibleMetadataBuilder.build(mFlatMeta, visible, mExpansion);
+        return visible;
+    }
+
+    /**
+     * The implementation replaced by the single pass, which scanned the visible list for each
+     * child and walked the ancestors of each group.
+     */
+    private List<NestPositionMetadata> buildLegacy() {
+        List<NestPositionMetadata> visible = new ArrayList<NestPositionMetadata>();
+        for(int x=0;x<mFlatMeta.size();x++) {
+            NestPositionMetadata metadata = mFlatMeta.get(x);
+            if(metadata.type == NestMetadataType.META_TYPE_GROUP) {
+                if(isParentExpanded(metadata))
+                    visible.add(metadata);
+            } else if(metadata.type == NestMetadataType.META_TYPE_ITEM) {
+                if(visible.contains(metadata.parent) && mExpansion.isGroupExpanded(metadata.parent.id))
+                    visible.add(metadata);
+            }
+        }
+        return visible;
+    }
+
+    private boolean isParentExpanded(NestPositionMetadata metadata) {
+        if(metadata.parent == null)
+            return true;
+        if(!mExpansion.isGroupExpanded(metadata.parent.id))
+            return false;
+        return isParentExpanded(metadata.parent);
+    }
+
+    @Test
+    public void testCollapsedGroupHidesSubtree() {
+        NestPositionMetadata root = addGroup(null);
+        NestPositionMetadata rootUser = addChild(root, 0);
+        NestPositionMetadata lobby = addGroup(root);
+        NestPositionMetadata lobbyUser = addChild(lobby, 0);
+        NestPositionMetadata nested = addGroup(lobby);
+        NestPositionMetadata nestedUser = addChild(nested, 0);
+        NestPositionMetadata afk = addGroup(root);
+        NestPositionMetadata afkUser = addChild(afk, 0);
+
+        mExpansion.mCollapsed.add(lobby.id);
+        List<NestPositionMetadata> visible = build();
+
+        assertEquals(5, visible.size());
+        assertSame(root, visible.get(0));
+        assertSame(rootUser, visible.get(1));
+        assertSame(lobby, visible.get(2));
+        assertSame(afk, visible.get(3));
+        assertSame(afkUser, visible.get(4));
+
+        assertTrue(lobby.visible);
+        assertFalse(lobby.expanded);
+        assertFalse(lobbyUser.visible);
+        assertFalse(nested.visible);
+        assertFalse(nestedUser.visible);
+        for(int i = 0; i < visible.size(); i++)
+            assertEquals(i, visible.get(i).visiblePosition);
+    }
+
+    @Test
+    public void testRebuildClearsPreviousRows() {
+        NestPositionMetadata root = addGroup(null);
+        addChild(root, 0);
+        List<NestPositionMetadata> visible = build();
+        VisibleMetadataBuilder.build(mFlatMeta, visible, mExpansion);
+        assertEquals(2, visible.size());
+    }
+
+    @Test
+    public void testMatchesLegacyImplementation() {
+        Random random = new Random(1);
+        for(int tree = 0; tree < 50; tree++) {
+            setUp();
+            addRandomTree(null, random, 5, 4, 3);
+            for(NestPositionMetadata group : mGroups) {
+                if(random.nextInt(4) == 0) mExpansion.mCollapsed.add(group.id);
+            }
+            assertEquals(buildLegacy(), build());
+        }
+    }
+
+    @Test
+    public void testBenchmarkAgainstLegacyImplementation() {
+        Random random = new Random(2);
+        NestPositionMetadata root = addGroup(null);
+        while(mFlatMeta.size() < 5000)
+            addRandomTree(root, random, 6, 12, 3);
+        // Collapse a few groups, as after the user has browsed around.
+        for(int i = 0; i < mGroups.size(); i += 17)
+            if(mGroups.get(i) != root) mExpansion.mCollapsed.add(mGroups.get(i).id);
+
+        assertEquals(buildLegacy(), build());
+        int rows = mFlatMeta.size();
+        int iterations = 50;
+        for(int i = 0; i < iterations; i++) { // Warm up
+            build();
+            buildLegacy();
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++)
+            build();
+        long singlePass = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for(int i = 0; i < iterations; i++)
+            buildLegacy();
+        long legacy = (System.nanoTime() - start) / iterations;
+
+        System.out.println("Visible metadata for " + rows + " rows: single pass " + singlePass / 1000 +
+                "us, legacy " + legacy / 1000 + "us");
+        assertTrue(singlePass < legacy);
+    }
+}